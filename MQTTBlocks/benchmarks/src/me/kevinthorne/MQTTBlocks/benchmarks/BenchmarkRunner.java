@@ -0,0 +1,35 @@
+package me.kevinthorne.MQTTBlocks.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, so runs of different releases can be
+ * compared with any JMH result viewer or diffed directly. Accepts the usual JMH command line;
+ * unless -rf/-rff are given the results go to results/jmh-&lt;version&gt;.json.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    String version = BenchmarkRunner.class.getPackage().getImplementationVersion();
+    File results = new File("results", "jmh-" + (version == null ? "dev" : version) + ".json");
+    results.getParentFile().mkdirs();
+
+    OptionsBuilder builder = new OptionsBuilder();
+    if (!commandLine.getResultFormat().hasValue())
+      builder.resultFormat(ResultFormatType.JSON);
+    if (!commandLine.getResult().hasValue())
+      builder.result(results.getPath());
+    Options options = builder.parent(commandLine).build();
+    new Runner(options).run();
+  }
+
+}
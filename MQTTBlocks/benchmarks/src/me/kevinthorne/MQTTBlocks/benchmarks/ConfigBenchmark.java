@@ -0,0 +1,66 @@
+package me.kevinthorne.MQTTBlocks.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+
+/**
+ * Loading a block's config.properties, and sorting its topics into subscribed and publish-only
+ * lists.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+
+  @Param({"1", "20", "500"})
+  public int topicCount;
+
+  private byte[] properties;
+  private String[] topics;
+
+  @Setup
+  public void setUp() {
+    topics = new String[topicCount];
+    StringBuilder topicList = new StringBuilder();
+    for (int i = 0; i < topicCount; i++) {
+      topics[i] = (i % 4 == 0 ? "nosub:" : "") + "home/room" + i + "/+/state";
+      topicList.append(i == 0 ? "" : ", ").append(topics[i]);
+    }
+    String file = "name=Bench\n" + "description=Benchmark block\n"
+        + "main=me.kevinthorne.MQTTBlocks.benchmarks.CountingBlock\n" + "topic=" + topicList + "\n"
+        + "qos=1\n" + "broker=tcp://127.0.0.1:1883\n" + "clientId=bench\n" + "updateWait=10\n"
+        + "publishOverflow=drop-oldest\n" + "inboundQueueSize=4096\n";
+    properties = file.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  @Benchmark
+  public BlockConfigurationFile parse() throws IOException {
+    return new BlockConfigurationFile(new ByteArrayInputStream(properties));
+  }
+
+  @Benchmark
+  public BlockConfigurationFile sortTopics() {
+    return new BlockConfigurationFile("Bench", null, null, topics, 1, "tcp://127.0.0.1:1883",
+        null, null, "bench", 10);
+  }
+
+}
@@ -0,0 +1,55 @@
+package me.kevinthorne.MQTTBlocks.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+/**
+ * Block that only counts what it is handed, so the benchmarks measure the runtime around it.
+ */
+public class CountingBlock extends MQTTBlock {
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong fromHome = new AtomicLong();
+
+  @Override
+  public void onEnable() {
+  }
+
+  @Override
+  public void onDisable() {
+  }
+
+  @Override
+  public void update() {
+  }
+
+  @Override
+  public boolean onMessageReceived(BlockMessage message) {
+    if (message.isFromHome())
+      fromHome.incrementAndGet();
+    received.incrementAndGet();
+    return true;
+  }
+
+  public long getReceived() {
+    return received.get();
+  }
+
+  public long getFromHome() {
+    return fromHome.get();
+  }
+
+  /**
+   * Spins until the block has handled the given number of messages.
+   *
+   * @param count
+   */
+  public void awaitReceived(long count) {
+    while (received.get() < count) {
+      Thread.yield();
+    }
+  }
+
+}
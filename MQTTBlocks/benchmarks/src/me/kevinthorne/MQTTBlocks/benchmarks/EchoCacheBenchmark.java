@@ -0,0 +1,65 @@
+package me.kevinthorne.MQTTBlocks.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.kevinthorne.MQTTBlocks.blocks.EchoSuppressionCache;
+
+/**
+ * fromHome detection: remembering a publish and recognising its echo, and the lookup every other
+ * inbound message pays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EchoCacheBenchmark {
+
+  @Param({"64", "1024"})
+  public int capacity;
+
+  @Param({"32", "1024"})
+  public int payloadSize;
+
+  private EchoSuppressionCache cache;
+  private String topic;
+  private byte[] payload;
+
+  @Setup
+  public void setUp() {
+    cache = new EchoSuppressionCache(capacity, 10000);
+    topic = "home/livingroom/lights/state";
+    payload = new byte[payloadSize];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) ('a' + i % 26);
+    }
+    for (int i = 0; i < capacity; i++) {
+      cache.record("home/other/" + i, payload);
+    }
+  }
+
+  @Benchmark
+  public boolean recordAndConsume() {
+    cache.record(topic, payload);
+    return cache.consume(topic, payload);
+  }
+
+  @Benchmark
+  public boolean consumeMiss() {
+    return cache.consume(topic, payload);
+  }
+
+}
@@ -0,0 +1,89 @@
+package me.kevinthorne.MQTTBlocks.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.connection.SharedConnection;
+import test.me.kevinthorne.MQTTBlocks.StandInBroker;
+
+/**
+ * Inbound path from the connection's callback to a block's handler: topic routing across the
+ * blocks sharing the connection, the block's inbound queue, the fromHome lookup and the handler
+ * call on a worker. Messages are injected at the connection's callback so the socket isn't part
+ * of the measurement. The cost of a fromHome hit is measured on its own in EchoCacheBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InboundBenchmark {
+
+  private static final int BATCH = 1000;
+
+  /** Blocks sharing the connection, each with its own filter */
+  @Param({"1", "100", "1000"})
+  public int blocks;
+
+  private StandInBroker broker;
+  private BlockManager manager;
+  private CountingBlock target;
+  private SharedConnection connection;
+  private MqttMessage message;
+  private String topic;
+  private long expected;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    manager = new BlockManager();
+    for (int i = 0; i < blocks; i++) {
+      BlockConfigurationFile config = new BlockConfigurationFile("inbound-" + i, null, null,
+          new String[] {"bench/" + i + "/+"}, 1, broker.getUrl(), null, null, "inbound", 3600);
+      CountingBlock block = new CountingBlock();
+      manager.addBlock(config, block);
+      if (i == 0)
+        target = block;
+    }
+    manager.enableBlocks();
+    connection = target.getConnection();
+    topic = "bench/0/state";
+    message = new MqttMessage("{\"state\":\"on\",\"brightness\":254}".getBytes());
+    message.setQos(1);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    manager.shutdown();
+    broker.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void routeAndHandle() throws Exception {
+    for (int i = 0; i < BATCH; i++) {
+      connection.messageArrived(topic, message);
+    }
+    expected += BATCH;
+    target.awaitReceived(expected);
+  }
+
+}
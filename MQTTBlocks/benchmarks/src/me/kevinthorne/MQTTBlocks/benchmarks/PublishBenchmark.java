@@ -0,0 +1,83 @@
+package me.kevinthorne.MQTTBlocks.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import test.me.kevinthorne.MQTTBlocks.StandInBroker;
+
+/**
+ * Acknowledged publish throughput through a block's pipeline to the stand-in broker, at each QoS.
+ * Each invocation publishes a batch and waits until the broker has acknowledged all of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+
+  private static final int BATCH = 200;
+
+  @Param({"0", "1", "2"})
+  public int qos;
+
+  @Param({"64", "4096"})
+  public int payloadSize;
+
+  private StandInBroker broker;
+  private BlockManager manager;
+  private CountingBlock block;
+  private String payload;
+  private final CompletableFuture<?>[] pending = new CompletableFuture<?>[BATCH];
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    manager = new BlockManager();
+    BlockConfigurationFile config = new BlockConfigurationFile("publisher", null, null, null, qos,
+        broker.getUrl(), null, null, "publisher", 3600);
+    block = new CountingBlock();
+    manager.addBlock(config, block);
+    manager.enableBlocks();
+    block.setQos(qos);
+    StringBuilder text = new StringBuilder(payloadSize);
+    for (int i = 0; i < payloadSize; i++) {
+      text.append((char) ('a' + i % 26));
+    }
+    payload = text.toString();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    manager.shutdown();
+    broker.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void publish() {
+    for (int i = 0; i < BATCH; i++) {
+      pending[i] = block.publishAsync("bench/publish", payload);
+    }
+    CompletableFuture.allOf(pending).join();
+  }
+
+}
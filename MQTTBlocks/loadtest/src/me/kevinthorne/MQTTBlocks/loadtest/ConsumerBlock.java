@@ -0,0 +1,38 @@
+package me.kevinthorne.MQTTBlocks.loadtest;
+
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+/**
+ * Records how long each generator message took to reach its handler. Generators and consumers
+ * share a JVM, so the timestamp in the payload is on the same clock.
+ */
+public class ConsumerBlock extends MQTTBlock {
+
+  private final LoadResults results;
+
+  public ConsumerBlock(LoadResults results) {
+    this.results = results;
+  }
+
+  @Override
+  public void onEnable() {
+  }
+
+  @Override
+  public void onDisable() {
+  }
+
+  @Override
+  public void update() {
+  }
+
+  @Override
+  public boolean onMessageReceived(BlockMessage message) {
+    if (message.getPayloadLength() < Long.BYTES)
+      return false;
+    results.recordReceived(System.nanoTime() - message.getPayload().getLong(0));
+    return true;
+  }
+
+}
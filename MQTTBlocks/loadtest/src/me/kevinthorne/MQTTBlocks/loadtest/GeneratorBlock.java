@@ -0,0 +1,83 @@
+package me.kevinthorne.MQTTBlocks.loadtest;
+
+import java.nio.ByteBuffer;
+
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.blocks.TopicHandle;
+
+/**
+ * Publishes to one topic at a fixed rate, sending what has fallen due on each update. Messages
+ * are stamped with the System.nanoTime() they were sent, unless the generator has fallen more than
+ * an update period behind: then they carry the time they were due, so a publish held up by
+ * backpressure or a late update() shows in the consumers' latencies instead of quietly lowering
+ * the rate.
+ */
+public class GeneratorBlock extends MQTTBlock {
+
+  private final String topic;
+  private final double intervalNanos;
+  private final byte[] payload;
+  private final int qos;
+  private final LoadResults results;
+
+  private TopicHandle handle;
+  private long start;
+  private long sent;
+  private volatile boolean stopped;
+
+  /**
+   * @param topic
+   * @param rate - messages per second
+   * @param payloadSize - bytes, at least 8 for the timestamp
+   * @param qos
+   * @param results
+   */
+  public GeneratorBlock(String topic, double rate, int payloadSize, int qos,
+      LoadResults results) {
+    this.topic = topic;
+    this.intervalNanos = 1e9 / rate;
+    this.payload = new byte[Math.max(Long.BYTES, payloadSize)];
+    this.qos = qos;
+    this.results = results;
+    for (int i = Long.BYTES; i < payload.length; i++) {
+      payload[i] = (byte) ('a' + i % 26);
+    }
+  }
+
+  @Override
+  public void onEnable() {
+    handle = topicHandle(topic, qos, false);
+    start = System.nanoTime();
+  }
+
+  @Override
+  public void onDisable() {
+  }
+
+  /**
+   * Sends every message that has fallen due since the last update.
+   */
+  @Override
+  public void update() {
+    long now = System.nanoTime();
+    long period = getUpdatePeriodNanos();
+    ByteBuffer stamp = ByteBuffer.wrap(payload);
+    while (!stopped) {
+      long due = start + (long) (sent * intervalNanos);
+      if (due - now > 0)
+        break;
+      stamp.putLong(0, now - due > period ? due : System.nanoTime());
+      handle.publish(payload);
+      sent++;
+      results.recordSent();
+    }
+  }
+
+  /**
+   * Stops publishing, leaving the block connected so what is in flight still arrives.
+   */
+  public void stopSending() {
+    stopped = true;
+  }
+
+}
@@ -0,0 +1,80 @@
+package me.kevinthorne.MQTTBlocks.loadtest;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import me.kevinthorne.MQTTBlocks.metrics.Histogram;
+
+/**
+ * What the generators sent and the consumers received, for the current report interval and for
+ * the whole run. Latencies are kept to about 3%, so p99.9 is meaningful.
+ */
+public class LoadResults {
+
+  private static final int SUB_BITS = 5;
+
+  private final Histogram interval = new Histogram(SUB_BITS);
+  private final Histogram total = new Histogram(SUB_BITS);
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder intervalSent = new LongAdder();
+  private final LongAdder intervalReceived = new LongAdder();
+
+  public void recordSent() {
+    sent.increment();
+    intervalSent.increment();
+  }
+
+  /**
+   * @param nanos - from when the message was due to be sent until it was handled
+   */
+  public void recordReceived(long nanos) {
+    received.increment();
+    intervalReceived.increment();
+    interval.record(nanos);
+    total.record(nanos);
+  }
+
+  public Histogram getInterval() {
+    return interval;
+  }
+
+  public Histogram getTotal() {
+    return total;
+  }
+
+  public long getSent() {
+    return sent.sum();
+  }
+
+  public long getReceived() {
+    return received.sum();
+  }
+
+  public long getIntervalSent() {
+    return intervalSent.sum();
+  }
+
+  public long getIntervalReceived() {
+    return intervalReceived.sum();
+  }
+
+  /**
+   * Starts the next report interval.
+   */
+  public void nextInterval() {
+    interval.reset();
+    intervalSent.reset();
+    intervalReceived.reset();
+  }
+
+  /**
+   * Forgets everything, at the end of the warmup.
+   */
+  public void reset() {
+    nextInterval();
+    total.reset();
+    sent.reset();
+    received.reset();
+  }
+
+}
@@ -0,0 +1,223 @@
+package me.kevinthorne.MQTTBlocks.loadtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.BlockScheduler;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.metrics.Histogram;
+import test.me.kevinthorne.MQTTBlocks.StandInBroker;
+
+/**
+ * Soak test of one node: a BlockManager runs pairs of generator and consumer blocks against the
+ * stand-in broker, each generator publishing timestamped messages to its consumer at a fixed
+ * rate. Every report interval it prints throughput, end-to-end latency percentiles, heap use and
+ * thread count, then totals at the end; the intervals are also written as CSV to
+ * results/loadtest-&lt;version&gt;.csv.
+ *
+ * <p>
+ * Options are given as name=value arguments:
+ * <ul>
+ * <li>blocks - generator/consumer pairs, default 100</li>
+ * <li>rate - messages per second from each generator, default 100</li>
+ * <li>payload - payload size in bytes, at least 8, default 64</li>
+ * <li>qos - default 1</li>
+ * <li>warmup - seconds run before anything is recorded, default 10</li>
+ * <li>duration - seconds recorded after the warmup, default 60</li>
+ * <li>report - seconds between reports, default 5</li>
+ * <li>sharedConnection - whether blocks share one connection, default true</li>
+ * </ul>
+ */
+public class LoadTest {
+
+  private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+  static {
+    DEFAULTS.put("blocks", "100");
+    DEFAULTS.put("rate", "100");
+    DEFAULTS.put("payload", "64");
+    DEFAULTS.put("qos", "1");
+    DEFAULTS.put("warmup", "10");
+    DEFAULTS.put("duration", "60");
+    DEFAULTS.put("report", "5");
+    DEFAULTS.put("sharedConnection", "true");
+  }
+
+  /** How often generators wake to send what has fallen due */
+  private static final String GENERATOR_PERIOD = "10ms";
+
+  /** How long to wait for messages in flight once the generators stop */
+  private static final long DRAIN_MILLIS = 10000;
+
+  private static final String HEADER =
+      "seconds,sent/s,received/s,p50 us,p99 us,p99.9 us,max us,heap MB,threads";
+
+  private final Map<String, String> options;
+  private final LoadResults results = new LoadResults();
+  private final List<GeneratorBlock> generators = new ArrayList<>();
+
+  public LoadTest(Map<String, String> options) {
+    this.options = new LinkedHashMap<>(DEFAULTS);
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      if (!DEFAULTS.containsKey(option.getKey()))
+        throw new IllegalArgumentException(
+            "Unknown option " + option.getKey() + ", expected one of " + DEFAULTS.keySet());
+      this.options.put(option.getKey(), option.getValue());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      int split = arg.indexOf('=');
+      if (split <= 0)
+        throw new IllegalArgumentException("Expected name=value, got " + arg);
+      options.put(arg.substring(0, split).trim(), arg.substring(split + 1).trim());
+    }
+    new LoadTest(options).run();
+  }
+
+  public void run() throws IOException, InterruptedException {
+    int blocks = getInt("blocks");
+    long reportMillis = TimeUnit.SECONDS.toMillis(getInt("report"));
+    System.out.println("Load test " + options);
+
+    StandInBroker broker = new StandInBroker();
+    BlockManager manager = new BlockManager();
+    try {
+      for (int i = 0; i < blocks; i++) {
+        String topic = "load/" + i;
+        manager.addBlock(config("consumer-" + i, topic, broker, "3600"),
+            new ConsumerBlock(results));
+        GeneratorBlock generator = new GeneratorBlock(topic, getDouble("rate"),
+            getInt("payload"), getInt("qos"), results);
+        BlockConfigurationFile config =
+            config("generator-" + i, "nosub:" + topic, broker, GENERATOR_PERIOD);
+        config.setUpdateMode(BlockScheduler.UpdateMode.FIXED_RATE);
+        manager.addBlock(config, generator);
+        generators.add(generator);
+      }
+      manager.enableBlocks();
+
+      Thread.sleep(TimeUnit.SECONDS.toMillis(getInt("warmup")));
+      results.reset();
+      File file = resultsFile();
+      try (PrintWriter csv = new PrintWriter(new FileWriter(file))) {
+        csv.println(HEADER);
+        System.out.println(HEADER.replace(",", "  "));
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(getInt("duration"));
+        long last = start;
+        while (System.nanoTime() - end < 0) {
+          Thread.sleep(Math.min(reportMillis,
+              Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+          long now = System.nanoTime();
+          String row = report(now - start, now - last);
+          csv.println(row);
+          csv.flush();
+          System.out.println(row.replace(",", "  "));
+          results.nextInterval();
+          last = now;
+        }
+      }
+
+      for (GeneratorBlock generator : generators) {
+        generator.stopSending();
+      }
+      long drained = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+      while (results.getReceived() < results.getSent() && System.nanoTime() - drained < 0) {
+        Thread.sleep(10);
+      }
+      summarize(manager);
+      System.out.println("Intervals written to " + file.getPath());
+    } finally {
+      manager.shutdown();
+      broker.close();
+    }
+  }
+
+  private BlockConfigurationFile config(String name, String topic, StandInBroker broker,
+      String updateWait) {
+    Properties properties = new Properties();
+    properties.setProperty("name", name);
+    properties.setProperty("main", name);
+    properties.setProperty("topic", topic);
+    properties.setProperty("qos", options.get("qos"));
+    properties.setProperty("broker", broker.getUrl());
+    properties.setProperty("clientId", "loadtest-" + name);
+    properties.setProperty("updateWait", updateWait);
+    properties.setProperty("sharedConnection", options.get("sharedConnection"));
+    return new BlockConfigurationFile(properties);
+  }
+
+  /**
+   * @param elapsed - since recording started
+   * @param interval - since the last report
+   * @return a CSV row for the interval just ended
+   */
+  private String report(long elapsed, long interval) {
+    double seconds = interval / 1e9;
+    Histogram latency = results.getInterval();
+    Runtime runtime = Runtime.getRuntime();
+    return String.format(Locale.ROOT, "%.0f,%.0f,%.0f,%d,%d,%d,%d,%d,%d", elapsed / 1e9,
+        results.getIntervalSent() / seconds, results.getIntervalReceived() / seconds,
+        micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(99)),
+        micros(latency.getValueAtPercentile(99.9)), micros(latency.getMax()),
+        (runtime.totalMemory() - runtime.freeMemory()) >> 20,
+        ManagementFactory.getThreadMXBean().getThreadCount());
+  }
+
+  private void summarize(BlockManager manager) {
+    Histogram latency = results.getTotal();
+    long sent = results.getSent();
+    long received = results.getReceived();
+    double seconds = getInt("duration");
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    System.out.println();
+    System.out.println(String.format(Locale.ROOT,
+        "Sent %d (%.0f/s), received %d (%.0f/s), %d not received", sent, sent / seconds,
+        received, received / seconds, Math.max(0, sent - received)));
+    System.out.println(String.format(Locale.ROOT,
+        "Latency us: p50 %d, p99 %d, p99.9 %d, max %d, mean %d",
+        micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(99)),
+        micros(latency.getValueAtPercentile(99.9)), micros(latency.getMax()),
+        micros(latency.getMean())));
+    System.out.println(String.format(Locale.ROOT,
+        "Blocks %d, connections %d, publish failures %d, inbound drops %d, peak threads %d",
+        manager.getMetrics().getBlockCount(), manager.getMetrics().getConnectionCount(),
+        manager.getMetrics().getPublishFailures(), manager.getMetrics().getInboundDropped(),
+        threads.getPeakThreadCount()));
+  }
+
+  private static File resultsFile() {
+    String version = LoadTest.class.getPackage().getImplementationVersion();
+    File file = new File("results", "loadtest-" + (version == null ? "dev" : version) + ".csv");
+    file.getParentFile().mkdirs();
+    return file;
+  }
+
+  private int getInt(String option) {
+    return Integer.parseInt(options.get(option));
+  }
+
+  private double getDouble(String option) {
+    return Double.parseDouble(options.get(option));
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+}
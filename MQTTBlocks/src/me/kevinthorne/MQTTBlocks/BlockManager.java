@@ -1,50 +1,67 @@
 package me.kevinthorne.MQTTBlocks;
 
 import java.io.File;
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+import me.kevinthorne.MQTTBlocks.blocks.BlockClassLoaders;
 import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
 import me.kevinthorne.MQTTBlocks.blocks.BlockLoader;
 import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.connection.ConnectionPool;
+import me.kevinthorne.MQTTBlocks.logging.AsyncLogHandler;
+import me.kevinthorne.MQTTBlocks.metrics.ManagerMetrics;
+import me.kevinthorne.MQTTBlocks.metrics.MetricsRegistry;
 
 public class BlockManager extends Thread {
 
   private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+  /** Shared by every manager in the JVM, installed by the first */
+  private static volatile AsyncLogHandler logHandler;
 
   public static final File blockLocation = new File("blocks/");
+  /** Jars in here are shared by every block rather than loaded as blocks */
+  public static final File libraryLocation = new File(blockLocation, "lib/");
 
-  private Map<String, MQTTBlock> blocks = new HashMap<>();
+  /**
+   * How many of the slowest blocks the startup report lists.
+   */
+  private static final int STARTUP_REPORT_SIZE = 10;
+
+  private static final AtomicInteger managerIds = new AtomicInteger();
+
+  private Map<String, MQTTBlock> blocks = new ConcurrentHashMap<>();
+  private ConnectionPool connectionPool;
+  private BlockScheduler scheduler;
+  private BlockClassLoaders classLoaders = new BlockClassLoaders(libraryLocation,
+      BlockManager.class.getClassLoader(),
+      TimeUnit.SECONDS.toMillis(Long.getLong(BlockClassLoaders.LEAK_TIMEOUT_PROPERTY, 300)));
+  private MetricsRegistry metricsRegistry = new MetricsRegistry(managerIds.incrementAndGet());
+  private ManagerMetrics metrics = new ManagerMetrics(this);
   // private Map<String, Future> enabledComponents = new HashMap<>();
 
   public BlockManager() {
+    setUpLogging();
     logger.info("Building runtime...");
-    
-    logger.setUseParentHandlers(false);
 
-    Formatter formatter = new BlockLogFormatter();
-    ConsoleHandler handler = new ConsoleHandler();
-    try {
-      Handler fileHandler = new FileHandler("MQTTBlocks.log");
-      handler.setFormatter(formatter);
-      logger.addHandler(fileHandler);
-    } catch (SecurityException | IOException e) {
-      e.printStackTrace();
-    }
-    handler.setFormatter(formatter);
-    logger.addHandler(handler);
-    logger.info("Logger setup successful");
+    scheduler = new BlockScheduler();
+    connectionPool = new ConnectionPool(scheduler);
+    metricsRegistry.registerManager(metrics);
 
     loadCoreBlocks();
     logger.info(blocks.size() + " core component(s) successfully added");
@@ -68,12 +85,60 @@ public class BlockManager extends Thread {
     logger.info("Shutdown initiated");
     disableBlocks();
     removeBlocks();
+    classLoaders.close();
+    connectionPool.closeAll();
+    scheduler.shutdown();
+    metricsRegistry.unregisterManager();
     logger.info("Halted.");
+    logHandler.flush();
+  }
+
+  /**
+   * Sends the manager's logger to the asynchronous log writer, once per JVM.
+   */
+  private static synchronized void setUpLogging() {
+    if (logHandler != null)
+      return;
+    logger.setUseParentHandlers(false);
+    logHandler = new AsyncLogHandler();
+    logger.addHandler(logHandler);
+    logger.info("Logger setup successful");
   }
 
+  /**
+   * Enables every block that isn't already running, in parallel through the scheduler, and logs
+   * how long startup took along with the slowest blocks.
+   */
   public void enableBlocks() {
-    for (String blockName : blocks.keySet()) {
-      enableBlock(blockName);
+    long start = System.nanoTime();
+    List<MQTTBlock> starting = new ArrayList<>();
+    for (MQTTBlock block : blocks.values()) {
+      if (!block.isRunning())
+        starting.add(block);
+    }
+    try {
+      scheduler.startAll(starting);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warning("Interrupted while enabling blocks");
+    }
+    logStartupReport(starting, System.nanoTime() - start);
+  }
+
+  private void logStartupReport(List<MQTTBlock> started, long elapsedNanos) {
+    logger.info("Enabled " + started.size() + " block(s) in "
+        + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, "
+        + scheduler.getStartupConcurrency() + " at a time");
+    List<MQTTBlock> slowest = new ArrayList<>(started);
+    Collections.sort(slowest, new Comparator<MQTTBlock>() {
+      @Override
+      public int compare(MQTTBlock a, MQTTBlock b) {
+        return Long.compare(b.getStartupTimes().getTotalNanos(),
+            a.getStartupTimes().getTotalNanos());
+      }
+    });
+    for (MQTTBlock block : slowest.subList(0, Math.min(STARTUP_REPORT_SIZE, slowest.size()))) {
+      logger.info("  " + block.getBlockName() + " - " + block.getStartupTimes());
     }
   }
 
@@ -87,16 +152,19 @@ public class BlockManager extends Thread {
     Iterator<String> blockKeysIter = blocks.keySet().iterator();
     while (blockKeysIter.hasNext()) {
       String blockName = blockKeysIter.next();
-      
-      //removeBlock(blockName);
+      MQTTBlock block = blocks.get(blockName);
       blockKeysIter.remove();
+      metricsRegistry.unregisterBlock(blockName);
+      if (block != null)
+        classLoaders.release(block);
     }
   }
 
   public void addBlock(BlockConfigurationFile config, MQTTBlock block) {
-    if (blocks.get(config) == null) {
+    if (!blocks.containsKey(config.getName())) {
       block.init(this, config);
       blocks.put(config.getName(), block);
+      metricsRegistry.registerBlock(config.getName(), block.getMetrics());
     } else {
       logger.severe("Could not add " + config.getName() + ": Block already exists!");
     }
@@ -122,7 +190,11 @@ public class BlockManager extends Thread {
 
   public void removeBlock(String name) {
     try {
-      blocks.remove(name);
+      MQTTBlock block = blocks.remove(name);
+      if (block != null) {
+        metricsRegistry.unregisterBlock(name);
+        classLoaders.release(block);
+      }
     } catch (Exception ignored) {
 
     }
@@ -138,7 +210,7 @@ public class BlockManager extends Thread {
       blockLocation.mkdirs();
 
     addBlock(new BlockConfigurationFile("ComponentLoader", null, null, null, 2, null, null,
-        null, null, 10), new BlockLoader());
+        null, null, 1), new BlockLoader());
   }
 
 
@@ -148,19 +220,51 @@ public class BlockManager extends Thread {
 
 
   public static void logError(MQTTBlock source, String log) {
-    logger.severe("[" + source.getBlockName() + "] - " + log);
+    log(Level.SEVERE, source, log, null);
   }
 
   public static void logInfo(MQTTBlock source, String log) {
-    logger.info("[" + source.getBlockName() + "] - " + log);
+    log(Level.INFO, source, log, null);
   }
 
   public static void logWarn(MQTTBlock source, String log) {
-    logger.warning("[" + source.getBlockName() + "] - " + log);
+    log(Level.WARNING, source, log, null);
   }
 
   public static void logConfig(MQTTBlock source, String log) {
-    logger.config("[" + source.getBlockName() + "] - " + log);
+    log(Level.CONFIG, source, log, null);
+  }
+
+  /**
+   * Logs a message with {} placeholders, which are only filled in, on the log writer's thread,
+   * if the level is enabled.
+   * 
+   * @param source
+   * @param format
+   * @param args
+   */
+  public static void logError(MQTTBlock source, String format, Object... args) {
+    log(Level.SEVERE, source, format, args);
+  }
+
+  public static void logInfo(MQTTBlock source, String format, Object... args) {
+    log(Level.INFO, source, format, args);
+  }
+
+  public static void logWarn(MQTTBlock source, String format, Object... args) {
+    log(Level.WARNING, source, format, args);
+  }
+
+  public static void logConfig(MQTTBlock source, String format, Object... args) {
+    log(Level.CONFIG, source, format, args);
+  }
+
+  private static void log(Level level, MQTTBlock source, String format, Object[] args) {
+    if (!logger.isLoggable(level))
+      return;
+    if (logHandler == null)
+      setUpLogging();
+    logHandler.log(level, source == null ? null : source.getBlockName(), format, args, null);
   }
 
   public Logger getLogger() {
@@ -171,15 +275,39 @@ public class BlockManager extends Thread {
     return blocks;
   }
 
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  public ManagerMetrics getMetrics() {
+    return metrics;
+  }
+
+  public MetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
+
+  public BlockScheduler getScheduler() {
+    return scheduler;
+  }
+
+  public BlockClassLoaders getClassLoaders() {
+    return classLoaders;
+  }
+
+  /**
+   * The log format as a java.util.logging Formatter, for handlers added to the manager's logger.
+   */
   public static class BlockLogFormatter extends Formatter {
     //
-    // Create a DateFormat to format the logger timestamp.
+    // DateTimeFormatter is immutable, so one instance is safe to share between threads.
     //
-    private static final DateFormat df = new SimpleDateFormat("dd/MM/yyyy hh:mm:ss.SSS");
+    private static final DateTimeFormatter df =
+        DateTimeFormatter.ofPattern("dd/MM/yyyy hh:mm:ss.SSS").withZone(ZoneId.systemDefault());
 
     public String format(LogRecord record) {
       StringBuilder builder = new StringBuilder(1000);
-      builder.append(df.format(new Date(record.getMillis()))).append(" - ");
+      builder.append(df.format(Instant.ofEpochMilli(record.getMillis()))).append(" - ");
       builder.append("[").append(record.getLevel()).append("] - ");
       builder.append(formatMessage(record));
       builder.append("\n");
@@ -0,0 +1,454 @@
+package me.kevinthorne.MQTTBlocks;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+/**
+ * Runs every block's lifecycle on a shared pool instead of a thread per block. Each block is
+ * enabled as a task and its update() is re-scheduled on a TimerWheel when the previous call
+ * returns: a period after it returned with fixed-delay, or a period after it was due to start with
+ * fixed-rate, so a slow update() doesn't make the cadence drift.
+ *
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ * <li>mqttblocks.scheduler.threads - pool size, defaults to the number of cores</li>
+ * <li>mqttblocks.scheduler.virtual - run block code on virtual threads (JDK 21+)</li>
+ * <li>mqttblocks.scheduler.tick - update timer resolution in microseconds, defaults to 1000</li>
+ * <li>mqttblocks.startup.concurrency - blocks enabled at once by startAll, defaults to 16</li>
+ * </ul>
+ */
+public class BlockScheduler {
+
+  /**
+   * When a block's next update() is due.
+   */
+  public enum UpdateMode {
+    /** updateWait after the previous update() returned */
+    FIXED_DELAY,
+    /** updateWait after the previous update() was due, whatever it took */
+    FIXED_RATE;
+
+    public static UpdateMode parse(String value) {
+      return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  /**
+   * What a fixed-rate block does when update() runs past one or more of its next start times.
+   */
+  public enum Overrun {
+    /** Run the missed updates back to back until the block is on schedule again */
+    CATCH_UP,
+    /** Drop the missed updates, counting them, and carry on at the next start time */
+    SKIP;
+
+    public static Overrun parse(String value) {
+      return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  public static final String THREADS_PROPERTY = "mqttblocks.scheduler.threads";
+  public static final String VIRTUAL_PROPERTY = "mqttblocks.scheduler.virtual";
+  public static final String STARTUP_PROPERTY = "mqttblocks.startup.concurrency";
+  public static final String TICK_PROPERTY = "mqttblocks.scheduler.tick";
+
+  private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+
+  private final ScheduledExecutorService timer;
+  private final TimerWheel wheel;
+  private final ExecutorService virtualWorkers;
+  private final Executor workers;
+  private final int startupConcurrency;
+
+  private final Map<MQTTBlock, Cycle> cycles = new ConcurrentHashMap<>();
+  /** Stopped cycles whose last update is still running, for join() */
+  private final Map<MQTTBlock, Cycle> ending = new ConcurrentHashMap<>();
+  private volatile boolean shutdown;
+  private final Map<MQTTBlock, Thread> legacyThreads = new ConcurrentHashMap<>();
+
+  public BlockScheduler() {
+    int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    ExecutorService virtual = null;
+    if (Boolean.getBoolean(VIRTUAL_PROPERTY)) {
+      virtual = newVirtualThreadExecutor();
+      if (virtual != null)
+        threads = 1;
+    }
+    ScheduledThreadPoolExecutor pool =
+        new ScheduledThreadPoolExecutor(Math.max(1, threads), new NamedThreadFactory("worker"));
+    pool.setRemoveOnCancelPolicy(true);
+    this.timer = pool;
+    this.virtualWorkers = virtual;
+    this.workers = virtual != null ? virtual : pool;
+    this.startupConcurrency = Math.max(1, Integer.getInteger(STARTUP_PROPERTY, 16));
+    this.wheel = new TimerWheel(TimeUnit.MICROSECONDS.toNanos(Long.getLong(TICK_PROPERTY, 1000)),
+        "MQTTBlocks-timer");
+    logger.info("Block scheduler running on "
+        + (virtual != null ? "virtual threads" : threads + " thread(s)"));
+  }
+
+  /**
+   * Enables the block and starts its update cycle. Blocks that still override run() get a
+   * dedicated thread, as they did when MQTTBlock extended Thread.
+   *
+   * @param block
+   */
+  public void start(final MQTTBlock block) {
+    if (isLegacy(block)) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            block.run();
+          } finally {
+            legacyThreads.remove(block, Thread.currentThread());
+          }
+        }
+      }, block.getBlockName());
+      legacyThreads.put(block, thread);
+      thread.start();
+      return;
+    }
+    workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (block.enable())
+          runUpdate(block, cycle(block));
+      }
+    });
+  }
+
+  /**
+   * Enables the blocks in parallel, at most mqttblocks.startup.concurrency at a time, and waits
+   * for all of them. Connecting and onEnable run on a temporary pool so a slow broker doesn't tie
+   * up the update workers; each block's update cycle then starts as it would from start().
+   *
+   * @param blocks
+   * @throws InterruptedException
+   */
+  public void startAll(Collection<MQTTBlock> blocks) throws InterruptedException {
+    ExecutorService startup = Executors.newFixedThreadPool(
+        Math.min(startupConcurrency, Math.max(1, blocks.size())), new NamedThreadFactory("startup"));
+    try {
+      for (final MQTTBlock block : blocks) {
+        if (isLegacy(block)) {
+          start(block);
+          continue;
+        }
+        startup.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (block.enable()) {
+              workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                  runUpdate(block, cycle(block));
+                }
+              });
+            }
+          }
+        });
+      }
+    } finally {
+      startup.shutdown();
+    }
+    startup.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Cancels any pending update for the block. An update already in progress finishes, but isn't
+   * scheduled again.
+   *
+   * @param block
+   */
+  public void stop(MQTTBlock block) {
+    Cycle cycle = cycles.remove(block);
+    if (cycle != null) {
+      ending.put(block, cycle);
+      if (cycle.cancel())
+        ending.remove(block, cycle);
+    }
+    Thread thread = legacyThreads.get(block);
+    if (thread != null)
+      thread.interrupt();
+  }
+
+  /**
+   * Waits for the block to stop: its update cycle cancelled and no update running, or for blocks
+   * that override run(), their thread finished. Returns straight away for blocks never started.
+   *
+   * @param block
+   * @param millis - how long to wait at most, 0 to wait until it stops
+   * @return true if the block has stopped
+   * @throws InterruptedException
+   */
+  public boolean join(MQTTBlock block, long millis) throws InterruptedException {
+    Thread thread = legacyThreads.get(block);
+    if (thread != null) {
+      thread.join(millis);
+      return !thread.isAlive();
+    }
+    Cycle cycle = cycles.get(block);
+    if (cycle == null)
+      cycle = ending.get(block);
+    if (cycle == null)
+      return true;
+    if (millis == 0) {
+      cycle.ended.await();
+      return true;
+    }
+    return cycle.ended.await(millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs a task on the block workers.
+   *
+   * @param task
+   */
+  public void execute(Runnable task) {
+    workers.execute(task);
+  }
+
+  /**
+   * Runs a short task on the timer after a delay. Anything that may block belongs on execute().
+   *
+   * @param task
+   * @param delay - <strong>milliseconds</strong>
+   * @return the scheduled task, or null if the scheduler has shut down
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long delay) {
+    return schedule(task, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs a short task on the timer after a delay. Anything that may block belongs on execute().
+   *
+   * @param task
+   * @param delay
+   * @param unit
+   * @return the scheduled task, or null if the scheduler has shut down
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+    try {
+      return timer.schedule(task, delay, unit);
+    } catch (RejectedExecutionException e) {
+      return null;
+    }
+  }
+
+  public void shutdown() {
+    shutdown = true;
+    wheel.close();
+    timer.shutdownNow();
+    if (virtualWorkers != null)
+      virtualWorkers.shutdownNow();
+    for (Thread thread : legacyThreads.values()) {
+      thread.interrupt();
+    }
+    legacyThreads.clear();
+    cycles.clear();
+  }
+
+  public int getStartupConcurrency() {
+    return startupConcurrency;
+  }
+
+  public boolean isVirtual() {
+    return virtualWorkers != null;
+  }
+
+  /**
+   * @param block
+   * @return a fresh update cycle for the block, replacing any earlier one
+   */
+  private Cycle cycle(MQTTBlock block) {
+    Cycle cycle = new Cycle(block);
+    Cycle previous = cycles.put(block, cycle);
+    if (previous != null)
+      previous.cancel();
+    return cycle;
+  }
+
+  /**
+   * Works out when the block's next update() is due and puts it on the wheel.
+   *
+   * @param block
+   * @param cycle
+   * @param finished - System.nanoTime() the last update() returned
+   */
+  private void scheduleUpdate(MQTTBlock block, Cycle cycle, long finished) {
+    if (!block.isRunning() || shutdown || cycles.get(block) != cycle)
+      return;
+    BlockConfigurationFile config = block.getBlockConfig();
+    long period = Math.max(0, block.getUpdatePeriodNanos());
+    long next;
+    if (config.getUpdateMode() == UpdateMode.FIXED_DELAY || period == 0) {
+      next = finished + period;
+    } else {
+      next = cycle.due + period;
+      if (next - finished < 0 && config.getUpdateOverrun() == Overrun.SKIP) {
+        long missed = (finished - next) / period + 1;
+        block.getMetrics().recordMissedUpdates(missed);
+        next += missed * period;
+      }
+    }
+    cycle.due = next;
+    cycle.timeout = wheel.schedule(cycle, next);
+  }
+
+  private void runUpdate(MQTTBlock block, Cycle cycle) {
+    if (!block.isRunning() || !cycle.begin())
+      return;
+    long start = System.nanoTime();
+    if (cycle.due == 0)
+      cycle.due = start;
+    else
+      block.getMetrics().recordUpdateLateness(start - cycle.due);
+    try {
+      block.update();
+    } catch (Exception e) {
+      BlockManager.logError(block, "Error during update: " + e);
+      e.printStackTrace();
+    } finally {
+      cycle.end();
+    }
+    long finished = System.nanoTime();
+    block.getMetrics().recordUpdate(finished - start);
+    scheduleUpdate(block, cycle, finished);
+  }
+
+  private static boolean isLegacy(MQTTBlock block) {
+    try {
+      return block.getClass().getMethod("run").getDeclaringClass() != MQTTBlock.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Looks up Executors.newThreadPerTaskExecutor(Thread.ofVirtual().factory()) reflectively so the
+   * runtime still builds and runs on Java 8.
+   *
+   * @return the executor, or null if virtual threads aren't available
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Method name = builderType.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, "MQTTBlocks-virtual-", 1L);
+      Method factory = builderType.getMethod("factory");
+      ThreadFactory threadFactory = (ThreadFactory) factory.invoke(builder);
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.warning("Virtual threads are not available on this JVM, using a thread pool");
+      return null;
+    }
+  }
+
+  /**
+   * One block's run of updates from being enabled until it is stopped. Fired by the wheel, it
+   * hands the update to the workers.
+   */
+  private class Cycle implements Runnable {
+
+    private final MQTTBlock block;
+    /** System.nanoTime() the pending update is due, 0 before the first */
+    private long due;
+    private volatile TimerWheel.Timeout timeout;
+    /** Released once cancelled with no update running */
+    private final CountDownLatch ended = new CountDownLatch(1);
+    /* Guarded by this */
+    private boolean updating;
+    private boolean cancelled;
+
+    Cycle(MQTTBlock block) {
+      this.block = block;
+    }
+
+    @Override
+    public void run() {
+      try {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            runUpdate(block, Cycle.this);
+          }
+        });
+      } catch (RejectedExecutionException ignored) {
+        // Shutting down
+      }
+    }
+
+    /**
+     * @return false if the cycle was cancelled, and the update mustn't run
+     */
+    synchronized boolean begin() {
+      if (cancelled)
+        return false;
+      updating = true;
+      return true;
+    }
+
+    void end() {
+      synchronized (this) {
+        updating = false;
+        if (!cancelled)
+          return;
+      }
+      ended.countDown();
+      ending.remove(block, this);
+    }
+
+    /**
+     * @return true if no update is running, otherwise the cycle ends when it returns
+     */
+    boolean cancel() {
+      TimerWheel.Timeout pending = timeout;
+      if (pending != null)
+        pending.cancel();
+      synchronized (this) {
+        cancelled = true;
+        if (updating)
+          return false;
+      }
+      ended.countDown();
+      return true;
+    }
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String kind) {
+      this.prefix = "MQTTBlocks-" + kind + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable task) {
+      return new Thread(task, prefix + count.incrementAndGet());
+    }
+  }
+
+}
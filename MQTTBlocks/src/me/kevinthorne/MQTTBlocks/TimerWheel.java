@@ -0,0 +1,212 @@
+package me.kevinthorne.MQTTBlocks;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel that drives block updates. Adding or cancelling a timer is O(1) however many
+ * blocks are scheduled, where a heap-based executor pays O(log n) and reorders the heap on every
+ * update. Time is cut into ticks of mqttblocks.scheduler.tick microseconds; a timer fires on the
+ * first tick at or after its deadline, so it runs at most a tick late plus the thread's wake-up
+ * latency.
+ *
+ * <p>
+ * One thread owns the wheel. New timers reach it through a queue and it only hands tasks off, so
+ * tasks should be quick, such as submitting the real work to an executor. The thread sleeps until
+ * the next tick whose slot holds a timer, and indefinitely while the wheel is empty.
+ */
+class TimerWheel {
+
+  private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+
+  private static final int SLOTS = 1024;
+  private static final int MASK = SLOTS - 1;
+
+  private final long tickNanos;
+  private final long start = System.nanoTime();
+  private final Timeout[] slots = new Timeout[SLOTS];
+  private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+  private final Thread thread;
+
+  /** Time the thread will next wake by itself, Long.MAX_VALUE while parked indefinitely */
+  private volatile long wakeAt = Long.MAX_VALUE;
+  private volatile boolean closed;
+
+  /* Owned by the wheel's thread */
+  private long tick;
+  private int timers;
+
+  /**
+   * A task waiting on the wheel.
+   */
+  static final class Timeout {
+
+    private final Runnable task;
+    private final long deadline;
+    private long tick;
+    private Timeout next;
+    private Timeout previous;
+    private volatile boolean cancelled;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Stops the task running if it hasn't yet. It leaves the wheel when its slot is next visited.
+     */
+    void cancel() {
+      cancelled = true;
+    }
+  }
+
+  /**
+   * @param tickNanos - wheel resolution
+   * @param name - of the wheel's thread
+   */
+  TimerWheel(long tickNanos, String name) {
+    this.tickNanos = Math.max(1000, tickNanos);
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @param task - run on the wheel's thread, keep it short
+   * @param deadline - System.nanoTime() to run it at
+   * @return the timer, to cancel it
+   */
+  Timeout schedule(Runnable task, long deadline) {
+    Timeout timeout = new Timeout(task, deadline);
+    incoming.add(timeout);
+    long wake = wakeAt;
+    if (wake == Long.MAX_VALUE || deadline - wake < 0)
+      LockSupport.unpark(thread);
+    return timeout;
+  }
+
+  void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+  }
+
+  long getTickNanos() {
+    return tickNanos;
+  }
+
+  private void loop() {
+    while (!closed) {
+      try {
+        long now = System.nanoTime();
+        transfer();
+        long current = (now - start) / tickNanos;
+        if (timers == 0)
+          tick = Math.max(tick, current + 1);
+        while (tick <= current) {
+          expire(tick++);
+        }
+        transfer();
+        park();
+      } catch (RuntimeException e) {
+        logger.severe("Timer wheel task failed: " + e);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Moves newly scheduled timers into their slots. A timer already due lands in the next tick's.
+   */
+  private void transfer() {
+    Timeout timeout;
+    while ((timeout = incoming.poll()) != null) {
+      if (timeout.cancelled)
+        continue;
+      long due = timeout.deadline - start;
+      // First tick starting at or after the deadline
+      timeout.tick = Math.max(tick, due <= 0 ? 0 : (due + tickNanos - 1) / tickNanos);
+      int slot = (int) (timeout.tick & MASK);
+      Timeout head = slots[slot];
+      timeout.next = head;
+      timeout.previous = null;
+      if (head != null)
+        head.previous = timeout;
+      slots[slot] = timeout;
+      timers++;
+    }
+  }
+
+  /**
+   * Runs the due timers in a tick's slot, leaving those for later rounds of the wheel.
+   *
+   * @param expiring
+   */
+  private void expire(long expiring) {
+    int slot = (int) (expiring & MASK);
+    Timeout timeout = slots[slot];
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      if (timeout.cancelled || timeout.tick <= expiring) {
+        unlink(slot, timeout);
+        if (!timeout.cancelled) {
+          try {
+            timeout.task.run();
+          } catch (RuntimeException e) {
+            logger.severe("Timer wheel task failed: " + e);
+            e.printStackTrace();
+          }
+        }
+      }
+      timeout = next;
+    }
+  }
+
+  private void unlink(int slot, Timeout timeout) {
+    if (timeout.previous != null)
+      timeout.previous.next = timeout.next;
+    else
+      slots[slot] = timeout.next;
+    if (timeout.next != null)
+      timeout.next.previous = timeout.previous;
+    timeout.next = null;
+    timeout.previous = null;
+    timers--;
+  }
+
+  /**
+   * Sleeps until the next tick with a timer in its slot, or until woken by schedule().
+   */
+  private void park() {
+    long wake = Long.MAX_VALUE;
+    if (timers > 0) {
+      long next = tick;
+      while (slots[(int) (next & MASK)] == null && next < tick + SLOTS) {
+        next++;
+      }
+      wake = start + next * tickNanos;
+    }
+    wakeAt = wake;
+    // A timer scheduled before wakeAt was published may not have unparked us
+    if (!incoming.isEmpty() || closed) {
+      wakeAt = Long.MAX_VALUE;
+      return;
+    }
+    if (wake == Long.MAX_VALUE) {
+      LockSupport.park(this);
+    } else {
+      long delay = wake - System.nanoTime();
+      if (delay > 0)
+        LockSupport.parkNanos(this, delay);
+    }
+    wakeAt = Long.MAX_VALUE;
+  }
+
+}
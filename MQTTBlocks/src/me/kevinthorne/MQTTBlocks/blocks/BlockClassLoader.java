@@ -0,0 +1,114 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads one block jar. It is given the jar's file URL rather than a jar: URL so closing it really
+ * closes the jar file, and it counts the classes it defines and the bytecode they came from, as
+ * an estimate of the block's share of metaspace. Every instance of a block template shares its
+ * jar's loader, so the loader counts the blocks using it.
+ */
+public class BlockClassLoader extends URLClassLoader {
+
+  static {
+    registerAsParallelCapable();
+  }
+
+  private final String blockName;
+  private final Path jar;
+  private final Map<String, Long> classSizes;
+  private final AtomicInteger loadedClasses = new AtomicInteger();
+  private final AtomicLong loadedBytes = new AtomicLong();
+  private final AtomicInteger users = new AtomicInteger();
+  private volatile boolean closed;
+
+  /**
+   * @param blockName
+   * @param jar
+   * @param classSizes - bytecode size of each class in the jar, by binary name
+   * @param parent - the shared library loader
+   * @throws IOException
+   */
+  BlockClassLoader(String blockName, Path jar, Map<String, Long> classSizes, ClassLoader parent)
+      throws IOException {
+    super(new URL[] {jar.toUri().toURL()}, parent);
+    this.blockName = blockName;
+    this.jar = jar;
+    this.classSizes = classSizes;
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    Class<?> defined = super.findClass(name);
+    loadedClasses.incrementAndGet();
+    Long size = classSizes.get(name);
+    if (size != null)
+      loadedBytes.addAndGet(size);
+    return defined;
+  }
+
+  void retain() {
+    users.incrementAndGet();
+  }
+
+  /**
+   * @return blocks still using the loader
+   */
+  int release() {
+    return users.decrementAndGet();
+  }
+
+  /**
+   * @return blocks currently loaded by this loader
+   */
+  public int getUsers() {
+    return users.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    super.close();
+  }
+
+  /**
+   * @return the name in the jar's config.properties, the template name for multi-instance jars
+   */
+  public String getBlockName() {
+    return blockName;
+  }
+
+  public Path getJar() {
+    return jar;
+  }
+
+  /**
+   * @return classes this loader has defined
+   */
+  public int getLoadedClasses() {
+    return loadedClasses.get();
+  }
+
+  /**
+   * @return bytecode size of the classes this loader has defined
+   */
+  public long getLoadedBytes() {
+    return loadedBytes.get();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public String toString() {
+    return "BlockClassLoader[" + blockName + ", " + jar.getFileName() + "]";
+  }
+
+}
@@ -0,0 +1,290 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+
+/**
+ * Owns the class loaders of a manager's hot-loaded blocks. Every block jar gets its own
+ * BlockClassLoader, parented by one shared loader over the jars in the library directory, so
+ * libraries several blocks use are only loaded once. A block's loader is closed when the block is
+ * removed and then watched through a weak reference: one that still hasn't been collected
+ * leakTimeout later is reported, since something (a thread, a static cache, a ThreadLocal, a
+ * registered driver) still holds on to one of its classes and with it all of the block's
+ * metaspace.
+ *
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ * <li>mqttblocks.loader.leakTimeout - how long an unloaded block's classes may linger before they
+ * are reported, in seconds (default 300)</li>
+ * </ul>
+ */
+public class BlockClassLoaders {
+
+  public static final String LEAK_TIMEOUT_PROPERTY = "mqttblocks.loader.leakTimeout";
+
+  private static final String CLASS_SUFFIX = ".class";
+
+  private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+
+  private final File libraryLocation;
+  private final ClassLoader parent;
+  private final long leakTimeoutNanos;
+
+  private URLClassLoader libraries;
+  private final Map<String, BlockClassLoader> active = new ConcurrentHashMap<>();
+  /* Guarded by itself */
+  private final List<Unloaded> unloaded = new ArrayList<>();
+
+  /**
+   * @param libraryLocation - jars shared by every block
+   * @param parent - loader the shared libraries, and so the blocks, delegate to
+   * @param leakTimeoutMillis - how long after unloading a loader is reported as leaked
+   */
+  public BlockClassLoaders(File libraryLocation, ClassLoader parent, long leakTimeoutMillis) {
+    this.libraryLocation = libraryLocation;
+    this.parent = parent;
+    this.leakTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(leakTimeoutMillis);
+  }
+
+  /**
+   * The loader over the library directory's jars, created on first use. Libraries are loaded
+   * once, so replacing one takes a restart.
+   * 
+   * @return ClassLoader
+   */
+  public synchronized ClassLoader getLibraries() {
+    if (libraries == null) {
+      List<URL> urls = new ArrayList<>();
+      File[] jars = libraryLocation.listFiles();
+      if (jars != null) {
+        for (File jar : jars) {
+          if (!jar.getName().endsWith(".jar"))
+            continue;
+          try {
+            urls.add(jar.toURI().toURL());
+          } catch (IOException e) {
+            logger.warning("Skipping library " + jar + ": " + e);
+          }
+        }
+      }
+      if (!urls.isEmpty())
+        logger.info("Sharing " + urls.size() + " librar" + (urls.size() == 1 ? "y" : "ies")
+            + " from " + libraryLocation);
+      libraries = new URLClassLoader(urls.toArray(new URL[0]), parent);
+    }
+    return libraries;
+  }
+
+  /**
+   * Creates the loader for a block jar. It must be handed to activate() for every block added
+   * from it, and to discard() once they have all been added, in case none were.
+   * 
+   * @param blockName
+   * @param jar
+   * @param jarFile - the open jar, read for the size of its classes
+   * @return BlockClassLoader
+   * @throws IOException
+   */
+  public BlockClassLoader create(String blockName, Path jar, JarFile jarFile) throws IOException {
+    Map<String, Long> sizes = new HashMap<>();
+    Enumeration<JarEntry> entries = jarFile.entries();
+    while (entries.hasMoreElements()) {
+      JarEntry entry = entries.nextElement();
+      String name = entry.getName();
+      if (name.endsWith(CLASS_SUFFIX) && entry.getSize() > 0)
+        sizes.put(name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.'),
+            entry.getSize());
+    }
+    return new BlockClassLoader(blockName, jar, sizes, getLibraries());
+  }
+
+  /**
+   * Records that a block loaded by the loader was added.
+   * 
+   * @param loader
+   */
+  public void activate(BlockClassLoader loader) {
+    loader.retain();
+    BlockClassLoader previous = active.put(loader.getBlockName(), loader);
+    if (previous != null && previous != loader && previous.getUsers() <= 0)
+      unload(previous);
+  }
+
+  /**
+   * Closes the loader if no block from it was added.
+   * 
+   * @param loader
+   */
+  public void discard(BlockClassLoader loader) {
+    if (loader.getUsers() > 0)
+      return;
+    active.remove(loader.getBlockName(), loader);
+    unload(loader);
+  }
+
+  /**
+   * Closes the loader behind a removed block once no other block uses it, if it was hot-loaded.
+   * 
+   * @param block
+   */
+  public void release(MQTTBlock block) {
+    ClassLoader loader = block.getClass().getClassLoader();
+    if (loader instanceof BlockClassLoader && ((BlockClassLoader) loader).release() <= 0) {
+      active.remove(((BlockClassLoader) loader).getBlockName(), loader);
+      unload((BlockClassLoader) loader);
+    }
+  }
+
+  private void unload(BlockClassLoader loader) {
+    if (loader.isClosed())
+      return;
+    try {
+      loader.close();
+    } catch (IOException e) {
+      logger.warning("Couldn't close " + loader + ": " + e);
+    }
+    synchronized (unloaded) {
+      unloaded.add(new Unloaded(loader));
+    }
+  }
+
+  /**
+   * Forgets the unloaded loaders that have been collected and reports, once each, those still
+   * around after leakTimeout.
+   * 
+   * @return names of the blocks whose loader has been reported as leaked
+   */
+  public List<String> checkLeaks() {
+    List<String> leaked = new ArrayList<>();
+    long now = System.nanoTime();
+    synchronized (unloaded) {
+      for (int i = unloaded.size() - 1; i >= 0; i--) {
+        Unloaded entry = unloaded.get(i);
+        if (entry.get() == null) {
+          unloaded.remove(i);
+          continue;
+        }
+        if (now - entry.since < leakTimeoutNanos)
+          continue;
+        if (!entry.reported) {
+          entry.reported = true;
+          logger.warning("Classes of " + entry.blockName + " are still loaded "
+              + TimeUnit.NANOSECONDS.toSeconds(now - entry.since) + " s after it was removed."
+              + " Something, such as a thread it started or a static cache, still references"
+              + " them.");
+        }
+        leaked.add(entry.blockName);
+      }
+    }
+    return leaked;
+  }
+
+  /**
+   * @return loaders closed but not yet collected, leaked or not
+   */
+  public int getUnloadedCount() {
+    synchronized (unloaded) {
+      int count = 0;
+      for (Unloaded entry : unloaded) {
+        if (entry.get() != null)
+          count++;
+      }
+      return count;
+    }
+  }
+
+  /**
+   * @return the loader behind a running block, or null if it wasn't hot-loaded
+   */
+  public BlockClassLoader getLoader(String blockName) {
+    return active.get(blockName);
+  }
+
+  /**
+   * @return metaspace in use by the whole JVM, or -1 if the JVM doesn't report it
+   */
+  public static long getMetaspaceUsed() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getName().equals("Metaspace"))
+        return pool.getUsage().getUsed();
+    }
+    return -1;
+  }
+
+  /**
+   * Lists the JVM's metaspace and class counts, and the classes and bytecode each hot-loaded
+   * block accounts for.
+   * 
+   * @return multi-line report
+   */
+  public String getMetaspaceReport() {
+    ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+    StringBuilder report = new StringBuilder();
+    long used = getMetaspaceUsed();
+    report.append("Metaspace ")
+        .append(used < 0 ? "n/a" : String.format("%.1f MB", used / (1024.0 * 1024.0)))
+        .append(", ").append(classes.getLoadedClassCount()).append(" classes loaded, ")
+        .append(classes.getUnloadedClassCount()).append(" unloaded, ")
+        .append(getUnloadedCount()).append(" block loader(s) awaiting collection");
+    for (BlockClassLoader loader : active.values()) {
+      report.append('\n').append("  ").append(loader.getBlockName()).append(" - ")
+          .append(loader.getLoadedClasses()).append(" classes, ")
+          .append(loader.getUsers() > 1 ? loader.getUsers() + " instances, " : "")
+          .append(String.format("%.1f KB bytecode", loader.getLoadedBytes() / 1024.0));
+    }
+    return report.toString();
+  }
+
+  /**
+   * Closes every loader, including the shared libraries'.
+   */
+  public synchronized void close() {
+    for (BlockClassLoader loader : active.values()) {
+      unload(loader);
+    }
+    active.clear();
+    if (libraries != null) {
+      try {
+        libraries.close();
+      } catch (IOException ignored) {
+      }
+      libraries = null;
+    }
+  }
+
+  /**
+   * A closed loader, held weakly so it can still be collected.
+   */
+  private static class Unloaded extends WeakReference<BlockClassLoader> {
+
+    private final String blockName;
+    private final long since = System.nanoTime();
+    private boolean reported;
+
+    Unloaded(BlockClassLoader loader) {
+      super(loader);
+      this.blockName = loader.getBlockName();
+    }
+  }
+
+}
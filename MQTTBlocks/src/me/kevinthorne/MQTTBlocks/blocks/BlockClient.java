@@ -0,0 +1,135 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * The MqttClient handed out by the deprecated MQTTBlock.getClient(). The underlying connection
+ * is shared with other blocks, so publishes and subscriptions go through the block and anything
+ * that would connect, disconnect, close or re-route the shared client is refused.
+ */
+final class BlockClient extends MqttClient {
+
+  private final MQTTBlock block;
+  private final MqttAsyncClient shared;
+
+  BlockClient(MQTTBlock block, MqttAsyncClient shared) throws MqttException {
+    super(shared.getServerURI(), shared.getClientId(), new MemoryPersistence());
+    aClient.close();
+    aClient = shared;
+    this.block = block;
+    this.shared = shared;
+  }
+
+  MqttAsyncClient getShared() {
+    return shared;
+  }
+
+  /**
+   * Waits for the message like MqttClient does, but sends it through the block's publish
+   * pipeline.
+   */
+  @Override
+  public void publish(String topic, MqttMessage message) throws MqttException {
+    try {
+      block.publishAsync(topic, message.getPayload(), message.getQos(), message.isRetained())
+          .get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MqttException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof MqttException)
+        throw (MqttException) e.getCause();
+      throw new MqttException(e.getCause());
+    }
+  }
+
+  @Override
+  public void publish(String topic, byte[] payload, int qos, boolean retained)
+      throws MqttException {
+    MqttMessage message = new MqttMessage(payload);
+    message.setQos(qos);
+    message.setRetained(retained);
+    publish(topic, message);
+  }
+
+  /**
+   * Subscribes the block; the QoS is the block's own.
+   */
+  @Override
+  public void subscribe(String[] topicFilters, int[] qos) {
+    for (String filter : topicFilters)
+      block.subscribe(filter);
+  }
+
+  @Override
+  public void unsubscribe(String[] topicFilters) {
+    for (String filter : topicFilters)
+      block.unsubscribe(filter);
+  }
+
+  @Override
+  public void connect(MqttConnectOptions options) {
+    throw refused("connect");
+  }
+
+  @Override
+  public IMqttToken connectWithResult(MqttConnectOptions options) {
+    throw refused("connect");
+  }
+
+  @Override
+  public void disconnect() {
+    throw refused("disconnect");
+  }
+
+  @Override
+  public void disconnect(long quiesceTimeout) {
+    throw refused("disconnect");
+  }
+
+  @Override
+  public void disconnectForcibly() {
+    throw refused("disconnect");
+  }
+
+  @Override
+  public void disconnectForcibly(long disconnectTimeout) {
+    throw refused("disconnect");
+  }
+
+  @Override
+  public void disconnectForcibly(long quiesceTimeout, long disconnectTimeout) {
+    throw refused("disconnect");
+  }
+
+  @Override
+  public void close() {
+    throw refused("close");
+  }
+
+  @Override
+  public void setCallback(MqttCallback callback) {
+    throw refused("set the callback of");
+  }
+
+  @Override
+  public MqttTopic getTopic(String topic) {
+    throw refused("publish directly on");
+  }
+
+  private UnsupportedOperationException refused(String what) {
+    return new UnsupportedOperationException(
+        block.getBlockName() + " can't " + what + " a connection shared with other blocks");
+  }
+
+}
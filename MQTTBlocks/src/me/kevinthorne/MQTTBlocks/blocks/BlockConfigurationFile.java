@@ -2,16 +2,37 @@ package me.kevinthorne.MQTTBlocks.blocks;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import me.kevinthorne.MQTTBlocks.BlockScheduler;
+import me.kevinthorne.MQTTBlocks.connection.MappedFilePersistence;
+import me.kevinthorne.MQTTBlocks.connection.PublishPipeline;
+import me.kevinthorne.MQTTBlocks.connection.SharedConnection;
+import me.kevinthorne.MQTTBlocks.connection.TopicTrie;
 
 public class BlockConfigurationFile {
 
   private final String NO_SUB = "nosub:";
 
+  /** ${variable} in a template's values */
+  private static final Pattern VARIABLE = Pattern.compile("\\$\\{([^}]+)\\}");
+
   private Properties properties;
 
   private String name;
+  private String instance;
   private String description;
   private String main;
   private String[] topics;
@@ -22,13 +43,46 @@ public class BlockConfigurationFile {
   private String username;
   private char[] password;
   private String clientId;
-  private int updateWait;
+  private long updatePeriodNanos;
+  private BlockScheduler.UpdateMode updateMode = BlockScheduler.UpdateMode.FIXED_DELAY;
+  private BlockScheduler.Overrun updateOverrun = BlockScheduler.Overrun.SKIP;
+  private boolean sharedConnection = true;
+  private int publishWindow = PublishPipeline.MAX_WINDOW;
+  private int publishQueue = 1000;
+  private PublishPipeline.Overflow publishOverflow = PublishPipeline.Overflow.BLOCK;
+  private long publishBlockTimeout = 5000;
+  private int echoCacheSize = 64;
+  private long echoCacheTtl = 10000;
+  private int inboundQueueSize = 1024;
+  private InboundDispatcher.Overflow inboundOverflow = InboundDispatcher.Overflow.DROP_OLDEST;
+  private long inboundBlockTimeout = 1000;
+  private int batchSize = 1;
+  private long batchDelay = 1000;
+  private int lanes = 1;
+  private int laneQueueSize;
+  private String laneKey = "topic";
+  private Deduplicator.Mode dedup = Deduplicator.Mode.OFF;
+  private long dedupWindow = 60000;
+  private int dedupCapacity = 10000;
+  private boolean localDelivery;
+  private boolean forwardToBroker = true;
+  private SharedConnection.Persistence persistence = SharedConnection.Persistence.MEMORY;
+  private String persistenceDir = "persistence/";
+  private int persistenceSegmentSize = MappedFilePersistence.DEFAULT_SEGMENT_SIZE;
+  private long persistenceMaxBytes = MappedFilePersistence.DEFAULT_MAX_BYTES;
+  private long reconnectMinDelay = 1000;
+  private long reconnectMaxDelay = 60000;
+  private String[] conflateTopics;
+  private long conflateWindow;
+  private Map<String, String> codecs = new LinkedHashMap<>();
+  private String defaultCodec = "string";
 
   /**
    * Loads Configuration File from Jar Entry InputStream
    * 
    * @param stream
    * @throws IOException
+   * @throws IllegalArgumentException if a required key is missing or a value is malformed
    */
   public BlockConfigurationFile(final InputStream stream) throws IOException {
     properties = new Properties();
@@ -36,6 +90,17 @@ public class BlockConfigurationFile {
     load(properties);
   }
 
+  /**
+   * Loads Configuration File from already read properties, used for the instances of a template.
+   * 
+   * @param properties
+   * @throws IllegalArgumentException if a required key is missing or a value is malformed
+   */
+  public BlockConfigurationFile(Properties properties) {
+    this.properties = properties;
+    load(properties);
+  }
+
   /**
    * Loads Configuration File from given parameters, used for embedded and self-registered
    * components.
@@ -60,21 +125,111 @@ public class BlockConfigurationFile {
     this.username = username;
     this.password = (password == null ? "".toCharArray() : password.toCharArray());
     this.clientId = clientId;
-    this.updateWait = updateWait;
+    this.updatePeriodNanos = TimeUnit.SECONDS.toNanos(updateWait);
   }
 
   private void load(Properties prop) {
-    this.name = prop.getProperty("name");
+    this.name = required(prop, "name");
+    this.instance = prop.getProperty("instance");
     this.description = prop.getProperty("description");
-    this.main = prop.getProperty("main");
-    this.topics = prop.getProperty("topic").replace(" ", "").split(",");
+    this.main = required(prop, "main");
+    this.topics = required(prop, "topic").replace(" ", "").split(",");
     sortTopics(topics);
-    this.qos = Integer.parseInt(prop.getProperty("qos"));
+    this.qos = Integer.parseInt(required(prop, "qos").trim());
     this.broker = prop.getProperty("broker");
     this.username = prop.getProperty("username", "");
     this.password = prop.getProperty("password", "").toCharArray();
     this.clientId = prop.getProperty("clientId");
-    this.updateWait = Integer.parseInt(prop.getProperty("updateWait"));
+    this.updatePeriodNanos = parseDuration(required(prop, "updateWait"));
+    this.updateMode =
+        BlockScheduler.UpdateMode.parse(prop.getProperty("updateMode", "fixed-delay"));
+    this.updateOverrun = BlockScheduler.Overrun.parse(prop.getProperty("updateOverrun", "skip"));
+    this.sharedConnection = Boolean.parseBoolean(prop.getProperty("sharedConnection", "true"));
+    this.publishWindow = Integer.parseInt(
+        prop.getProperty("publishWindow", String.valueOf(PublishPipeline.MAX_WINDOW)));
+    this.publishQueue = Integer.parseInt(prop.getProperty("publishQueue", "1000"));
+    this.publishOverflow =
+        PublishPipeline.Overflow.parse(prop.getProperty("publishOverflow", "block"));
+    this.publishBlockTimeout = Long.parseLong(prop.getProperty("publishBlockTimeout", "5000"));
+    this.echoCacheSize = Integer.parseInt(prop.getProperty("echoCacheSize", "64"));
+    this.echoCacheTtl = Long.parseLong(prop.getProperty("echoCacheTtl", "10000"));
+    this.inboundQueueSize = Integer.parseInt(prop.getProperty("inboundQueueSize", "1024"));
+    this.inboundOverflow =
+        InboundDispatcher.Overflow.parse(prop.getProperty("inboundOverflow", "drop-oldest"));
+    this.inboundBlockTimeout = Long.parseLong(prop.getProperty("inboundBlockTimeout", "1000"));
+    this.batchSize = Integer.parseInt(prop.getProperty("batchSize", "1"));
+    this.batchDelay = Long.parseLong(prop.getProperty("batchDelay", "1000"));
+    this.lanes = Integer.parseInt(prop.getProperty("lanes", "1"));
+    this.laneQueueSize = Integer.parseInt(prop.getProperty("laneQueueSize", "0"));
+    this.laneKey = prop.getProperty("laneKey", "topic").trim();
+    getLaneKeyLevel();
+    this.dedup = Deduplicator.Mode.parse(prop.getProperty("dedup", "off"));
+    this.dedupWindow = Long.parseLong(prop.getProperty("dedupWindow", "60000"));
+    this.dedupCapacity = Integer.parseInt(prop.getProperty("dedupCapacity", "10000"));
+    this.localDelivery = Boolean.parseBoolean(prop.getProperty("localDelivery", "false"));
+    this.forwardToBroker = Boolean.parseBoolean(prop.getProperty("forwardToBroker", "true"));
+    this.persistence =
+        SharedConnection.Persistence.parse(prop.getProperty("persistence", "memory"));
+    this.persistenceDir = prop.getProperty("persistenceDir", "persistence/");
+    this.persistenceSegmentSize = Integer.parseInt(prop.getProperty("persistenceSegmentSize",
+        String.valueOf(MappedFilePersistence.DEFAULT_SEGMENT_SIZE)));
+    this.persistenceMaxBytes = Long.parseLong(prop.getProperty("persistenceMaxBytes",
+        String.valueOf(MappedFilePersistence.DEFAULT_MAX_BYTES)));
+    this.reconnectMinDelay = Long.parseLong(prop.getProperty("reconnectMinDelay", "1000"));
+    this.reconnectMaxDelay = Long.parseLong(prop.getProperty("reconnectMaxDelay", "60000"));
+    String conflate = prop.getProperty("conflateTopics", "").replace(" ", "");
+    if (!conflate.isEmpty())
+      this.conflateTopics = conflate.split(",");
+    this.conflateWindow = Long.parseLong(prop.getProperty("conflateWindow", "0"));
+    parseCodecs(prop.getProperty("codecs", ""));
+    this.defaultCodec = prop.getProperty("defaultCodec", "string").trim();
+  }
+
+  private static String required(Properties prop, String key) {
+    String value = prop.getProperty(key);
+    if (value == null)
+      throw new IllegalArgumentException("Missing " + key);
+    return value;
+  }
+
+  /**
+   * Reads filter:codec pairs, e.g. "sensors/+/reading:json, images/#:binary".
+   * 
+   * @param list
+   */
+  private void parseCodecs(String list) {
+    for (String pair : list.replace(" ", "").split(",")) {
+      if (pair.isEmpty())
+        continue;
+      int split = pair.lastIndexOf(':');
+      if (split <= 0 || split == pair.length() - 1)
+        throw new IllegalArgumentException("Expected filter:codec in codecs, got " + pair);
+      codecs.put(pair.substring(0, split), pair.substring(split + 1));
+    }
+  }
+
+  /**
+   * Reads a duration such as "50ms", "250us" or "1.5s". A bare number is seconds.
+   * 
+   * @param value
+   * @return long <strong>nanoseconds</strong>
+   */
+  static long parseDuration(String value) {
+    String trimmed = value.trim().toLowerCase();
+    long unit = TimeUnit.SECONDS.toNanos(1);
+    if (trimmed.endsWith("us")) {
+      unit = TimeUnit.MICROSECONDS.toNanos(1);
+      trimmed = trimmed.substring(0, trimmed.length() - 2);
+    } else if (trimmed.endsWith("ms")) {
+      unit = TimeUnit.MILLISECONDS.toNanos(1);
+      trimmed = trimmed.substring(0, trimmed.length() - 2);
+    } else if (trimmed.endsWith("s")) {
+      trimmed = trimmed.substring(0, trimmed.length() - 1);
+    }
+    BigDecimal nanos = new BigDecimal(trimmed.trim()).multiply(BigDecimal.valueOf(unit));
+    if (nanos.signum() < 0)
+      throw new IllegalArgumentException("Negative duration " + value);
+    return nanos.longValue();
   }
 
   private void sortTopics(String[] topics) {
@@ -86,8 +241,11 @@ public class BlockConfigurationFile {
       if (topic.contains(NO_SUB)) {
         topic.replace(NO_SUB, "");
         publishOnly.add(topic);
-      } else
+      } else {
+        // Throws on a malformed $share/group/filter
+        TopicTrie.matchFilter(topic);
         subscribeOnly.add(topic);
+      }
     }
     if (!subscribeOnly.isEmpty())
       this.subscribedTopics = subscribeOnly.toArray(new String[0]);
@@ -99,6 +257,103 @@ public class BlockConfigurationFile {
     return name;
   }
 
+  /**
+   * @return the instance id this config was made for, or null if it isn't from a template
+   */
+  public String getInstance() {
+    return instance;
+  }
+
+  /**
+   * @return resource in the block jar listing the template's instances, or null
+   */
+  public String getInstancesFile() {
+    return properties == null ? null : properties.getProperty("instancesFile");
+  }
+
+  /**
+   * Adds the instance list and per-instance values read from an instances file.
+   * 
+   * @param instances
+   */
+  public void addInstances(Properties instances) {
+    if (properties == null)
+      properties = new Properties();
+    String listed = properties.getProperty("instances", "");
+    String added = instances.getProperty("instances", "");
+    properties.putAll(instances);
+    if (!listed.isEmpty() && !added.isEmpty())
+      properties.setProperty("instances", listed + "," + added);
+  }
+
+  /**
+   * Turns a template into one config per id in its instances property. Every value may use
+   * ${instance} and ${key} for any key set as id.key, which also overrides the template's own
+   * value of that key. Instances are named name-id unless the name uses a variable.
+   * 
+   * @return the instances' configs, or just this one if it isn't a template
+   */
+  public List<BlockConfigurationFile> getInstances() {
+    if (properties == null)
+      return Collections.singletonList(this);
+    Set<String> ids = new LinkedHashSet<>();
+    for (String id : properties.getProperty("instances", "").replace(" ", "").split(",")) {
+      if (!id.isEmpty())
+        ids.add(id);
+    }
+    if (ids.isEmpty())
+      return Collections.singletonList(this);
+    List<BlockConfigurationFile> instances = new ArrayList<>();
+    for (String id : ids) {
+      instances.add(new BlockConfigurationFile(instanceProperties(id, ids)));
+    }
+    return instances;
+  }
+
+  private Properties instanceProperties(String id, Set<String> ids) {
+    Map<String, String> variables = new HashMap<>();
+    String prefix = id + ".";
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(prefix))
+        variables.put(key.substring(prefix.length()), properties.getProperty(key));
+    }
+    variables.put("instance", id);
+    Properties result = new Properties();
+    for (String key : properties.stringPropertyNames()) {
+      int dot = key.indexOf('.');
+      if (key.equals("instances") || key.equals("instancesFile")
+          || (dot > 0 && ids.contains(key.substring(0, dot))))
+        continue;
+      result.setProperty(key, substitute(properties.getProperty(key), variables));
+    }
+    for (Map.Entry<String, String> variable : variables.entrySet()) {
+      result.setProperty(variable.getKey(), substitute(variable.getValue(), variables));
+    }
+    String template = properties.getProperty("name", "");
+    if (!variables.containsKey("name") && !template.contains("${"))
+      result.setProperty("name", template + "-" + id);
+    return result;
+  }
+
+  /**
+   * @param value
+   * @param variables
+   * @return the value with each known ${variable} replaced, unknown ones left as they are
+   */
+  private static String substitute(String value, Map<String, String> variables) {
+    if (value.indexOf("${") < 0)
+      return value;
+    Matcher matcher = VARIABLE.matcher(value);
+    StringBuffer result = new StringBuffer();
+    while (matcher.find()) {
+      String replacement = variables.get(matcher.group(1));
+      matcher.appendReplacement(result,
+          Matcher.quoteReplacement(replacement == null ? matcher.group() : replacement));
+    }
+    matcher.appendTail(result);
+    return result.toString();
+  }
+
   public String getDescription() {
     return description;
   }
@@ -147,8 +402,413 @@ public class BlockConfigurationFile {
     return password;
   }
 
+  /**
+   * The update period rounded down to whole seconds, as updateWait used to be.
+   * 
+   * @return int <strong>seconds</strong>
+   */
   public int getUpdateWait() {
-    return updateWait;
+    return (int) TimeUnit.NANOSECONDS.toSeconds(updatePeriodNanos);
+  }
+
+  /**
+   * How long between update() calls, from updateWait.
+   * 
+   * @return long <strong>nanoseconds</strong>
+   */
+  public long getUpdatePeriodNanos() {
+    return updatePeriodNanos;
+  }
+
+  public void setUpdatePeriod(long period, TimeUnit unit) {
+    this.updatePeriodNanos = unit.toNanos(period);
+  }
+
+  /**
+   * Whether the update period is measured from the end of the last update() or from when it was
+   * due.
+   * 
+   * @return BlockScheduler.UpdateMode
+   */
+  public BlockScheduler.UpdateMode getUpdateMode() {
+    return updateMode;
+  }
+
+  public void setUpdateMode(BlockScheduler.UpdateMode updateMode) {
+    this.updateMode = updateMode;
+  }
+
+  /**
+   * What a fixed-rate block does with the updates an overrunning update() made it miss.
+   * 
+   * @return BlockScheduler.Overrun
+   */
+  public BlockScheduler.Overrun getUpdateOverrun() {
+    return updateOverrun;
+  }
+
+  public void setUpdateOverrun(BlockScheduler.Overrun updateOverrun) {
+    this.updateOverrun = updateOverrun;
+  }
+
+  /**
+   * Whether this block may share its broker connection with other blocks using the same broker
+   * and credentials.
+   * 
+   * @return boolean
+   */
+  public boolean isSharedConnection() {
+    return sharedConnection;
+  }
+
+  /**
+   * How many messages may await acknowledgement at once on this block's connection.
+   * 
+   * @return int
+   */
+  public int getPublishWindow() {
+    return publishWindow;
+  }
+
+  /**
+   * How many messages may wait for the publish window before publishOverflow applies.
+   * 
+   * @return int
+   */
+  public int getPublishQueue() {
+    return publishQueue;
+  }
+
+  public PublishPipeline.Overflow getPublishOverflow() {
+    return publishOverflow;
+  }
+
+  /**
+   * How long a publish waits for queue space under the block policy.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getPublishBlockTimeout() {
+    return publishBlockTimeout;
+  }
+
+  /**
+   * How many of the block's own publishes are remembered for fromHome detection.
+   * 
+   * @return int
+   */
+  public int getEchoCacheSize() {
+    return echoCacheSize;
+  }
+
+  /**
+   * How long a publish is remembered for fromHome detection.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getEchoCacheTtl() {
+    return echoCacheTtl;
+  }
+
+  /**
+   * How many received messages may wait for this block's handler before inboundOverflow applies.
+   * 
+   * @return int
+   */
+  public int getInboundQueueSize() {
+    return inboundQueueSize;
+  }
+
+  /**
+   * What happens when the inbound queue is full. BLOCK holds up the shared connection's callback
+   * thread, and with it every other block on that connection, so it is opt-in.
+   * 
+   * @return InboundDispatcher.Overflow
+   */
+  public InboundDispatcher.Overflow getInboundOverflow() {
+    return inboundOverflow;
+  }
+
+  /**
+   * How long the connection waits for inbound queue space under the block policy.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getInboundBlockTimeout() {
+    return inboundBlockTimeout;
+  }
+
+  /**
+   * Most messages handed to onMessagesReceived at once; 1 delivers messages one at a time.
+   * 
+   * @return int
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Longest a message waits for its batch to fill before the batch is delivered anyway.
+   * 
+   * @return long <strong>microseconds</strong>
+   */
+  public long getBatchDelay() {
+    return batchDelay;
+  }
+
+  public void setBatchDelay(long batchDelay) {
+    this.batchDelay = batchDelay;
+  }
+
+  /**
+   * How many queues, each drained by its own task, the block's messages are spread across.
+   * 
+   * @return int
+   */
+  public int getLanes() {
+    return lanes;
+  }
+
+  public void setLanes(int lanes) {
+    this.lanes = lanes;
+  }
+
+  /**
+   * Capacity of each lane's queue, inboundQueueSize unless set.
+   * 
+   * @return int
+   */
+  public int getLaneQueueSize() {
+    return laneQueueSize > 0 ? laneQueueSize : inboundQueueSize;
+  }
+
+  public void setLaneQueueSize(int laneQueueSize) {
+    this.laneQueueSize = laneQueueSize;
+  }
+
+  /**
+   * What picks a message's lane: "topic", or "level:N" for the Nth level of the topic.
+   * 
+   * @return String
+   */
+  public String getLaneKey() {
+    return laneKey;
+  }
+
+  public void setLaneKey(String laneKey) {
+    this.laneKey = laneKey;
+  }
+
+  /**
+   * @return the topic level laneKey picks, counting from 1, or 0 for the whole topic
+   */
+  public int getLaneKeyLevel() {
+    if (laneKey.equals("topic"))
+      return 0;
+    if (laneKey.startsWith("level:")) {
+      try {
+        int level = Integer.parseInt(laneKey.substring(6).trim());
+        if (level > 0)
+          return level;
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    throw new IllegalArgumentException("laneKey must be topic or level:N, not " + laneKey);
+  }
+
+  /**
+   * Which inbound messages are checked for repeats before reaching the handler.
+   * 
+   * @return Deduplicator.Mode
+   */
+  public Deduplicator.Mode getDedup() {
+    return dedup;
+  }
+
+  public void setDedup(Deduplicator.Mode dedup) {
+    this.dedup = dedup;
+  }
+
+  /**
+   * How long a message is remembered for deduplication, at least.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getDedupWindow() {
+    return dedupWindow;
+  }
+
+  public void setDedupWindow(long dedupWindow) {
+    this.dedupWindow = dedupWindow;
+  }
+
+  /**
+   * Messages per dedupWindow the deduplication filters are sized for.
+   * 
+   * @return int
+   */
+  public int getDedupCapacity() {
+    return dedupCapacity;
+  }
+
+  public void setDedupCapacity(int dedupCapacity) {
+    this.dedupCapacity = dedupCapacity;
+  }
+
+  /**
+   * Whether messages between this block and other local-delivery blocks on the same broker are
+   * handed over in-process.
+   * 
+   * @return boolean
+   */
+  public boolean isLocalDelivery() {
+    return localDelivery;
+  }
+
+  public void setLocalDelivery(boolean localDelivery) {
+    this.localDelivery = localDelivery;
+  }
+
+  /**
+   * Whether a local-delivery block's publishes also go to the broker, for subscribers outside
+   * this process.
+   * 
+   * @return boolean
+   */
+  public boolean isForwardToBroker() {
+    return forwardToBroker;
+  }
+
+  public void setForwardToBroker(boolean forwardToBroker) {
+    this.forwardToBroker = forwardToBroker;
+  }
+
+  /**
+   * Where the block's connection keeps unacknowledged QoS 1 and 2 messages. With FILE the
+   * connection resumes its session on restart instead of starting a clean one.
+   * 
+   * @return SharedConnection.Persistence
+   */
+  public SharedConnection.Persistence getPersistence() {
+    return persistence;
+  }
+
+  public void setPersistence(SharedConnection.Persistence persistence) {
+    this.persistence = persistence;
+  }
+
+  public String getPersistenceDir() {
+    return persistenceDir;
+  }
+
+  public void setPersistenceDir(String persistenceDir) {
+    this.persistenceDir = persistenceDir;
+  }
+
+  /**
+   * Size of each file persistence segment.
+   * 
+   * @return int <strong>bytes</strong>
+   */
+  public int getPersistenceSegmentSize() {
+    return persistenceSegmentSize;
+  }
+
+  /**
+   * How much unacknowledged data file persistence holds before publishes fail.
+   * 
+   * @return long <strong>bytes</strong>
+   */
+  public long getPersistenceMaxBytes() {
+    return persistenceMaxBytes;
+  }
+
+  /**
+   * Delay before the first reconnect attempt; it doubles with each failed attempt.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getReconnectMinDelay() {
+    return reconnectMinDelay;
+  }
+
+  public void setReconnectMinDelay(long reconnectMinDelay) {
+    this.reconnectMinDelay = reconnectMinDelay;
+  }
+
+  /**
+   * Longest delay between reconnect attempts.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getReconnectMaxDelay() {
+    return reconnectMaxDelay;
+  }
+
+  public void setReconnectMaxDelay(long reconnectMaxDelay) {
+    this.reconnectMaxDelay = reconnectMaxDelay;
+  }
+
+  /**
+   * Topic filters whose publishes are last-value-wins.
+   * 
+   * @return the filters, or null if nothing is conflated
+   */
+  public String[] getConflateTopics() {
+    return conflateTopics;
+  }
+
+  public void setConflateTopics(String[] conflateTopics) {
+    this.conflateTopics = conflateTopics;
+  }
+
+  /**
+   * How long conflated publishes are held so only the latest per topic is sent; 0 to only
+   * conflate while the connection is backed up.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getConflateWindow() {
+    return conflateWindow;
+  }
+
+  public void setConflateWindow(long conflateWindow) {
+    this.conflateWindow = conflateWindow;
+  }
+
+  /**
+   * Codec names by topic filter, in the order they were configured. The first matching filter
+   * decides a topic's codec.
+   * 
+   * @return Map
+   */
+  public Map<String, String> getCodecs() {
+    return codecs;
+  }
+
+  /**
+   * @param filter
+   * @param codec - string, json, binary, a service name or a PayloadCodec class name
+   */
+  public void setCodec(String filter, String codec) {
+    codecs.put(filter, codec);
+  }
+
+  /**
+   * Codec for topics no codecs filter matches.
+   * 
+   * @return String
+   */
+  public String getDefaultCodec() {
+    return defaultCodec;
+  }
+
+  public void setDefaultCodec(String defaultCodec) {
+    this.defaultCodec = defaultCodec;
   }
 
   public Properties getProperties() {
@@ -1,134 +1,355 @@
 package me.kevinthorne.MQTTBlocks.blocks;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.Date;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import me.kevinthorne.MQTTBlocks.BlockManager;
 
+/**
+ * Hot loads block jars from BlockManager.blockLocation. The directory is watched rather than
+ * scanned: a jar is only loaded once it has stopped changing for the debounce period, and only if
+ * its SHA-256 differs from the copy already loaded. Settled jars are loaded in parallel on the
+ * scheduler's workers. The jar files themselves are never modified.
+ *
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ * <li>mqttblocks.loader.debounce - quiet period before a jar is loaded, in ms (default 500)</li>
+ * </ul>
+ */
 public class BlockLoader extends MQTTBlock {
 
-  private Date started;
+  public static final String DEBOUNCE_PROPERTY = "mqttblocks.loader.debounce";
+
+  private static final String JAR_SUFFIX = ".jar";
+
+  private Path directory;
+  private WatchService watcher;
+  private long debounceNanos;
 
-  private boolean firstLoop = true;
+  /** Jars that changed recently, only touched from update() */
+  private final Map<Path, Pending> pending = new HashMap<>();
+  /** Jars currently being hashed or loaded */
+  private final Set<Path> loading = ConcurrentHashMap.newKeySet();
+  private final Map<Path, Snapshot> loaded = new ConcurrentHashMap<>();
+  /** Jars whose last load failed, so scanning doesn't retry them until they change */
+  private final Map<Path, Snapshot> failed = new ConcurrentHashMap<>();
+  /** Names of the blocks each jar added, so a reload also removes instances it no longer has */
+  private final Map<Path, List<String>> jarBlocks = new HashMap<>();
 
   @Override
   public void onEnable() {
-    started = new Date();
+    debounceNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(DEBOUNCE_PROPERTY, 500));
+    directory = BlockManager.blockLocation.toPath();
+    try {
+      watcher = directory.getFileSystem().newWatchService();
+      directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    } catch (IOException | UnsupportedOperationException e) {
+      logWarn("Couldn't watch {}, falling back to scanning it", directory);
+      watcher = null;
+    }
+    // Jars already present are loaded on the first update, without waiting out the debounce
+    scan(System.nanoTime() - debounceNanos);
     BlockManager.logInfo(this, "Block Loader Daemon Started");
   }
 
   @Override
   public void onDisable() {
+    if (watcher != null) {
+      try {
+        watcher.close();
+      } catch (IOException ignored) {
+      }
+    }
     BlockManager.logInfo(this, "Block Loader Daemon Stopped");
   }
 
-  public void run() {
-    this.name = getBlockConfig().getName();
-    try {
-      onEnable();
-      setRunning(true);
-    } catch (Exception e) {
-      e.printStackTrace();
+  @Override
+  public void update() {
+    getParent().getClassLoaders().checkLeaks();
+    if (watcher == null)
+      scan(System.nanoTime());
+    else
+      pollEvents();
+
+    for (final Path jar : settled()) {
+      getParent().getScheduler().execute(new Runnable() {
+        @Override
+        public void run() {
+          load(jar);
+        }
+      });
     }
-    while (isRunning()) {
-      update();
-      try {
-        Thread.sleep(getSleepTime() * 100);
-      } catch (InterruptedException ignored) {
+  }
+
+  /**
+   * Drains the watch key without blocking, marking changed jars as pending.
+   */
+  private void pollEvents() {
+    WatchKey key;
+    while ((key = watcher.poll()) != null) {
+      long now = System.nanoTime();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) {
+          scan(now);
+          continue;
+        }
+        Path jar = directory.resolve((Path) event.context());
+        if (!jar.getFileName().toString().endsWith(JAR_SUFFIX))
+          continue;
+        if (event.kind() == ENTRY_DELETE) {
+          pending.remove(jar);
+          loaded.remove(jar);
+          failed.remove(jar);
+        } else {
+          touch(jar, now);
+        }
+      }
+      if (!key.reset()) {
+        logError("Lost watch on {}, falling back to scanning it", directory);
+        watcher = null;
+        return;
       }
     }
+  }
+
+  /**
+   * Marks every jar whose size or modification time differs from the loaded copy as pending.
+   *
+   * @param now - time to record as the jar's last change
+   */
+  private void scan(long now) {
+    try (DirectoryStream<Path> jars = Files.newDirectoryStream(directory, "*" + JAR_SUFFIX)) {
+      for (Path jar : jars) {
+        Snapshot snapshot = failed.get(jar);
+        if (snapshot == null)
+          snapshot = loaded.get(jar);
+        if (!pending.containsKey(jar) && (snapshot == null || !snapshot.sameAttributes(jar)))
+          touch(jar, now);
+      }
+    } catch (IOException e) {
+      logError("Couldn't list {}", directory);
+    }
+  }
+
+  private void touch(Path jar, long now) {
+    Pending entry = pending.get(jar);
+    if (entry == null)
+      pending.put(jar, new Pending(jar, now));
+    else
+      entry.touch(jar, now);
+  }
+
+  /**
+   * @return pending jars that haven't changed for the debounce period and aren't being loaded
+   */
+  private List<Path> settled() {
+    List<Path> ready = new ArrayList<>();
+    long now = System.nanoTime();
+    Iterator<Map.Entry<Path, Pending>> entries = pending.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Path, Pending> entry = entries.next();
+      Path jar = entry.getKey();
+      if (!Files.exists(jar)) {
+        entries.remove();
+        continue;
+      }
+      if (entry.getValue().changed(jar)) {
+        entry.getValue().touch(jar, now);
+        continue;
+      }
+      if (now - entry.getValue().lastChange < debounceNanos || !loading.add(jar))
+        continue;
+      entries.remove();
+      ready.add(jar);
+    }
+    return ready;
+  }
+
+  /**
+   * Hashes a settled jar and registers its block if the content is new. The jar only counts as
+   * loaded once its blocks are added; one that fails is retried when it next changes.
+   *
+   * @param jar
+   */
+  private void load(Path jar) {
+    Snapshot snapshot = null;
     try {
-      onDisable();
-    } catch (Exception e) {
+      snapshot = new Snapshot(jar);
+      Snapshot previous = loaded.get(jar);
+      if (previous != null && Arrays.equals(previous.hash, snapshot.hash)) {
+        failed.remove(jar);
+        return;
+      }
+      if (register(jar.toFile())) {
+        loaded.put(jar, snapshot);
+        failed.remove(jar);
+      } else {
+        failed.put(jar, snapshot);
+        logWarn("\"{}\" wasn't loaded, it will be retried once it changes", jar.getFileName());
+      }
+    } catch (IOException e) {
+      logError("Couldn't read \"{}\": {}", jar.getFileName(), e);
+    } catch (RuntimeException e) {
+      logError("Couldn't load \"{}\", it will be retried once it changes: {}", jar.getFileName(),
+          e);
       e.printStackTrace();
+      if (snapshot != null)
+        failed.put(jar, snapshot);
+    } finally {
+      loading.remove(jar);
     }
   }
 
-  @Override
-  public void update() {
-    // ComponentManager.logInfo(this, "Checking for new components...");
-
-    File[] jars = BlockManager.blockLocation.listFiles();
-
-    for (File jar : jars) {
-      // System.out.println("[started: " + started.toString()+ "] - " + jar.getName() + " - ["+new
-      // Date(jar.lastModified()).toString()+"]");
-      // System.out.println(started.before(new Date(jar.lastModified())));
-      if (started.before(new Date(jar.lastModified())) || firstLoop) {
-        firstLoop = false;
-        // System.out.println("Found jar file after start date, adding");
-        try {
-          JarFile jarFile = new JarFile(jar);
-          BlockConfigurationFile config;
-          try {
-             config = new BlockConfigurationFile(
-                jarFile.getInputStream(jarFile.getJarEntry("config.properties")));
-          } catch (NullPointerException ne) {
-            logError("Couldn't find config.properties for \"" + jar.getName() + "\"");
-            continue;
-          }
+  /**
+   * Loads a jar's block in a class loader of its own, replacing the running block of the same
+   * name. A template with instances adds one block per instance, all sharing the loader and its
+   * classes. The loader is closed again on every path that doesn't end with a block added.
+   *
+   * @param jar
+   * @return true if a block was added, otherwise the reason has been logged
+   */
+  private boolean register(File jar) {
+    BlockClassLoaders loaders = getParent().getClassLoaders();
+    BlockClassLoader cl = null;
+    boolean added = false;
+    try (JarFile jarFile = new JarFile(jar)) {
+      JarEntry entry = jarFile.getJarEntry("config.properties");
+      if (entry == null) {
+        logError("Couldn't find config.properties for \"{}\"", jar.getName());
+        return false;
+      }
+      BlockConfigurationFile config;
+      try (InputStream in = jarFile.getInputStream(entry)) {
+        config = new BlockConfigurationFile(in);
+      } catch (IllegalArgumentException e) {
+        logError("Bad config.properties in \"{}\": {}", jar.getName(), e.getMessage());
+        return false;
+      }
+      if (config.getInstancesFile() != null) {
+        JarEntry instancesEntry = jarFile.getJarEntry(config.getInstancesFile());
+        if (instancesEntry == null) {
+          logError("Couldn't find {} for \"{}\"", config.getInstancesFile(), jar.getName());
+          return false;
+        }
+        try (InputStream in = jarFile.getInputStream(instancesEntry)) {
+          Properties instances = new Properties();
+          instances.load(in);
+          config.addInstances(instances);
+        }
+      }
+      List<BlockConfigurationFile> configs;
+      try {
+        configs = config.getInstances();
+      } catch (IllegalArgumentException e) {
+        logError("Bad instance config in \"{}\": {}", jar.getName(), e.getMessage());
+        return false;
+      }
 
-          // System.out.println("Loaded config");
-
-          URL[] urls = {new URL("jar:file:" + jar + "!/")};
-          URLClassLoader cl = URLClassLoader.newInstance(urls);
-
-          Class<?> jarClass;
-          try {
-            jarClass = Class.forName(config.getMain(), true, cl);
-          } catch (ClassNotFoundException ex) {
-            logError("Couldn't find main for \"" + jar.getName() + "\" reload");
-            continue;
-          } catch (NullPointerException ne) {
-            logError("Couldn't find main for \"" + jar.getName() + "\" reload");
-            logError("\tconfig Main Method: " + config.getMain());
-            logError("\tClass Loader: " + cl);
-            continue;
+      cl = loaders.create(config.getName(), jar.toPath(), jarFile);
+
+      Class<?> jarClass;
+      try {
+        jarClass = Class.forName(config.getMain(), true, cl);
+      } catch (ClassNotFoundException ex) {
+        logError("Couldn't find main {} for \"{}\" reload", config.getMain(), jar.getName());
+        return false;
+      }
+      Class<? extends MQTTBlock> componentClass;
+      try {
+        componentClass = jarClass.asSubclass(MQTTBlock.class);
+      } catch (ClassCastException ex) {
+        logError("Couldn't find Component subclass for {}", jar.getName());
+        return false;
+      }
+      try {
+        List<MQTTBlock> comps = new ArrayList<>(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+          comps.add(componentClass.getDeclaredConstructor().newInstance());
+        }
+        List<String> names = new ArrayList<>(configs.size());
+        // Jars load in parallel, only the swap in the manager is serialized
+        synchronized (this) {
+          List<String> previous = jarBlocks.get(jar.toPath());
+          if (previous != null) {
+            for (String name : previous) {
+              replace(name);
+            }
           }
-          // System.out.println("Finding component subclass");
-          Class<? extends MQTTBlock> componentClass;
-          try {
-            componentClass = jarClass.asSubclass(MQTTBlock.class);
-          } catch (ClassCastException ex) {
-            logError("Couldn't find Component subclass for " + jar.getName());
-            continue;
+          for (BlockConfigurationFile instance : configs) {
+            replace(instance.getName());
           }
-          // System.out.println("Instantiating and registering");
-          try {
-            if (getParent().getBlocks().containsKey(config.getName())) {
-              // System.out.println("Removing Old Component...");
-              getParent().disableBlock(config.getName());
-              getParent().removeBlock(config.getName());
+          for (int i = 0; i < configs.size(); i++) {
+            String name = configs.get(i).getName();
+            if (names.contains(name)) {
+              logError("Duplicate instance name \"{}\" in \"{}\"", name, jar.getName());
+              continue;
             }
-            // System.out.print("Instantiating...");
-            MQTTBlock comp = componentClass.newInstance();
-            // System.out.println(" Done");
-            // System.out.println("Registering...");
-            getParent().addBlock(config, comp);
-            getParent().enableBlock(config.getName());
-            logInfo("Enabled new block \"" + config.getName() + "\"");
-          } catch (InstantiationException | IllegalAccessException e1) {
-            logError("Couldn't instantiate \"" + jar.getName() + "\"");
-            e1.printStackTrace();
-            continue;
+            getParent().addBlock(configs.get(i), comps.get(i));
+            loaders.activate(cl);
+            added = true;
+            names.add(name);
+          }
+          jarBlocks.put(jar.toPath(), names);
+          for (String name : names) {
+            getParent().enableBlock(name);
           }
-          jar.setLastModified(started.getTime());
-          // System.out.println("File completed");
-          jarFile.close();
-        } catch (IOException e) {
-          logger.severe("Couldn't find config for " + jar.getName());
-          continue;
         }
-      } else {
-        continue;
+        if (configs.get(0) == config)
+          logInfo("Enabled new block \"{}\"", config.getName());
+        else
+          logInfo("Enabled {} instance(s) of \"{}\": {}", names.size(), config.getName(), names);
+        logInfo(loaders.getMetaspaceReport());
+      } catch (ReflectiveOperationException e1) {
+        logError("Couldn't instantiate \"{}\"", jar.getName());
+        e1.printStackTrace();
       }
+    } catch (IOException e) {
+      logError("Couldn't find config for {}: {}", jar.getName(), e);
+    } finally {
+      if (cl != null && !added)
+        loaders.discard(cl);
     }
+    return added;
   }
 
+  /**
+   * Stops and removes a running block ahead of its replacement.
+   *
+   * @param name
+   */
+  private void replace(String name) {
+    if (getParent().getBlocks().containsKey(name)) {
+      getParent().disableBlock(name);
+      getParent().removeBlock(name);
+    }
+  }
 
   @Override
   public boolean onMessageReceived(String topic, Object mqttMessage, String message, int qos,
@@ -136,4 +357,74 @@ public class BlockLoader extends MQTTBlock {
     return true;
   }
 
+  /**
+   * A jar that changed recently, with the size and modification time it had when last seen.
+   */
+  private static class Pending {
+    private long lastChange;
+    private long size = -1;
+    private long modified = -1;
+
+    Pending(Path jar, long now) {
+      touch(jar, now);
+    }
+
+    void touch(Path jar, long now) {
+      lastChange = now;
+      try {
+        size = Files.size(jar);
+        modified = Files.getLastModifiedTime(jar).toMillis();
+      } catch (IOException e) {
+        size = -1;
+      }
+    }
+
+    /**
+     * Catches writes the watch service hasn't reported yet.
+     */
+    boolean changed(Path jar) {
+      try {
+        return size != Files.size(jar) || modified != Files.getLastModifiedTime(jar).toMillis();
+      } catch (IOException e) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * The attributes and SHA-256 of a loaded jar.
+   */
+  private static class Snapshot {
+    private final long size;
+    private final long modified;
+    private final byte[] hash;
+
+    Snapshot(Path jar) throws IOException {
+      this.size = Files.size(jar);
+      this.modified = Files.getLastModifiedTime(jar).toMillis();
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      byte[] buffer = new byte[8192];
+      try (InputStream in = Files.newInputStream(jar)) {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
+      }
+      this.hash = digest.digest();
+    }
+
+    boolean sameAttributes(Path jar) {
+      try {
+        return size == Files.size(jar) && modified == Files.getLastModifiedTime(jar).toMillis();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  }
+
 }
@@ -0,0 +1,144 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import me.kevinthorne.MQTTBlocks.codec.CodecException;
+import me.kevinthorne.MQTTBlocks.codec.CodecRegistry;
+
+/**
+ * Inbound message handed to {@link MQTTBlock#onMessageReceived(BlockMessage)}. The payload is
+ * exposed as the bytes Paho received, without copying or decoding; the String form is only
+ * decoded if asked for.
+ *
+ * <p>
+ * Each block reuses one instance, so it is only valid for the duration of the callback. Copy what
+ * you need to keep.
+ */
+public final class BlockMessage {
+
+  public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final CodecRegistry codecs;
+
+  private String topic;
+  private MqttMessage message;
+  private byte[] payload = EMPTY;
+  private boolean fromHome;
+
+  private ByteBuffer view;
+  private String text;
+  private Object value;
+  private boolean decoded;
+
+  BlockMessage(CodecRegistry codecs) {
+    this.codecs = codecs;
+  }
+
+  void reset(String topic, MqttMessage message, boolean fromHome) {
+    this.topic = topic;
+    this.message = message;
+    this.payload = message.getPayload();
+    this.fromHome = fromHome;
+    this.view = null;
+    this.text = null;
+    this.value = null;
+    this.decoded = false;
+  }
+
+  void clear() {
+    this.topic = null;
+    this.message = null;
+    this.payload = EMPTY;
+    this.view = null;
+    this.text = null;
+    this.value = null;
+    this.decoded = false;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  /**
+   * @return read-only view of the payload, created on first call
+   */
+  public ByteBuffer getPayload() {
+    if (view == null)
+      view = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    else
+      view.rewind();
+    return view;
+  }
+
+  /**
+   * The payload array itself, no copy is made. <strong>Do not modify it.</strong>
+   *
+   * @return byte[]
+   */
+  public byte[] getPayloadArray() {
+    return payload;
+  }
+
+  public int getPayloadLength() {
+    return payload.length;
+  }
+
+  public byte getByte(int index) {
+    return payload[index];
+  }
+
+  /**
+   * @return the payload decoded as UTF-8; decoded once, on first call
+   */
+  public String getString() {
+    if (text == null)
+      text = new String(payload, CHARSET);
+    return text;
+  }
+
+  /**
+   * @return the payload decoded by the codec registered for this topic; decoded once, on first
+   *         call
+   * @throws CodecException if the payload isn't valid for the codec
+   */
+  public Object getValue() throws CodecException {
+    if (!decoded) {
+      value = codecs.decode(topic, payload);
+      decoded = true;
+    }
+    return value;
+  }
+
+  /**
+   * @return the Paho message this view wraps
+   */
+  public MqttMessage getMqttMessage() {
+    return message;
+  }
+
+  public int getQos() {
+    return message.getQos();
+  }
+
+  public boolean isDuplicate() {
+    return message.isDuplicate();
+  }
+
+  public boolean isRetained() {
+    return message.isRetained();
+  }
+
+  /**
+   * @return true if this block published the message itself
+   */
+  public boolean isFromHome() {
+    return fromHome;
+  }
+
+}
@@ -0,0 +1,153 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import me.kevinthorne.MQTTBlocks.connection.SharedConnection;
+import me.kevinthorne.MQTTBlocks.connection.TopicTrie;
+
+/**
+ * Last-value-wins publishing for a block's conflateTopics. Publishes are held for conflateWindow
+ * ms and only the latest payload per topic is then queued; the pipeline keeps replacing it while
+ * the connection is backed up. With no window, publishes are only conflated in the pipeline.
+ */
+class Conflater {
+
+  /** Topics whose filter match is remembered, so matching isn't repeated on every publish */
+  private static final int MATCH_CACHE_SIZE = 1024;
+
+  private final MQTTBlock block;
+  private final String[] filters;
+  private final long window;
+  private final Map<String, Boolean> matched = new ConcurrentHashMap<>();
+
+  /* Guarded by this */
+  private final Map<String, Slot> held = new LinkedHashMap<>();
+  private boolean scheduled;
+
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  Conflater(MQTTBlock block, BlockConfigurationFile config) {
+    this.block = block;
+    this.filters = config.getConflateTopics();
+    this.window = config.getConflateWindow();
+  }
+
+  /**
+   * @param topic
+   * @return true if publishes on the topic are conflated
+   */
+  boolean matches(String topic) {
+    if (filters == null)
+      return false;
+    Boolean cached = matched.get(topic);
+    if (cached != null)
+      return cached;
+    boolean result = false;
+    for (String filter : filters) {
+      if (TopicTrie.matches(filter, topic)) {
+        result = true;
+        break;
+      }
+    }
+    if (matched.size() < MATCH_CACHE_SIZE)
+      matched.put(topic, result);
+    return result;
+  }
+
+  /**
+   * @param connection
+   * @param topic
+   * @param message
+   * @return completes once this message, or the one that replaced it, is acknowledged
+   */
+  CompletableFuture<IMqttDeliveryToken> publish(SharedConnection connection, String topic,
+      MqttMessage message) {
+    if (window <= 0)
+      return connection.getPipeline().publish(block, topic, message, true, block.getLoopback());
+    Slot slot;
+    boolean unscheduled = false;
+    synchronized (this) {
+      slot = held.get(topic);
+      if (slot != null) {
+        slot.message = message;
+        block.getMetrics().recordConflated();
+        return slot.future;
+      }
+      slot = new Slot(message);
+      held.put(topic, slot);
+      if (!scheduled) {
+        scheduled = true;
+        unscheduled = block.getParent().getScheduler().schedule(flush, window) == null;
+      }
+    }
+    // The scheduler is shutting down, so nothing would ever flush what is held
+    if (unscheduled)
+      flush();
+    return slot.future;
+  }
+
+  /**
+   * Queues the latest message for every held topic.
+   */
+  void flush() {
+    List<Map.Entry<String, Slot>> due;
+    synchronized (this) {
+      scheduled = false;
+      due = new ArrayList<>(held.entrySet());
+      held.clear();
+    }
+    SharedConnection connection = block.getConnection();
+    for (Map.Entry<String, Slot> entry : due) {
+      final Slot slot = entry.getValue();
+      if (connection == null) {
+        block.getMetrics().recordPublishFailure();
+        slot.future.completeExceptionally(
+            new IllegalStateException(block.getBlockName() + " has no client"));
+        continue;
+      }
+      connection.getPipeline()
+          .publish(block, entry.getKey(), slot.message, true, block.getLoopback())
+          .whenComplete(new BiConsumer<IMqttDeliveryToken, Throwable>() {
+            @Override
+            public void accept(IMqttDeliveryToken token, Throwable cause) {
+              if (cause == null)
+                slot.future.complete(token);
+              else
+                slot.future.completeExceptionally(cause);
+            }
+          });
+    }
+  }
+
+  synchronized int getHeld() {
+    return held.size();
+  }
+
+  /**
+   * The latest message held for a topic and the future every publish it replaced was given.
+   */
+  private static class Slot {
+
+    private final CompletableFuture<IMqttDeliveryToken> future = new CompletableFuture<>();
+    private MqttMessage message;
+
+    Slot(MqttMessage message) {
+      this.message = message;
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Drops repeated inbound messages before they are queued for the block's handler. A message is a
+ * repeat if a message with the same topic and payload arrived within dedupWindow ms, so it suits
+ * streams whose payloads carry a sequence number or timestamp.
+ *
+ * <p>
+ * The last 1024 fingerprints within the window are kept exactly, in a ring indexed by an open
+ * addressed table. Older ones fall back to two generations of Bloom filter, each sized for
+ * dedupCapacity messages; the older generation is cleared and reused whenever the current one has
+ * covered a window or filled up, so memory stays fixed and a fingerprint is remembered for one to
+ * two windows, or less once more than dedupCapacity messages arrive in one. The filters are sized
+ * so about one new message in 5,000 is mistaken for a repeat.
+ */
+public class Deduplicator {
+
+  /**
+   * Which messages are checked against the ones seen before. Every message is remembered.
+   */
+  public enum Mode {
+    /** No deduplication */
+    OFF,
+    /** Only messages the broker flagged as redelivered */
+    MARKED,
+    /** Every message, which also catches unflagged redeliveries after a broker failover */
+    ALL;
+
+    public static Mode parse(String value) {
+      return valueOf(value.trim().toUpperCase());
+    }
+  }
+
+  /** Fingerprints kept exactly, the most recent ones */
+  static final int EXACT_SIZE = 1024;
+
+  /** -ln(0.0001) / ln(2)^2, bits per message for a 0.01% false positive rate */
+  private static final double BITS_PER_MESSAGE = 19.17;
+  private static final int HASHES = 13;
+
+  private final boolean all;
+  private final long windowNanos;
+  private final int capacity;
+
+  /* Exact window: fingerprints and arrival times in order, and an index of them for lookups */
+  private final long[] recent = new long[EXACT_SIZE];
+  private final long[] arrived = new long[EXACT_SIZE];
+  private final FingerprintIndex index = new FingerprintIndex(recent);
+  private int oldest;
+  private int count;
+
+  /* Bloom generations */
+  private final long[][] generations;
+  private int current;
+  private int added;
+  private long rotated;
+
+  /**
+   * @param config
+   */
+  Deduplicator(BlockConfigurationFile config) {
+    this.all = config.getDedup() == Mode.ALL;
+    this.windowNanos = config.getDedupWindow() * 1000000L;
+    this.capacity = Math.max(1, config.getDedupCapacity());
+    long bits = Math.max(64, (long) Math.ceil(capacity * BITS_PER_MESSAGE));
+    int words = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+    this.generations = new long[][] {new long[words], new long[words]};
+    this.rotated = System.nanoTime();
+  }
+
+  /**
+   * Remembers a message and says whether it was seen before.
+   *
+   * @param topic
+   * @param message
+   * @return true if the message is a repeat and should be dropped
+   */
+  synchronized boolean isRepeat(String topic, MqttMessage message) {
+    long fingerprint = EchoSuppressionCache.fingerprint(topic, message.getPayload());
+    long now = System.nanoTime();
+    expire(now);
+    boolean check = all || message.isDuplicate();
+    if (check && (index.contains(fingerprint) || inBloom(fingerprint)))
+      return true;
+    remember(fingerprint, now);
+    return false;
+  }
+
+  /**
+   * Drops exact fingerprints older than the window and rotates the Bloom generations when due.
+   *
+   * @param now
+   */
+  private void expire(long now) {
+    while (count > 0 && (now - arrived[oldest] >= windowNanos || count == EXACT_SIZE)) {
+      index.remove(oldest);
+      oldest = (oldest + 1) % EXACT_SIZE;
+      count--;
+    }
+    if (now - rotated >= 2 * windowNanos) {
+      // Idle for two windows, nothing in either generation is wanted any more
+      rotate(now);
+      rotate(now);
+    } else if (now - rotated >= windowNanos || added >= capacity) {
+      rotate(now);
+    }
+  }
+
+  private void remember(long fingerprint, long now) {
+    int slot = (oldest + count) % EXACT_SIZE;
+    recent[slot] = fingerprint;
+    arrived[slot] = now;
+    count++;
+    index.add(slot);
+
+    long[] bits = generations[current];
+    long length = bits.length * 64L;
+    long hash = FingerprintIndex.spread(fingerprint);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < HASHES; i++) {
+      long bit = ((h1 + i * (long) h2) & Long.MAX_VALUE) % length;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+    added++;
+  }
+
+  private boolean inBloom(long fingerprint) {
+    for (long[] bits : generations) {
+      if (inBloom(bits, fingerprint))
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean inBloom(long[] bits, long fingerprint) {
+    long length = bits.length * 64L;
+    long hash = FingerprintIndex.spread(fingerprint);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < HASHES; i++) {
+      long bit = ((h1 + i * (long) h2) & Long.MAX_VALUE) % length;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Makes the older generation the current one, cleared.
+   *
+   * @param now
+   */
+  private void rotate(long now) {
+    current ^= 1;
+    long[] bits = generations[current];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = 0;
+    }
+    added = 0;
+    rotated = now;
+  }
+
+}
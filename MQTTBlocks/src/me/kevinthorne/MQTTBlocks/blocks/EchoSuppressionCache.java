@@ -0,0 +1,143 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+/**
+ * Remembers fingerprints of the messages a block recently published so the copies the broker
+ * sends back can be flagged fromHome. Each entry is a 64-bit hash of topic and payload plus an
+ * expiry; several publishes to one topic can be outstanding at once. Entries live in a fixed ring,
+ * so memory stays bounded however many topics a block writes, the oldest entry being overwritten
+ * first. An open addressed table of ring slots, keyed by fingerprint, makes lookups constant time.
+ */
+public class EchoSuppressionCache {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final long[] fingerprints;
+  private final long[] expiries;
+  private final FingerprintIndex index;
+  private final long ttlNanos;
+  private int next;
+
+  /**
+   * @param capacity - most publishes remembered at once
+   * @param ttlMillis - how long to wait for the broker's copy
+   */
+  public EchoSuppressionCache(int capacity, long ttlMillis) {
+    this.fingerprints = new long[Math.max(1, capacity)];
+    this.expiries = new long[fingerprints.length];
+    this.index = new FingerprintIndex(fingerprints);
+    this.ttlNanos = ttlMillis * 1000000L;
+  }
+
+  /**
+   * Remembers a message this block is about to publish.
+   *
+   * @param topic
+   * @param payload
+   */
+  public void record(String topic, byte[] payload) {
+    record(topicHash(topic), payload);
+  }
+
+  /**
+   * Remembers a message this block is about to publish, on a topic hashed ahead of time.
+   *
+   * @param topicHash - from topicHash()
+   * @param payload
+   */
+  public void record(long topicHash, byte[] payload) {
+    long fingerprint = fingerprint(topicHash, payload);
+    long expiry = System.nanoTime() + ttlNanos;
+    synchronized (this) {
+      if (fingerprints[next] != 0)
+        index.remove(next);
+      fingerprints[next] = fingerprint;
+      expiries[next] = expiry;
+      index.add(next);
+      next = (next + 1) % fingerprints.length;
+    }
+  }
+
+  /**
+   * Checks an inbound message against the remembered publishes, forgetting the newest match.
+   *
+   * @param topic
+   * @param payload
+   * @return true if this block published the message
+   */
+  public boolean consume(String topic, byte[] payload) {
+    long fingerprint = fingerprint(topic, payload);
+    long now = System.nanoTime();
+    synchronized (this) {
+      int slot = index.newest(fingerprint, next);
+      // Older matches expire no later than the newest
+      if (slot < 0 || expiries[slot] - now <= 0)
+        return false;
+      index.remove(slot);
+      fingerprints[slot] = 0;
+      return true;
+    }
+  }
+
+  /**
+   * Forgets a remembered publish whose copy won't come back after all.
+   *
+   * @param topic
+   * @param payload
+   */
+  public void forget(String topic, byte[] payload) {
+    consume(topic, payload);
+  }
+
+  /**
+   * @return number of remembered publishes that haven't expired
+   */
+  public synchronized int size() {
+    long now = System.nanoTime();
+    int live = 0;
+    for (int i = 0; i < fingerprints.length; i++) {
+      if (fingerprints[i] != 0 && expiries[i] - now > 0)
+        live++;
+    }
+    return live;
+  }
+
+  public int getCapacity() {
+    return fingerprints.length;
+  }
+
+  /**
+   * FNV-1a over the topic's chars and the payload bytes. Never 0, which marks an empty slot.
+   *
+   * @param topic
+   * @param payload
+   * @return long
+   */
+  public static long fingerprint(String topic, byte[] payload) {
+    return fingerprint(topicHash(topic), payload);
+  }
+
+  /**
+   * The topic's part of a fingerprint, for callers publishing to one topic repeatedly.
+   *
+   * @param topic
+   * @return long
+   */
+  public static long topicHash(String topic) {
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < topic.length(); i++) {
+      hash = (hash ^ topic.charAt(i)) * FNV_PRIME;
+    }
+    return (hash ^ 0xff) * FNV_PRIME;
+  }
+
+  private static long fingerprint(long topicHash, byte[] payload) {
+    long hash = topicHash;
+    for (byte b : payload) {
+      hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+    }
+    hash = (hash ^ payload.length) * FNV_PRIME;
+    return hash == 0 ? 1 : hash;
+  }
+
+}
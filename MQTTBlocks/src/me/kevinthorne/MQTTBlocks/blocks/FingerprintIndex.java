@@ -0,0 +1,115 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+/**
+ * Open addressed index over a ring of message fingerprints, shared by EchoSuppressionCache and
+ * Deduplicator. The table holds ring slot + 1, 0 marking an empty entry, and probes linearly from
+ * the spread fingerprint. Entries for one fingerprint share a probe run, and removal shifts later
+ * entries back so lookups never need tombstones. Fingerprints are never 0.
+ */
+final class FingerprintIndex {
+
+  private final long[] ring;
+  private final int[] table;
+
+  /**
+   * @param ring - the owner's fingerprints, by slot; read, never written
+   */
+  FingerprintIndex(long[] ring) {
+    this.ring = ring;
+    this.table = new int[Integer.highestOneBit(ring.length * 4 - 1) << 1];
+  }
+
+  /**
+   * Indexes a ring slot once its fingerprint is written.
+   *
+   * @param slot
+   */
+  void add(int slot) {
+    int mask = table.length - 1;
+    int i = home(ring[slot]);
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = slot + 1;
+  }
+
+  /**
+   * Removes a ring slot, before its fingerprint is cleared or overwritten.
+   *
+   * @param slot
+   */
+  void remove(int slot) {
+    int mask = table.length - 1;
+    int i = home(ring[slot]);
+    while (table[i] != slot + 1) {
+      if (table[i] == 0)
+        return;
+      i = (i + 1) & mask;
+    }
+    table[i] = 0;
+    for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+      int home = home(ring[table[j] - 1]);
+      // Move the entry back if the freed slot lies between its home and where it sits
+      if (((j - home) & mask) >= ((j - i) & mask)) {
+        table[i] = table[j];
+        table[j] = 0;
+        i = j;
+      }
+    }
+  }
+
+  /**
+   * @param fingerprint
+   * @return true if an indexed slot holds the fingerprint
+   */
+  boolean contains(long fingerprint) {
+    int mask = table.length - 1;
+    for (int i = home(fingerprint); table[i] != 0; i = (i + 1) & mask) {
+      if (ring[table[i] - 1] == fingerprint)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param fingerprint
+   * @param next - the ring slot written next, just after the newest
+   * @return the most recently written indexed slot holding the fingerprint, or -1
+   */
+  int newest(long fingerprint, int next) {
+    int mask = table.length - 1;
+    int length = ring.length;
+    int found = -1;
+    int age = length;
+    for (int i = home(fingerprint); table[i] != 0; i = (i + 1) & mask) {
+      int slot = table[i] - 1;
+      if (ring[slot] != fingerprint)
+        continue;
+      int slotAge = (next - 1 - slot + length) % length;
+      if (slotAge < age) {
+        found = slot;
+        age = slotAge;
+      }
+    }
+    return found;
+  }
+
+  private int home(long fingerprint) {
+    return (int) spread(fingerprint) & (table.length - 1);
+  }
+
+  /**
+   * Murmur3's finalizer. FNV fingerprints of short, similar payloads differ in too few bits for
+   * table positions or Bloom filter hashes taken from them directly.
+   *
+   * @param fingerprint
+   * @return long
+   */
+  static long spread(long fingerprint) {
+    long z = fingerprint;
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return z ^ (z >>> 33);
+  }
+
+}
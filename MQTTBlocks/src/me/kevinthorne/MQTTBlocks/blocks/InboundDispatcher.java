@@ -0,0 +1,212 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+
+/**
+ * Decouples a block's handler from the connection's callback thread. Messages are queued in the
+ * block's own bounded InboundLanes and drained, in order, by a single task per lane on the
+ * scheduler's workers; a slow handler only backs up its own queues.
+ *
+ * <p>
+ * A block with more than one lane has its messages spread across them by lane key, the topic
+ * unless the block says otherwise. Messages with the same key stay in order, while different keys
+ * are handled in parallel, so the block's handlers must be thread-safe.
+ */
+public class InboundDispatcher {
+
+  /**
+   * What happens when a message arrives and the queue is full.
+   */
+  public enum Overflow {
+    /** Discard the oldest queued message */
+    DROP_OLDEST,
+    /** Discard the message that just arrived */
+    DROP_NEWEST,
+    /**
+     * Hold up the connection's callback thread until there is room, then drop the newest. Every
+     * block sharing the connection waits too.
+     */
+    BLOCK;
+
+    public static Overflow parse(String value) {
+      return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  private final MQTTBlock block;
+  private final InboundLane[] lanes;
+  private final Overflow overflow;
+  private final long blockTimeoutNanos;
+
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile long busySince = System.nanoTime();
+  private volatile long[] busyBaseline;
+
+  public InboundDispatcher(MQTTBlock block, BlockConfigurationFile config) {
+    this.block = block;
+    this.lanes = new InboundLane[Math.max(1, config.getLanes())];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new InboundLane(block, config);
+    }
+    this.busyBaseline = new long[lanes.length];
+    this.overflow = config.getInboundOverflow();
+    this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getInboundBlockTimeout());
+  }
+
+  /**
+   * Queues a message on its lane, applying the overflow policy if the lane is full.
+   *
+   * @param topic
+   * @param message
+   */
+  public void offer(String topic, MqttMessage message) {
+    InboundLane lane = lanes.length == 1 ? lanes[0] : lanes[laneFor(topic, message)];
+    InboundQueue queue = lane.queue;
+    if (!queue.offer(topic, message)) {
+      switch (overflow) {
+        case DROP_NEWEST:
+          drop(queue);
+          break;
+        case DROP_OLDEST:
+          while (!queue.offer(topic, message)) {
+            if (queue.poll(null))
+              drop(queue);
+          }
+          break;
+        case BLOCK:
+          if (!awaitSpace(lane, topic, message))
+            drop(queue);
+          break;
+      }
+    }
+    lane.schedule();
+  }
+
+  private int laneFor(String topic, MqttMessage message) {
+    Object key = block.getLaneKey(topic, message);
+    int hash = key == null ? 0 : key.hashCode();
+    hash ^= hash >>> 16;
+    return (hash & Integer.MAX_VALUE) % lanes.length;
+  }
+
+  private boolean awaitSpace(InboundLane lane, String topic, MqttMessage message) {
+    long deadline = System.nanoTime() + blockTimeoutNanos;
+    while (!lane.queue.offer(topic, message)) {
+      if (deadline - System.nanoTime() <= 0 || !block.isRunning())
+        return false;
+      lane.schedule();
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+    }
+    return true;
+  }
+
+  private void drop(InboundQueue queue) {
+    long count = dropped.incrementAndGet();
+    if (count % 1000 == 1)
+      BlockManager.logWarn(block, "Inbound queue full (" + queue.getCapacity() + "), " + count
+          + " message(s) dropped so far");
+  }
+
+  /**
+   * Starts draining the lanes, once messages that arrived while the block was enabling can be
+   * handled.
+   */
+  void resume() {
+    for (InboundLane lane : lanes) {
+      lane.schedule();
+    }
+  }
+
+  /**
+   * @return messages waiting to be handled, across all lanes
+   */
+  public int getDepth() {
+    int depth = 0;
+    for (InboundLane lane : lanes) {
+      depth += lane.queue.size();
+    }
+    return depth;
+  }
+
+  /**
+   * @return total capacity of the lanes
+   */
+  public int getCapacity() {
+    int capacity = 0;
+    for (InboundLane lane : lanes) {
+      capacity += lane.queue.getCapacity();
+    }
+    return capacity;
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getDelivered() {
+    long total = 0;
+    for (InboundLane lane : lanes) {
+      total += lane.getDelivered();
+    }
+    return total;
+  }
+
+  public int getLaneCount() {
+    return lanes.length;
+  }
+
+  /**
+   * @return messages waiting in each lane
+   */
+  public int[] getLaneDepths() {
+    int[] depths = new int[lanes.length];
+    for (int i = 0; i < lanes.length; i++) {
+      depths[i] = lanes[i].queue.size();
+    }
+    return depths;
+  }
+
+  /**
+   * @return messages handled by each lane
+   */
+  public long[] getLaneDelivered() {
+    long[] counts = new long[lanes.length];
+    for (int i = 0; i < lanes.length; i++) {
+      counts[i] = lanes[i].getDelivered();
+    }
+    return counts;
+  }
+
+  /**
+   * @return share of the time since the block was loaded, or since resetUtilization(), each lane's
+   *         drain task spent running, from 0 to 1
+   */
+  public double[] getLaneUtilization() {
+    long[] baseline = busyBaseline;
+    double elapsed = Math.max(1, System.nanoTime() - busySince);
+    double[] utilization = new double[lanes.length];
+    for (int i = 0; i < lanes.length; i++) {
+      utilization[i] = Math.min(1, (lanes[i].getBusyNanos() - baseline[i]) / elapsed);
+    }
+    return utilization;
+  }
+
+  /**
+   * Starts measuring lane utilization afresh.
+   */
+  public void resetUtilization() {
+    long[] baseline = new long[lanes.length];
+    for (int i = 0; i < lanes.length; i++) {
+      baseline[i] = lanes[i].getBusyNanos();
+    }
+    busyBaseline = baseline;
+    busySince = System.nanoTime();
+  }
+
+}
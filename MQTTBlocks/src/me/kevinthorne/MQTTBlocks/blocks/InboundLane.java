@@ -0,0 +1,140 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+
+/**
+ * One of a block's inbound queues and the single drain task that hands its messages, in order,
+ * to the block. A block has one lane unless it is configured with more.
+ *
+ * <p>
+ * With a batchSize above 1, drained messages are collected into the lane's MessageBatch, which is
+ * delivered when it is full or its first message has waited batchDelay microseconds.
+ */
+class InboundLane implements Runnable, InboundQueue.Sink {
+
+  /**
+   * Most messages handled per drain before yielding the worker to other blocks.
+   */
+  private static final int DRAIN_BATCH = 256;
+
+  private final MQTTBlock block;
+  final InboundQueue queue;
+
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final AtomicBoolean flushArmed = new AtomicBoolean();
+  private volatile boolean flushDue;
+  private final Runnable flush = new Runnable() {
+    @Override
+    public void run() {
+      flushArmed.set(false);
+      flushDue = true;
+      schedule();
+    }
+  };
+
+  /* Only touched by the drain task */
+  private final BlockMessage inbound;
+  private final MessageBatch batch;
+  private final long batchDelayNanos;
+  private long batchStarted;
+
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong busyNanos = new AtomicLong();
+
+  InboundLane(MQTTBlock block, BlockConfigurationFile config) {
+    this.block = block;
+    this.queue = new InboundQueue(config.getLaneQueueSize());
+    this.inbound = new BlockMessage(block.getCodecs());
+    this.batch = config.getBatchSize() > 1
+        ? new MessageBatch(config.getBatchSize(), block.getCodecs()) : null;
+    this.batchDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, config.getBatchDelay()));
+  }
+
+  void schedule() {
+    if (block.isEnabling())
+      return;
+    if ((!queue.isEmpty() || flushDue) && scheduled.compareAndSet(false, true))
+      block.getParent().getScheduler().execute(this);
+  }
+
+  /**
+   * Drains up to DRAIN_BATCH messages, then re-submits itself if more are waiting.
+   */
+  @Override
+  public void run() {
+    long start = System.nanoTime();
+    try {
+      if (block.isEnabling())
+        return;
+      flushDue = false;
+      for (int i = 0; i < DRAIN_BATCH && queue.poll(this); i++) {
+      }
+      if (batch != null && !batch.isEmpty()) {
+        long waited = System.nanoTime() - batchStarted;
+        if (waited >= batchDelayNanos)
+          deliverBatch();
+        else if (queue.isEmpty() && flushArmed.compareAndSet(false, true))
+          block.getParent().getScheduler().schedule(flush, batchDelayNanos - waited,
+              TimeUnit.NANOSECONDS);
+      }
+    } finally {
+      busyNanos.addAndGet(System.nanoTime() - start);
+      scheduled.set(false);
+    }
+    schedule();
+  }
+
+  @Override
+  public void accept(String topic, MqttMessage message) {
+    if (!block.isRunning())
+      return;
+    if (batch != null) {
+      if (batch.isEmpty())
+        batchStarted = System.nanoTime();
+      batch.add(topic, message, block.isEcho(topic, message));
+      if (batch.isFull())
+        deliverBatch();
+      return;
+    }
+    try {
+      block.dispatch(inbound, topic, message);
+      delivered.incrementAndGet();
+    } catch (Exception e) {
+      BlockManager.logError(block, "Error while handling message on " + topic);
+      e.printStackTrace();
+    }
+  }
+
+  private void deliverBatch() {
+    int size = batch.size();
+    try {
+      if (block.isRunning()) {
+        block.dispatch(batch);
+        delivered.addAndGet(size);
+      }
+    } catch (Exception e) {
+      BlockManager.logError(block, "Error while handling a batch of " + size + " message(s)");
+      e.printStackTrace();
+    } finally {
+      batch.clear();
+    }
+  }
+
+  long getDelivered() {
+    return delivered.get();
+  }
+
+  /**
+   * @return total time the drain task has spent running
+   */
+  long getBusyNanos() {
+    return busyNanos.get();
+  }
+
+}
@@ -0,0 +1,113 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Bounded lock-free ring buffer of inbound messages (Vyukov's array queue). Any thread may offer
+ * or poll; each slot carries a sequence number that tells producers and consumers whose turn it
+ * is, so neither side takes a lock and no node is allocated per message.
+ */
+public class InboundQueue {
+
+  /**
+   * Receives a polled message.
+   */
+  public interface Sink {
+    void accept(String topic, MqttMessage message);
+  }
+
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final String[] topics;
+  private final MqttMessage[] messages;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * @param capacity - rounded up to a power of two
+   */
+  public InboundQueue(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.mask = size - 1;
+    this.sequences = new AtomicLongArray(size);
+    this.topics = new String[size];
+    this.messages = new MqttMessage[size];
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @param topic
+   * @param message
+   * @return false if the queue is full
+   */
+  public boolean offer(String topic, MqttMessage message) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          topics[index] = topic;
+          messages[index] = message;
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest message and hands it to the sink.
+   *
+   * @param sink
+   * @return false if the queue was empty
+   */
+  public boolean poll(Sink sink) {
+    long position = head.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          String topic = topics[index];
+          MqttMessage message = messages[index];
+          topics[index] = null;
+          messages[index] = null;
+          sequences.set(index, position + mask + 1);
+          if (sink != null)
+            sink.accept(topic, message);
+          return true;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, mask + 1));
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+}
@@ -0,0 +1,30 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Completed delivery token for a message that was only delivered in-process and never went to
+ * the broker.
+ */
+class LocalDeliveryToken extends MqttDeliveryToken {
+
+  LocalDeliveryToken(String blockName, MqttMessage message) {
+    super(blockName);
+    setMessage(message);
+  }
+
+  @Override
+  public boolean isComplete() {
+    return true;
+  }
+
+  @Override
+  public void waitForCompletion() {
+  }
+
+  @Override
+  public void waitForCompletion(long timeout) {
+  }
+
+}
@@ -1,20 +1,35 @@
 package me.kevinthorne.MQTTBlocks.blocks;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import me.kevinthorne.MQTTBlocks.BlockManager;
-
-public abstract class MQTTBlock extends Thread implements MqttCallback {
+import me.kevinthorne.MQTTBlocks.codec.CodecException;
+import me.kevinthorne.MQTTBlocks.codec.CodecRegistry;
+import me.kevinthorne.MQTTBlocks.connection.LoopbackBus;
+import me.kevinthorne.MQTTBlocks.connection.SharedConnection;
+import me.kevinthorne.MQTTBlocks.connection.TopicTrie;
+import me.kevinthorne.MQTTBlocks.metrics.BlockMetrics;
+
+/**
+ * Base class for every block. A block is a task run by the BlockManager's scheduler rather than a
+ * thread of its own; start() and interrupt() are kept so code written against the old
+ * Thread-based API keeps working.
+ */
+public abstract class MQTTBlock implements Runnable, MqttCallback {
 
   Logger logger = Logger.getLogger(BlockManager.class.getName());
 
@@ -26,38 +41,66 @@ public abstract class MQTTBlock extends Thread implements MqttCallback {
   private int qos = 1;
   private String broker;
   private String clientId;
-  private MemoryPersistence persistence = new MemoryPersistence();
-
-  private MqttClient client;
 
-  private boolean running;
+  private SharedConnection connection;
+  private MqttAsyncClient client;
+  /** Handed out by the deprecated getClient() */
+  private BlockClient legacyClient;
+  private LoopbackBus loopback;
+  private EchoSuppressionCache loopbackEchoes;
+
+  private volatile boolean running;
+  /* Set while enable() runs, so messages arriving meanwhile wait for onEnable */
+  private volatile boolean enabling;
+  private volatile boolean interrupted;
+
+  private EchoSuppressionCache echoCache;
+  private InboundDispatcher dispatcher;
+  private Conflater conflater;
+  /** Null unless dedup is on */
+  private Deduplicator deduplicator;
+  private final StartupTimes startupTimes = new StartupTimes();
+  private final BlockMetrics metrics = new BlockMetrics(this);
+  private boolean connectedBefore;
+  private int laneLevel;
+  /* Set if a subclass still overrides the older, coarser period getters */
+  private boolean legacySleepTime;
+  private boolean legacyPeriod;
+
+  private final CodecRegistry codecs = new CodecRegistry();
+  private final List<Handler<?>> handlers = new CopyOnWriteArrayList<>();
 
-  private Map<String, MqttMessage> lastPublished = new HashMap<String, MqttMessage>();
+  /**
+   * Hands the block to its manager's scheduler, which enables it and starts the update cycle.
+   */
+  public void start() {
+    parent.getScheduler().start(this);
+  }
 
-  @Override
+  /**
+   * Stops the update cycle, runs onDisable and releases the block's connection.
+   */
   public void interrupt() {
+    interrupted = true;
+    running = false;
+    if (parent != null)
+      parent.getScheduler().stop(this);
     try {
       onDisable();
     } catch (Exception ignored) {
     }
-    try {
-      client.disconnect();
-      client.close();
-    } catch (Exception e) {
-      logWarn("Could not close client gracefully, using force...");
-      try {
-        client.disconnectForcibly();
-        client.close();
-        logWarn("Stack Trace for forced connection close:");
-        e.printStackTrace();
-      } catch (MqttException ignored) {
-      } catch (NullPointerException e1) {
-        logInfo("No client was ever created");
-      }
-      
+    if (loopback != null) {
+      loopback.detach(this);
+      loopback = null;
+    }
+    if (conflater != null)
+      conflater.flush();
+    if (connection != null) {
+      parent.getConnectionPool().release(this);
+      connection = null;
+    } else {
+      logInfo("No client was ever created");
     }
-
-    super.interrupt();
   }
 
   public void init(BlockManager parent, BlockConfigurationFile config) {
@@ -68,114 +111,462 @@ public abstract class MQTTBlock extends Thread implements MqttCallback {
     this.topics = config.getTopics();
     this.broker = config.getBroker();
     this.clientId = config.getClientId();
+    this.echoCache =
+        new EchoSuppressionCache(config.getEchoCacheSize(), config.getEchoCacheTtl());
+    loadCodecs(config);
+    this.laneLevel = config.getLaneKeyLevel();
+    this.dispatcher = new InboundDispatcher(this, config);
+    this.conflater = new Conflater(this, config);
+    if (config.getDedup() != Deduplicator.Mode.OFF)
+      this.deduplicator = new Deduplicator(config);
+    if (config.isLocalDelivery())
+      this.loopbackEchoes =
+          new EchoSuppressionCache(config.getEchoCacheSize(), config.getEchoCacheTtl());
+    this.legacySleepTime = overrides("getSleepTime");
+    this.legacyPeriod = legacySleepTime || overrides("getUpdatePeriod");
+  }
+
+  private boolean overrides(String getter) {
+    try {
+      return getClass().getMethod(getter).getDeclaringClass() != MQTTBlock.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
   }
 
   /**
-   * Called when component is started; ran in its own thread.
+   * Registers the configured codecs, resolving names against this block's class loader. A codec
+   * that can't be found is logged and its topics fall back to the default codec.
+   * 
+   * @param config
+   */
+  private void loadCodecs(BlockConfigurationFile config) {
+    ClassLoader loader = getClass().getClassLoader();
+    try {
+      codecs.setDefault(CodecRegistry.forName(config.getDefaultCodec(), loader));
+    } catch (CodecException e) {
+      logError("Couldn't load the default codec {}", config.getDefaultCodec());
+      e.printStackTrace();
+    }
+    for (Map.Entry<String, String> entry : config.getCodecs().entrySet()) {
+      try {
+        codecs.register(entry.getKey(), CodecRegistry.forName(entry.getValue(), loader));
+      } catch (CodecException e) {
+        logError("Couldn't load codec {} for {}", entry.getValue(), entry.getKey());
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Called when component is started, on one of the scheduler's workers.
    */
   public abstract void onEnable();
 
   /**
-   * Called when component is stopped; ran in its own thread.
+   * Called when component is stopped.
    */
   public abstract void onDisable();
 
   /**
-   * Component lifecycle
+   * Component lifecycle, run by the scheduler
    * <ul>
-   * <li>Setup MqttClient Object</li>
+   * <li>Attach to the shared MqttAsyncClient for this broker</li>
    * <li>Run onEnable</li>
-   * <li>Update loop</li>
    * <li>--------------</li>
+   * <li>update() is then scheduled every getUpdatePeriodNanos() nanoseconds</li>
    * <li>onDisable called on <strong>interrupt</strong>
    * </ul>
+   * 
+   * Blocks without a broker (such as the BlockLoader) run without a connection.
+   * 
+   * @return true if the block is now running
    */
-  public void run() {
-    try {
-      client = new MqttClient(broker, clientId, persistence);
-      MqttConnectOptions connOpts = new MqttConnectOptions();
-      connOpts.setCleanSession(true);
-      if (blockConfig.getUsername() != null && !blockConfig.getUsername().equals(""))
-        connOpts.setUserName(blockConfig.getUsername());
-      if (blockConfig.getPassword() != null && !blockConfig.getPassword().equals(""))
-        connOpts.setPassword(blockConfig.getPassword());
-      client.connect(connOpts);
-      for (String topic : blockConfig.getSubscribedTopics()) {
-        client.subscribe(topic);
-      }
-      client.setCallback(this);
-      running = true;
-    } catch (MqttException | IllegalArgumentException e) {
-      BlockManager.logError(this, "Fatal Error! Could not setup MQTT Client:");
-      e.printStackTrace();
+  public boolean enable() {
+    enabling = true;
+    interrupted = false;
+    if (broker != null) {
       try {
-        this.interrupt();
-      } catch (Exception e1) {
-        e1.printStackTrace();
+        connection = parent.getConnectionPool().acquire(this);
+        client = connection.getClient();
+        if (connectedBefore)
+          metrics.recordReconnect();
+        connectedBefore = true;
+        if (blockConfig.isLocalDelivery()) {
+          loopback = parent.getConnectionPool().getLoopback(broker);
+          loopback.attach(this);
+        }
+      } catch (MqttException | IllegalArgumentException e) {
+        BlockManager.logError(this, "Fatal Error! Could not setup MQTT Client:");
+        e.printStackTrace();
+        try {
+          this.interrupt();
+        } catch (Exception e1) {
+          e1.printStackTrace();
+        }
+        enabling = false;
+        return false;
       }
-      return;
     }
+    running = true;
+    long start = System.nanoTime();
     try {
       onEnable();
     } catch (Exception e1) {
       e1.printStackTrace();
+    } finally {
+      enabling = false;
     }
+    startupTimes.setEnableNanos(System.nanoTime() - start);
+    dispatcher.resume();
+    return true;
+  }
+
+  /**
+   * Thread-style lifecycle kept for compatibility: enables the block and loops on update() in the
+   * calling thread. The scheduler only uses this for blocks that override it.
+   */
+  public void run() {
+    if (!enable())
+      return;
     while (running) {
+      long start = System.nanoTime();
       update();
+      metrics.recordUpdate(System.nanoTime() - start);
       try {
-        Thread.sleep(getSleepTime() * 1000);
+        Thread.sleep(getUpdatePeriod());
       } catch (InterruptedException ignored) {
       }
     }
   }
 
   /**
-   * Called every x seconds where x is getSleepTime()
+   * Called every updateWait, see getUpdatePeriodNanos()
    */
   public abstract void update();
 
   /**
-   * Helper method for ease of publishing to a topic
+   * Helper method for ease of publishing to a topic. Doesn't wait for the broker; failures are
+   * logged.
    * 
    * @param topic
    * @param content
    */
   public void publish(String topic, String content) {
-    if (client != null && client.isConnected()) {
-      MqttMessage message = new MqttMessage(content.getBytes());
-      message.setQos(getQos());
-      try {
-        lastPublished.put(topic, message);
-        client.publish(topic, message);
-      } catch (MqttException e) {
-        BlockManager.logError(this,
-            "Couldn't publish message on Thread: " + getBlockName());
-        e.printStackTrace();
+    publishAsync(topic, content);
+  }
+
+  /**
+   * Queues a message on the connection's publish pipeline without waiting for the broker.
+   * deliveryComplete is called on this block once the message is acknowledged.
+   * 
+   * @param topic
+   * @param content
+   * @return completes with the delivery token, or exceptionally if the message was rejected or
+   *         could not be sent
+   */
+  public CompletableFuture<IMqttDeliveryToken> publishAsync(String topic, String content) {
+    return publishAsync(topic, content.getBytes(BlockMessage.CHARSET), getQos(), false);
+  }
+
+  /**
+   * Publishes raw bytes with an explicit QoS and retain flag. With localDelivery on, local
+   * subscribers get the message in-process first; it then goes to the broker unless
+   * forwardToBroker is off, in which case the future completes straight away. On conflateTopics
+   * only the latest message per topic is sent and the future of a replaced message completes
+   * with the one that replaced it.
+   * 
+   * @param topic
+   * @param payload - not copied, don't modify it afterwards
+   * @param qos
+   * @param retained
+   * @return completes with the delivery token, or exceptionally if the message was rejected or
+   *         could not be sent
+   */
+  public CompletableFuture<IMqttDeliveryToken> publishAsync(String topic, byte[] payload, int qos,
+      boolean retained) {
+    MqttMessage message = new MqttMessage(payload);
+    message.setQos(qos);
+    message.setRetained(retained);
+    LoopbackBus bus = loopback;
+    boolean forward = bus == null || blockConfig.isForwardToBroker();
+    if (connection == null && forward) {
+      CompletableFuture<IMqttDeliveryToken> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new IllegalStateException(getBlockName() + " has no client"));
+      return failed;
+    }
+    echoCache.record(topic, payload);
+    if (bus != null) {
+      long start = System.nanoTime();
+      bus.publish(topic, message, forward);
+      if (!forward) {
+        IMqttDeliveryToken token = new LocalDeliveryToken(getBlockName(), message);
+        metrics.recordPublished(payload.length, System.nanoTime() - start);
+        deliveryComplete(token);
+        return CompletableFuture.completedFuture(token);
       }
     }
+    if (conflater.matches(topic))
+      return conflater.publish(connection, topic, message);
+    return connection.getPipeline().publish(this, topic, message, false, bus);
+  }
+
+  /**
+   * Publishes a value encoded by the codec registered for the topic, at the block's QoS.
+   * 
+   * @param topic
+   * @param value
+   * @return completes with the delivery token, or exceptionally if the value couldn't be encoded
+   *         or the message could not be sent
+   */
+  public CompletableFuture<IMqttDeliveryToken> publishObject(String topic, Object value) {
+    return publishObject(topic, value, getQos(), false);
   }
 
   /**
-   * The actual MqttClient callback function, can be overridden.
+   * Publishes a value encoded by the codec registered for the topic. Codecs encode into a pooled
+   * buffer, so the payload array is the only allocation.
+   * 
+   * @param topic
+   * @param value
+   * @param qos
+   * @param retained
+   * @return completes with the delivery token, or exceptionally if the value couldn't be encoded
+   *         or the message could not be sent
+   */
+  public CompletableFuture<IMqttDeliveryToken> publishObject(String topic, Object value, int qos,
+      boolean retained) {
+    byte[] payload;
+    try {
+      payload = codecs.encode(topic, value);
+    } catch (CodecException e) {
+      metrics.recordPublishFailure();
+      CompletableFuture<IMqttDeliveryToken> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return publishAsync(topic, payload, qos, retained);
+  }
+
+  /**
+   * Resolves a topic for repeated publishing at the block's QoS, not retained. Best made once,
+   * e.g. in onEnable, and kept.
+   * 
+   * @param topic
+   * @return TopicHandle
+   * @throws IllegalArgumentException if the topic has wildcards
+   */
+  public TopicHandle topicHandle(String topic) {
+    return topicHandle(topic, getQos(), false);
+  }
+
+  /**
+   * Resolves a topic for repeated publishing; see {@link TopicHandle}.
+   * 
+   * @param topic
+   * @param qos
+   * @param retained
+   * @return TopicHandle
+   * @throws IllegalArgumentException if the topic has wildcards or the QoS isn't 0 to 2
+   */
+  public TopicHandle topicHandle(String topic, int qos, boolean retained) {
+    return new TopicHandle(this, topic, qos, retained);
+  }
+
+  /**
+   * @param topic
+   * @return true if publishes on the topic are conflated
+   */
+  boolean isConflated(String topic) {
+    return conflater != null && conflater.matches(topic);
+  }
+
+  /**
+   * Sends messages on topics matching the filter to a handler, decoded by their codec and
+   * converted to the given type. Messages a handler takes don't reach onMessageReceived. The
+   * filter still has to be subscribed to, in the config or with subscribe().
+   * 
+   * @param filter
+   * @param type - Numbers are converted between boxed types, e.g. a JSON 21 to a Double
+   * @param handler
+   */
+  public <T> void handle(String filter, Class<T> type, TypedHandler<? super T> handler) {
+    handlers.add(new Handler<T>(filter, type, handler));
+  }
+
+  /**
+   * Subscribes this block to a topic filter on its shared connection.
+   * 
+   * @param filter
+   */
+  public void subscribe(String filter) {
+    if (connection == null)
+      return;
+    try {
+      connection.subscribe(this, filter);
+    } catch (MqttException e) {
+      logError("Couldn't subscribe to {}", filter);
+      e.printStackTrace();
+      return;
+    }
+    if (loopback != null)
+      loopback.subscribe(this, filter);
+  }
+
+  /**
+   * Unsubscribes this block from a topic filter it subscribed to.
+   * 
+   * @param filter
+   */
+  public void unsubscribe(String filter) {
+    if (loopback != null)
+      loopback.unsubscribe(this, filter);
+    if (connection != null)
+      connection.unsubscribe(this, filter);
+  }
+
+  /**
+   * The actual MqttClient callback function, can be overridden. Called by the shared connection
+   * for messages matching this block's subscribed topics; queues the message for this block's
+   * handler so the connection isn't held up. With dedup on, repeats are dropped here, before
+   * they are queued or decoded.
    * 
    * @param topic
    * @param message - MqttMessage type
    */
   @Override
   public void messageArrived(String topic, MqttMessage message) throws Exception {
-    boolean fromHome = false;
-    if (lastPublished.containsKey(topic)
-        && lastPublished.get(topic).toString().equals(message.toString())) {
-      fromHome = true;
-      lastPublished.remove(topic);
+    metrics.recordReceived(message.getPayload().length);
+    Deduplicator repeats = deduplicator;
+    if (repeats != null && repeats.isRepeat(topic, message)) {
+      metrics.recordDuplicate();
+      return;
     }
-    onMessageReceived(topic, message, message.toString(), message.getQos(), message.isDuplicate(),
-        message.isRetained(), fromHome);
+    dispatcher.offer(topic, message);
   }
 
+  /**
+   * Hands a queued message to onMessageReceived. Called by an InboundLane, one message at a time
+   * per lane.
+   * 
+   * @param inbound - the lane's reusable view
+   * @param topic
+   * @param message
+   */
+  void dispatch(BlockMessage inbound, String topic, MqttMessage message) {
+    boolean fromHome = isEcho(topic, message);
+    inbound.reset(topic, message, fromHome);
+    long start = System.nanoTime();
+    try {
+      deliver(inbound);
+    } finally {
+      metrics.recordHandler(System.nanoTime() - start);
+      inbound.clear();
+    }
+  }
 
   /**
-   * Fired when message is received on subscribed topics
+   * Hands a full or timed-out batch to onMessagesReceived. Called by an InboundLane.
+   * 
+   * @param batch
+   */
+  void dispatch(MessageBatch batch) {
+    long start = System.nanoTime();
+    try {
+      onMessagesReceived(batch);
+    } finally {
+      metrics.recordHandler(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Picks the lane a message is handled on when the block has more than one. Messages with equal
+   * keys are handled in the order they arrived. By default the key is the topic, or the topic
+   * level set by laneKey; override to key on something else, such as a field of the payload.
+   * Called on the connection's callback thread, so keep it quick.
+   * 
+   * @param topic
+   * @param message
+   * @return key whose hash picks the lane
+   */
+  public Object getLaneKey(String topic, MqttMessage message) {
+    if (laneLevel <= 0)
+      return topic;
+    int start = 0;
+    for (int i = 1; i < laneLevel && start >= 0; i++) {
+      start = topic.indexOf('/', start);
+      if (start >= 0)
+        start++;
+    }
+    if (start < 0)
+      return topic;
+    int end = topic.indexOf('/', start);
+    return topic.substring(start, end < 0 ? topic.length() : end);
+  }
+
+  /**
+   * Hands a message to the typed handlers whose filter matches, or to onMessageReceived if none
+   * do.
+   * 
+   * @param message
+   * @return message handled
+   */
+  boolean deliver(BlockMessage message) {
+    if (handlers.isEmpty())
+      return onMessageReceived(message);
+    boolean matched = false;
+    for (Handler<?> handler : handlers) {
+      if (TopicTrie.matches(handler.filter, message.getTopic())) {
+        matched = true;
+        handler.handle(message);
+      }
+    }
+    return matched || onMessageReceived(message);
+  }
+
+  /**
+   * @param topic
+   * @param message
+   * @return true if this block published the message, in which case it is no longer remembered
+   */
+  boolean isEcho(String topic, MqttMessage message) {
+    return echoCache.consume(topic, message.getPayload());
+  }
+
+  /**
+   * Fired with up to batchSize messages at once when the block's batchSize is above 1, so work
+   * such as database inserts can be done in bulk. Messages are in arrival order. By default each
+   * message is passed to its typed handlers or onMessageReceived(BlockMessage).
+   * 
+   * @param batch - only valid until this method returns
+   * 
+   * @return messages handled
+   */
+  public boolean onMessagesReceived(MessageBatch batch) {
+    boolean handled = true;
+    for (int i = 0; i < batch.size(); i++) {
+      handled &= deliver(batch.get(i));
+    }
+    return handled;
+  }
+
+  /**
+   * Fired when message is received on subscribed topics, with the payload as raw bytes. Override
+   * this instead of the String version to skip decoding; by default it decodes the payload and
+   * calls the String version.
+   * 
+   * @param message - only valid until this method returns
+   * 
+   * @return message handled
+   */
+  public boolean onMessageReceived(BlockMessage message) {
+    return onMessageReceived(message.getTopic(), message.getMqttMessage(), message.getString(),
+        message.getQos(), message.isDuplicate(), message.isRetained(), message.isFromHome());
+  }
+
+  /**
+   * Fired when message is received on subscribed topics. Blocks that override
+   * onMessageReceived(BlockMessage) instead don't need to implement this.
    * 
    * @param topic
    * @param mqttMessage - Can be cast to MqttMessage
@@ -187,18 +578,32 @@ public abstract class MQTTBlock extends Thread implements MqttCallback {
    * 
    * @return message handled
    */
-  public abstract boolean onMessageReceived(String topic, Object mqttMessage, String message,
-      int qos, boolean isDuplicate, boolean isRetained, boolean fromHome);
+  public boolean onMessageReceived(String topic, Object mqttMessage, String message, int qos,
+      boolean isDuplicate, boolean isRetained, boolean fromHome) {
+    return false;
+  }
 
+  /**
+   * Called when the block's connection drops. The block keeps running: the connection reconnects
+   * on its own, and publishes wait in the connection's queue until it is back.
+   */
   @Override
   public void connectionLost(Throwable cause) {
-    logError("Connection Lost!");
-    cause.printStackTrace();
-    this.interrupt();
+    metrics.recordConnectionLost();
+    logWarn("Connection Lost! Reconnecting... ({})", cause);
+  }
+
+  /**
+   * Called once the connection is back and its subscriptions have been renewed. Empty by default.
+   */
+  public void connectionRestored() {
   }
 
+  /**
+   * Called once the broker has acknowledged a message this block published. Empty by default.
+   */
   @Override
-  public void deliveryComplete(IMqttDeliveryToken arg0) {
+  public void deliveryComplete(IMqttDeliveryToken token) {
   }
 
   public BlockManager getParent() {
@@ -213,6 +618,13 @@ public abstract class MQTTBlock extends Thread implements MqttCallback {
     return name;
   }
 
+  /**
+   * @return id of this instance when the block's jar is a template, null otherwise
+   */
+  public String getInstanceId() {
+    return blockConfig.getInstance();
+  }
+
   public String[] getTopics() {
     return topics;
   }
@@ -233,16 +645,96 @@ public abstract class MQTTBlock extends Thread implements MqttCallback {
     return clientId;
   }
 
+  /**
+   * @deprecated use getClientPersistence(), connections can persist to files
+   * @return the connection's in-memory persistence, or null if it persists to files or the block
+   *         isn't connected
+   */
+  @Deprecated
   public MemoryPersistence getPersistence() {
-    return persistence;
+    MqttClientPersistence persistence = getClientPersistence();
+    return persistence instanceof MemoryPersistence ? (MemoryPersistence) persistence : null;
+  }
+
+  /**
+   * @return where the connection keeps in-flight messages, or null if the block isn't connected
+   */
+  public MqttClientPersistence getClientPersistence() {
+    return connection == null ? null : connection.getPersistence();
+  }
+
+  /**
+   * Codecs by topic filter, loaded from the config. More can be registered, e.g. in onEnable.
+   * 
+   * @return CodecRegistry
+   */
+  public CodecRegistry getCodecs() {
+    return codecs;
+  }
+
+  public EchoSuppressionCache getEchoCache() {
+    return echoCache;
   }
 
-  public MqttClient getClient() {
-    return client;
+  /**
+   * @return how long connecting, subscribing and onEnable took when the block was last enabled
+   */
+  public StartupTimes getStartupTimes() {
+    return startupTimes;
+  }
+
+  /**
+   * @return this block's counters and latency histograms, also registered over JMX
+   */
+  public BlockMetrics getMetrics() {
+    return metrics;
+  }
+
+  public InboundDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * @return messages recently delivered in-process whose broker copies should be dropped, or null
+   *         if localDelivery is off
+   */
+  public EchoSuppressionCache getLoopbackEchoes() {
+    return loopbackEchoes;
+  }
+
+  public LoopbackBus getLoopback() {
+    return loopback;
+  }
+
+  public SharedConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * @deprecated the connection is shared with other blocks; publish and subscribe through the
+   *             block instead. The client returned sends through this block and refuses to
+   *             connect, disconnect or close the shared connection.
+   * @return a view of the shared client, or null if the block isn't connected
+   */
+  @Deprecated
+  public synchronized MqttClient getClient() {
+    MqttAsyncClient shared = client;
+    if (shared == null)
+      return null;
+    if (legacyClient == null || legacyClient.getShared() != shared) {
+      try {
+        legacyClient = new BlockClient(this, shared);
+      } catch (MqttException e) {
+        logError("Couldn't wrap the shared client: {}", e.getMessage());
+        return null;
+      }
+    }
+    return legacyClient;
   }
 
   /**
-   * Return how often to call update();
+   * Return how often to call update(); rounded down to whole seconds, so use
+   * getUpdatePeriodNanos() instead.
    * 
    * @return int <strong>seconds</strong>
    */
@@ -250,10 +742,96 @@ public abstract class MQTTBlock extends Thread implements MqttCallback {
     return blockConfig.getUpdateWait();
   }
 
+  /**
+   * How often to call update(), rounded down to whole milliseconds.
+   * 
+   * @return long <strong>milliseconds</strong>
+   */
+  public long getUpdatePeriod() {
+    if (legacySleepTime)
+      return getSleepTime() * 1000L;
+    return TimeUnit.NANOSECONDS.toMillis(blockConfig.getUpdatePeriodNanos());
+  }
+
+  /**
+   * How often to call update(), from updateWait. Blocks that override getSleepTime() or
+   * getUpdatePeriod() are scheduled by those instead. Whether the period runs from the start or
+   * the end of the last update() is the config's updateMode.
+   * 
+   * @return long <strong>nanoseconds</strong>
+   */
+  public long getUpdatePeriodNanos() {
+    if (legacyPeriod)
+      return TimeUnit.MILLISECONDS.toNanos(getUpdatePeriod());
+    return blockConfig.getUpdatePeriodNanos();
+  }
+
   public boolean isRunning() {
     return running;
   }
 
+  /**
+   * @return true while enable() runs; inbound messages are held until it finishes
+   */
+  boolean isEnabling() {
+    return enabling;
+  }
+
+  /**
+   * @return true once the block has been enabled and until it is interrupted
+   */
+  public boolean isAlive() {
+    return running;
+  }
+
+  /**
+   * Kept for blocks written against the Thread-based API.
+   * 
+   * @return the block name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Kept for blocks written against the Thread-based API.
+   * 
+   * @return true once interrupt() has been called, until the block is enabled again
+   */
+  public boolean isInterrupted() {
+    return interrupted;
+  }
+
+  /**
+   * Kept for blocks written against the Thread-based API: waits until the block has been
+   * interrupted and its last update() has returned. Don't call it from the block's own update().
+   * 
+   * @throws InterruptedException
+   */
+  public void join() throws InterruptedException {
+    join(0);
+  }
+
+  /**
+   * Kept for blocks written against the Thread-based API.
+   * 
+   * @param millis - how long to wait at most, 0 to wait until the block stops
+   * @throws InterruptedException
+   */
+  public void join(long millis) throws InterruptedException {
+    if (parent != null)
+      parent.getScheduler().join(this, millis);
+  }
+
+  /**
+   * Kept for blocks written against the Thread-based API. Blocks run on the manager's scheduler,
+   * so this does nothing.
+   * 
+   * @param on
+   */
+  public void setDaemon(boolean on) {
+  }
+
   protected void setRunning(boolean given) {
     running = given;
   }
@@ -274,4 +852,74 @@ public abstract class MQTTBlock extends Thread implements MqttCallback {
     BlockManager.logConfig(this, log);
   }
 
+  /**
+   * Logs with {} placeholders, filled in only if the level is enabled, e.g.
+   * logInfo("{} readings from {}", count, device). Arguments are formatted after the call returns,
+   * so don't pass objects that will change, such as a BlockMessage.
+   * 
+   * @param format
+   * @param args
+   */
+  public void logError(String format, Object... args) {
+    BlockManager.logError(this, format, args);
+  }
+
+  public void logInfo(String format, Object... args) {
+    BlockManager.logInfo(this, format, args);
+  }
+
+  public void logWarn(String format, Object... args) {
+    BlockManager.logWarn(this, format, args);
+  }
+
+  public void logConfig(String format, Object... args) {
+    BlockManager.logConfig(this, format, args);
+  }
+
+  /**
+   * A typed handler and the filter and type it was registered with.
+   */
+  private class Handler<T> {
+
+    private final String filter;
+    private final Class<T> type;
+    private final TypedHandler<? super T> handler;
+
+    Handler(String filter, Class<T> type, TypedHandler<? super T> handler) {
+      this.filter = filter;
+      this.type = type;
+      this.handler = handler;
+    }
+
+    void handle(BlockMessage message) {
+      Object value;
+      try {
+        value = message.getValue();
+      } catch (CodecException e) {
+        logWarn("Couldn't decode message on {}: {}", message.getTopic(), e.getMessage());
+        return;
+      }
+      if (value instanceof Number && !type.isInstance(value))
+        value = convert((Number) value);
+      if (value != null && !type.isInstance(value)) {
+        logWarn("Expected {} on {}, got {}", type.getSimpleName(), message.getTopic(),
+            value.getClass().getSimpleName());
+        return;
+      }
+      handler.onMessage(type.cast(value), message);
+    }
+
+    private Object convert(Number number) {
+      if (type == Double.class)
+        return number.doubleValue();
+      if (type == Long.class)
+        return number.longValue();
+      if (type == Integer.class)
+        return number.intValue();
+      if (type == Float.class)
+        return number.floatValue();
+      return number;
+    }
+  }
+
 }
@@ -0,0 +1,89 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import me.kevinthorne.MQTTBlocks.codec.CodecRegistry;
+
+/**
+ * Messages handed to {@link MQTTBlock#onMessagesReceived(MessageBatch)} together, in the order
+ * they arrived, so messages on the same topic stay in order.
+ *
+ * <p>
+ * Each block reuses one batch and its BlockMessages, so it is only valid for the duration of the
+ * callback. Copy what you need to keep.
+ */
+public final class MessageBatch implements Iterable<BlockMessage> {
+
+  private final BlockMessage[] messages;
+  private int size;
+
+  MessageBatch(int capacity, CodecRegistry codecs) {
+    messages = new BlockMessage[capacity];
+    for (int i = 0; i < capacity; i++) {
+      messages[i] = new BlockMessage(codecs);
+    }
+  }
+
+  void add(String topic, MqttMessage message, boolean fromHome) {
+    messages[size++].reset(topic, message, fromHome);
+  }
+
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      messages[i].clear();
+    }
+    size = 0;
+  }
+
+  boolean isFull() {
+    return size == messages.length;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @param index
+   * @return the message, only valid until the callback returns
+   */
+  public BlockMessage get(int index) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+    return messages[index];
+  }
+
+  /**
+   * @return most messages a batch holds, the block's batchSize
+   */
+  public int getCapacity() {
+    return messages.length;
+  }
+
+  @Override
+  public Iterator<BlockMessage> iterator() {
+    return new Iterator<BlockMessage>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public BlockMessage next() {
+        if (next >= size)
+          throw new NoSuchElementException();
+        return messages[next++];
+      }
+    };
+  }
+
+}
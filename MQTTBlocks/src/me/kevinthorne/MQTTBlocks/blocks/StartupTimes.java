@@ -0,0 +1,52 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each step of a block's last enable took: waiting for its connection, subscribing its
+ * configured topics and running onEnable.
+ */
+public class StartupTimes {
+
+  private volatile long connectNanos;
+  private volatile long subscribeNanos;
+  private volatile long enableNanos;
+
+  public void setConnectNanos(long connectNanos) {
+    this.connectNanos = connectNanos;
+  }
+
+  public void setSubscribeNanos(long subscribeNanos) {
+    this.subscribeNanos = subscribeNanos;
+  }
+
+  public void setEnableNanos(long enableNanos) {
+    this.enableNanos = enableNanos;
+  }
+
+  public long getConnectMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(connectNanos);
+  }
+
+  public long getSubscribeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(subscribeNanos);
+  }
+
+  public long getEnableMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(enableNanos);
+  }
+
+  /**
+   * @return long <strong>nanoseconds</strong> spent in all three steps
+   */
+  public long getTotalNanos() {
+    return connectNanos + subscribeNanos + enableNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "connect " + getConnectMillis() + " ms, subscribe " + getSubscribeMillis()
+        + " ms, onEnable " + getEnableMillis() + " ms";
+  }
+
+}
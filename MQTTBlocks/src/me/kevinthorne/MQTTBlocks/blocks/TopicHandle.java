@@ -0,0 +1,195 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+import me.kevinthorne.MQTTBlocks.codec.CodecException;
+import me.kevinthorne.MQTTBlocks.codec.CodecRegistry;
+import me.kevinthorne.MQTTBlocks.codec.PayloadBuffer;
+import me.kevinthorne.MQTTBlocks.codec.PayloadCodec;
+import me.kevinthorne.MQTTBlocks.connection.PublishPipeline;
+import me.kevinthorne.MQTTBlocks.connection.SharedConnection;
+
+/**
+ * A topic resolved once for publishing to it over and over, made with
+ * {@link MQTTBlock#topicHandle(String, int, boolean)}. The topic is validated, and its QoS,
+ * retain flag, codec, conflation and echo fingerprint worked out, when the handle is made rather
+ * than on every publish, so make handles after registering any codecs of the block's own.
+ *
+ * <p>
+ * Messages come from a small pool and go back to it once the broker has acknowledged them. A
+ * payload the same length as a pooled message's is written into that message's array, so a
+ * steady stream of same-sized values allocates nothing on the block's side. Conflated topics and
+ * blocks with localDelivery, whose subscribers keep the message, publish through publishAsync
+ * instead.
+ *
+ * <p>
+ * Handles are thread safe. Don't keep the message from a token passed to deliveryComplete, it is
+ * reused once that returns.
+ */
+public final class TopicHandle {
+
+  /** Messages kept for reuse beyond the connection's publish window */
+  private static final int POOL_SLACK = 4;
+
+  private final MQTTBlock block;
+  private final String topic;
+  private final int qos;
+  private final boolean retained;
+  private final long topicHash;
+  private final PayloadCodec codec;
+  private final boolean pooled;
+  private final ArrayBlockingQueue<MqttMessage> pool;
+
+  private final PublishPipeline.Recycler recycler = new PublishPipeline.Recycler() {
+    @Override
+    public void recycle(MqttMessage message) {
+      // Resent copies carry the DUP flag, which can't be cleared
+      if (!message.isDuplicate())
+        pool.offer(message);
+    }
+  };
+
+  /**
+   * @param block
+   * @param topic
+   * @param qos
+   * @param retained
+   * @throws IllegalArgumentException if the topic has wildcards or the QoS isn't 0 to 2
+   */
+  TopicHandle(MQTTBlock block, String topic, int qos, boolean retained) {
+    MqttTopic.validate(topic, false);
+    MqttMessage.validateQos(qos);
+    this.block = block;
+    this.topic = topic;
+    this.qos = qos;
+    this.retained = retained;
+    this.topicHash = EchoSuppressionCache.topicHash(topic);
+    this.codec = block.getCodecs().forTopic(topic);
+    // From the config rather than getLoopback(), which is only set once the block is enabled
+    this.pooled = !block.getBlockConfig().isLocalDelivery() && !block.isConflated(topic);
+    this.pool = new ArrayBlockingQueue<>(PublishPipeline.MAX_WINDOW + POOL_SLACK);
+  }
+
+  /**
+   * Publishes text as UTF-8.
+   *
+   * @param content
+   */
+  public void publish(String content) {
+    if (!pooled) {
+      block.publishAsync(topic, content.getBytes(BlockMessage.CHARSET), qos, retained);
+      return;
+    }
+    MqttMessage message = take();
+    send(message, PayloadBuffer.utf8(content, message.getPayload()));
+  }
+
+  /**
+   * Publishes raw bytes.
+   *
+   * @param payload - copied, so it can be reused straight away
+   */
+  public void publish(byte[] payload) {
+    publish(payload, 0, payload.length);
+  }
+
+  /**
+   * Publishes part of an array.
+   *
+   * @param payload - copied, so it can be reused straight away
+   * @param offset
+   * @param length
+   */
+  public void publish(byte[] payload, int offset, int length) {
+    if (!pooled) {
+      byte[] copy = new byte[length];
+      System.arraycopy(payload, offset, copy, 0, length);
+      block.publishAsync(topic, copy, qos, retained);
+      return;
+    }
+    MqttMessage message = take();
+    byte[] reuse = message.getPayload();
+    if (reuse.length != length)
+      reuse = new byte[length];
+    System.arraycopy(payload, offset, reuse, 0, length);
+    send(message, reuse);
+  }
+
+  /**
+   * Publishes a value encoded by the topic's codec.
+   *
+   * @param value
+   * @throws CodecException if the codec can't encode the value
+   */
+  public void publishObject(Object value) throws CodecException {
+    byte[] payload;
+    try {
+      payload = CodecRegistry.encode(codec, topic, value);
+    } catch (CodecException e) {
+      block.getMetrics().recordPublishFailure();
+      throw e;
+    }
+    if (!pooled) {
+      block.publishAsync(topic, payload, qos, retained);
+      return;
+    }
+    send(take(), payload);
+  }
+
+  /**
+   * Publishes text through the block's publishAsync, for callers that want the acknowledgement.
+   * Doesn't use the pool.
+   *
+   * @param content
+   * @return completes with the delivery token
+   */
+  public CompletableFuture<IMqttDeliveryToken> publishAsync(String content) {
+    return block.publishAsync(topic, content.getBytes(BlockMessage.CHARSET), qos, retained);
+  }
+
+  private MqttMessage take() {
+    MqttMessage message = pool.poll();
+    if (message == null) {
+      message = new MqttMessage();
+      message.setQos(qos);
+      message.setRetained(retained);
+    }
+    return message;
+  }
+
+  private void send(MqttMessage message, byte[] payload) {
+    SharedConnection connection = block.getConnection();
+    if (connection == null) {
+      block.getMetrics().recordPublishFailure();
+      return;
+    }
+    message.setPayload(payload);
+    block.getEchoCache().record(topicHash, payload);
+    connection.getPipeline().send(block, topic, message, recycler);
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  public int getQos() {
+    return qos;
+  }
+
+  public boolean isRetained() {
+    return retained;
+  }
+
+  /**
+   * @return false if publishes go through publishAsync, without pooling
+   */
+  public boolean isPooled() {
+    return pooled;
+  }
+
+}
@@ -0,0 +1,17 @@
+package me.kevinthorne.MQTTBlocks.blocks;
+
+/**
+ * Receives decoded payloads for a topic filter; see
+ * {@link MQTTBlock#handle(String, Class, TypedHandler)}.
+ *
+ * @param <T> type the payload is decoded to
+ */
+public interface TypedHandler<T> {
+
+  /**
+   * @param value - the payload as decoded by the topic's codec
+   * @param message - only valid until this method returns
+   */
+  void onMessage(T value, BlockMessage message);
+
+}
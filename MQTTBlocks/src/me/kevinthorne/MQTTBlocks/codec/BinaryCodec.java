@@ -0,0 +1,37 @@
+package me.kevinthorne.MQTTBlocks.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Raw bytes. Received payloads are handed over as the array Paho received, and byte[] values are
+ * published as they are, with no copy either way. A ByteBuffer's remaining bytes are copied.
+ */
+public class BinaryCodec implements PayloadCodec {
+
+  public static final String NAME = "binary";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Object decode(String topic, byte[] payload) {
+    return payload;
+  }
+
+  @Override
+  public byte[] encode(String topic, Object value, PayloadBuffer buffer) throws CodecException {
+    if (value instanceof byte[])
+      return (byte[]) value;
+    if (value instanceof ByteBuffer) {
+      ByteBuffer source = ((ByteBuffer) value).duplicate();
+      byte[] payload = new byte[source.remaining()];
+      source.get(payload);
+      return payload;
+    }
+    throw new CodecException("Binary topic " + topic + " needs a byte[] or ByteBuffer, got "
+        + (value == null ? "null" : value.getClass().getName()));
+  }
+
+}
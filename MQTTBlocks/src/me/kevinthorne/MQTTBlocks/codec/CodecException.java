@@ -0,0 +1,18 @@
+package me.kevinthorne.MQTTBlocks.codec;
+
+/**
+ * Thrown when a payload can't be decoded or a value can't be encoded.
+ */
+public class CodecException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  public CodecException(String message) {
+    super(message);
+  }
+
+  public CodecException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+}
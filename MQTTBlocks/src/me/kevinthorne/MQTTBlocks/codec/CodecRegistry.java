@@ -0,0 +1,153 @@
+package me.kevinthorne.MQTTBlocks.codec;
+
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import me.kevinthorne.MQTTBlocks.connection.TopicTrie;
+
+/**
+ * A block's codecs, by topic filter. The first filter registered that matches a topic wins;
+ * topics no filter matches use the default codec, UTF-8 text unless configured otherwise.
+ */
+public class CodecRegistry {
+
+  /** Topics whose codec is remembered, so filters aren't matched on every message */
+  private static final int CACHE_SIZE = 1024;
+
+  private final List<Entry> entries = new CopyOnWriteArrayList<>();
+  private final Map<String, PayloadCodec> cache = new ConcurrentHashMap<>();
+  private volatile PayloadCodec fallback = new StringCodec();
+
+  /**
+   * Looks a codec up by name: string, json, binary, the name of a codec listed as a service in
+   * the given class loader, or a class name.
+   * 
+   * @param name
+   * @param loader - used for services and class names, usually the block's
+   * @return the codec
+   * @throws CodecException if no codec has that name, or it couldn't be created
+   */
+  public static PayloadCodec forName(String name, ClassLoader loader) throws CodecException {
+    switch (name.toLowerCase()) {
+      case StringCodec.NAME:
+        return new StringCodec();
+      case JsonCodec.NAME:
+        return new JsonCodec();
+      case BinaryCodec.NAME:
+        return new BinaryCodec();
+      default:
+    }
+    for (PayloadCodec codec : ServiceLoader.load(PayloadCodec.class, loader)) {
+      if (codec.getName().equalsIgnoreCase(name))
+        return codec;
+    }
+    Class<? extends PayloadCodec> codecClass;
+    try {
+      codecClass = Class.forName(name, true, loader).asSubclass(PayloadCodec.class);
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new CodecException("No codec named " + name, e);
+    }
+    try {
+      return codecClass.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new CodecException("Couldn't create codec " + name, e);
+    }
+  }
+
+  /**
+   * Adds a codec for every topic the filter matches, after the ones already registered.
+   * 
+   * @param filter
+   * @param codec
+   */
+  public void register(String filter, PayloadCodec codec) {
+    entries.add(new Entry(filter, codec));
+    cache.clear();
+  }
+
+  /**
+   * @param codec - used for topics no registered filter matches
+   */
+  public void setDefault(PayloadCodec codec) {
+    this.fallback = codec;
+    cache.clear();
+  }
+
+  /**
+   * @param topic
+   * @return the codec for the topic
+   */
+  public PayloadCodec forTopic(String topic) {
+    PayloadCodec codec = cache.get(topic);
+    if (codec != null)
+      return codec;
+    codec = fallback;
+    for (Entry entry : entries) {
+      if (TopicTrie.matches(entry.filter, topic)) {
+        codec = entry.codec;
+        break;
+      }
+    }
+    if (cache.size() < CACHE_SIZE)
+      cache.put(topic, codec);
+    return codec;
+  }
+
+  /**
+   * @param topic
+   * @param payload
+   * @return the payload decoded by the topic's codec
+   * @throws CodecException
+   */
+  public Object decode(String topic, byte[] payload) throws CodecException {
+    return forTopic(topic).decode(topic, payload);
+  }
+
+  /**
+   * Encodes a value with the topic's codec, using this thread's pooled buffer.
+   * 
+   * @param topic
+   * @param value
+   * @return the payload
+   * @throws CodecException
+   */
+  public byte[] encode(String topic, Object value) throws CodecException {
+    return encode(forTopic(topic), topic, value);
+  }
+
+  /**
+   * Encodes a value with a codec already looked up, using this thread's pooled buffer.
+   * 
+   * @param codec
+   * @param topic
+   * @param value
+   * @return the payload
+   * @throws CodecException
+   */
+  public static byte[] encode(PayloadCodec codec, String topic, Object value)
+      throws CodecException {
+    PayloadBuffer buffer = PayloadBuffer.acquire();
+    try {
+      return codec.encode(topic, value, buffer);
+    } catch (RuntimeException e) {
+      throw new CodecException("Couldn't encode the value for " + topic, e);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  private static class Entry {
+
+    private final String filter;
+    private final PayloadCodec codec;
+
+    Entry(String filter, PayloadCodec codec) {
+      this.filter = filter;
+      this.codec = codec;
+    }
+  }
+
+}
@@ -0,0 +1,347 @@
+package me.kevinthorne.MQTTBlocks.codec;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON, without any dependency. Payloads decode to Map (objects, keeping their key order), List,
+ * String, Long or Double, Boolean and null. Maps, Iterables, arrays, CharSequences, Numbers,
+ * Booleans, Enums and null can be published; anything else is rejected rather than guessed at.
+ */
+public class JsonCodec implements PayloadCodec {
+
+  public static final String NAME = "json";
+
+  /** Deepest nesting accepted, so a hostile payload can't overflow the stack */
+  private static final int MAX_DEPTH = 256;
+
+  private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+  private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+  private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Object decode(String topic, byte[] payload) throws CodecException {
+    Parser parser = new Parser(topic, payload);
+    Object value = parser.value(0);
+    parser.skipWhitespace();
+    if (parser.pos != payload.length)
+      throw parser.error("Unexpected data after the value");
+    return value;
+  }
+
+  @Override
+  public byte[] encode(String topic, Object value, PayloadBuffer buffer) throws CodecException {
+    write(topic, value, buffer, 0);
+    return buffer.toByteArray();
+  }
+
+  private void write(String topic, Object value, PayloadBuffer out, int depth)
+      throws CodecException {
+    if (depth > MAX_DEPTH)
+      throw new CodecException("Value for " + topic + " is nested too deeply, or contains itself");
+    if (value == null) {
+      out.write(NULL, 0, NULL.length);
+    } else if (value instanceof CharSequence || value instanceof Character
+        || value instanceof Enum) {
+      writeString(value instanceof Enum ? ((Enum<?>) value).name() : value.toString(), out);
+    } else if (value instanceof Boolean) {
+      byte[] literal = (Boolean) value ? TRUE : FALSE;
+      out.write(literal, 0, literal.length);
+    } else if (value instanceof Number) {
+      if ((value instanceof Double && !Double.isFinite((Double) value))
+          || (value instanceof Float && !Float.isFinite((Float) value)))
+        throw new CodecException("JSON has no " + value + ", publishing on " + topic);
+      out.writeUtf8(value.toString());
+    } else if (value instanceof Map) {
+      out.write('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first)
+          out.write(',');
+        first = false;
+        writeString(String.valueOf(entry.getKey()), out);
+        out.write(':');
+        write(topic, entry.getValue(), out, depth + 1);
+      }
+      out.write('}');
+    } else if (value instanceof Iterable) {
+      out.write('[');
+      boolean first = true;
+      for (Object element : (Iterable<?>) value) {
+        if (!first)
+          out.write(',');
+        first = false;
+        write(topic, element, out, depth + 1);
+      }
+      out.write(']');
+    } else if (value.getClass().isArray()) {
+      out.write('[');
+      int length = Array.getLength(value);
+      for (int i = 0; i < length; i++) {
+        if (i > 0)
+          out.write(',');
+        write(topic, Array.get(value, i), out, depth + 1);
+      }
+      out.write(']');
+    } else {
+      throw new CodecException(
+          "Don't know how to write " + value.getClass().getName() + " as JSON on " + topic);
+    }
+  }
+
+  private static void writeString(String text, PayloadBuffer out) {
+    out.write('"');
+    int start = 0;
+    int length = text.length();
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\')
+        continue;
+      out.writeUtf8(text.subSequence(start, i));
+      start = i + 1;
+      out.write('\\');
+      switch (c) {
+        case '"':
+        case '\\':
+          out.write(c);
+          break;
+        case '\n':
+          out.write('n');
+          break;
+        case '\r':
+          out.write('r');
+          break;
+        case '\t':
+          out.write('t');
+          break;
+        default:
+          out.write('u').write('0').write('0').write(HEX[c >> 4]).write(HEX[c & 0xf]);
+      }
+    }
+    out.writeUtf8(start == 0 ? text : text.subSequence(start, length));
+    out.write('"');
+  }
+
+  /**
+   * Recursive descent over the payload bytes. Strings without escapes are decoded straight from
+   * the payload.
+   */
+  private static class Parser {
+
+    private final String topic;
+    private final byte[] in;
+    private int pos;
+
+    Parser(String topic, byte[] in) {
+      this.topic = topic;
+      this.in = in;
+    }
+
+    CodecException error(String message) {
+      return new CodecException(message + " at byte " + pos + " of JSON on " + topic);
+    }
+
+    void skipWhitespace() {
+      while (pos < in.length
+          && (in[pos] == ' ' || in[pos] == '\n' || in[pos] == '\r' || in[pos] == '\t'))
+        pos++;
+    }
+
+    Object value(int depth) throws CodecException {
+      if (depth > MAX_DEPTH)
+        throw error("Nested too deeply");
+      skipWhitespace();
+      if (pos >= in.length)
+        throw error("Unexpected end");
+      switch (in[pos]) {
+        case '{':
+          return object(depth);
+        case '[':
+          return array(depth);
+        case '"':
+          return string();
+        case 't':
+          literal(TRUE);
+          return Boolean.TRUE;
+        case 'f':
+          literal(FALSE);
+          return Boolean.FALSE;
+        case 'n':
+          literal(NULL);
+          return null;
+        default:
+          return number();
+      }
+    }
+
+    private Map<String, Object> object(int depth) throws CodecException {
+      Map<String, Object> map = new LinkedHashMap<>();
+      pos++;
+      skipWhitespace();
+      if (pos < in.length && in[pos] == '}') {
+        pos++;
+        return map;
+      }
+      while (true) {
+        skipWhitespace();
+        if (pos >= in.length || in[pos] != '"')
+          throw error("Expected a key");
+        String key = string();
+        skipWhitespace();
+        expect(':');
+        map.put(key, value(depth + 1));
+        skipWhitespace();
+        if (pos < in.length && in[pos] == ',') {
+          pos++;
+          continue;
+        }
+        expect('}');
+        return map;
+      }
+    }
+
+    private List<Object> array(int depth) throws CodecException {
+      List<Object> list = new ArrayList<>();
+      pos++;
+      skipWhitespace();
+      if (pos < in.length && in[pos] == ']') {
+        pos++;
+        return list;
+      }
+      while (true) {
+        list.add(value(depth + 1));
+        skipWhitespace();
+        if (pos < in.length && in[pos] == ',') {
+          pos++;
+          continue;
+        }
+        expect(']');
+        return list;
+      }
+    }
+
+    private String string() throws CodecException {
+      int start = ++pos;
+      while (pos < in.length && in[pos] != '"' && in[pos] != '\\')
+        pos++;
+      if (pos < in.length && in[pos] == '"')
+        return new String(in, start, pos++ - start, StandardCharsets.UTF_8);
+      StringBuilder text = new StringBuilder(new String(in, start, pos - start,
+          StandardCharsets.UTF_8));
+      while (true) {
+        if (pos >= in.length)
+          throw error("Unterminated string");
+        byte b = in[pos];
+        if (b == '"') {
+          pos++;
+          return text.toString();
+        }
+        if (b != '\\') {
+          int run = pos;
+          while (pos < in.length && in[pos] != '"' && in[pos] != '\\')
+            pos++;
+          text.append(new String(in, run, pos - run, StandardCharsets.UTF_8));
+          continue;
+        }
+        if (++pos >= in.length)
+          throw error("Unterminated string");
+        switch (in[pos++]) {
+          case '"':
+            text.append('"');
+            break;
+          case '\\':
+            text.append('\\');
+            break;
+          case '/':
+            text.append('/');
+            break;
+          case 'b':
+            text.append('\b');
+            break;
+          case 'f':
+            text.append('\f');
+            break;
+          case 'n':
+            text.append('\n');
+            break;
+          case 'r':
+            text.append('\r');
+            break;
+          case 't':
+            text.append('\t');
+            break;
+          case 'u':
+            if (pos + 4 > in.length)
+              throw error("Bad unicode escape");
+            try {
+              text.append((char) Integer.parseInt(
+                  new String(in, pos, 4, StandardCharsets.US_ASCII), 16));
+            } catch (NumberFormatException e) {
+              throw error("Bad unicode escape");
+            }
+            pos += 4;
+            break;
+          default:
+            pos--;
+            throw error("Bad escape");
+        }
+      }
+    }
+
+    private Number number() throws CodecException {
+      int start = pos;
+      boolean integral = true;
+      while (pos < in.length) {
+        byte b = in[pos];
+        if (b == '.' || b == 'e' || b == 'E')
+          integral = false;
+        else if (b != '-' && b != '+' && (b < '0' || b > '9'))
+          break;
+        pos++;
+      }
+      if (start == pos)
+        throw error("Unexpected character '" + (char) in[pos] + "'");
+      String text = new String(in, start, pos - start, StandardCharsets.US_ASCII);
+      try {
+        if (integral) {
+          try {
+            return Long.valueOf(text);
+          } catch (NumberFormatException tooLong) {
+            // Falls through to a double
+          }
+        }
+        return Double.valueOf(text);
+      } catch (NumberFormatException e) {
+        pos = start;
+        throw error("Bad number '" + text + "'");
+      }
+    }
+
+    private void literal(byte[] expected) throws CodecException {
+      if (pos + expected.length > in.length)
+        throw error("Unexpected end");
+      for (int i = 0; i < expected.length; i++) {
+        if (in[pos + i] != expected[i])
+          throw error("Unknown literal");
+      }
+      pos += expected.length;
+    }
+
+    private void expect(char c) throws CodecException {
+      if (pos >= in.length || in[pos] != c)
+        throw error("Expected '" + c + "'");
+      pos++;
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+package me.kevinthorne.MQTTBlocks.codec;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer codecs encode into. One is pooled per thread and reused for every publish
+ * on it, so encoding doesn't allocate anything beyond the final payload array Paho keeps.
+ */
+public final class PayloadBuffer {
+
+  private static final int INITIAL_CAPACITY = 256;
+  /** Buffers grown past this are dropped after use instead of pinning the memory */
+  private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+  private static final ThreadLocal<PayloadBuffer> POOL = new ThreadLocal<PayloadBuffer>() {
+    @Override
+    protected PayloadBuffer initialValue() {
+      return new PayloadBuffer();
+    }
+  };
+
+  private byte[] bytes = new byte[INITIAL_CAPACITY];
+  private int size;
+  private boolean inUse;
+
+  /**
+   * @return this thread's buffer, emptied, or a new one if it is already in use
+   */
+  static PayloadBuffer acquire() {
+    PayloadBuffer buffer = POOL.get();
+    if (buffer.inUse)
+      buffer = new PayloadBuffer();
+    buffer.inUse = true;
+    buffer.size = 0;
+    return buffer;
+  }
+
+  /**
+   * Returns the buffer to its thread's pool.
+   */
+  void release() {
+    inUse = false;
+    if (bytes.length > MAX_POOLED_CAPACITY)
+      bytes = new byte[INITIAL_CAPACITY];
+  }
+
+  private void ensure(int extra) {
+    if (size + extra > bytes.length)
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+  }
+
+  public PayloadBuffer write(int b) {
+    ensure(1);
+    bytes[size++] = (byte) b;
+    return this;
+  }
+
+  public PayloadBuffer write(byte[] src, int offset, int length) {
+    ensure(length);
+    System.arraycopy(src, offset, bytes, size, length);
+    size += length;
+    return this;
+  }
+
+  /**
+   * Writes text as UTF-8 without going through an intermediate String or byte[].
+   * 
+   * @param text
+   * @return this
+   */
+  public PayloadBuffer writeUtf8(CharSequence text) {
+    int length = text.length();
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        if (size == bytes.length)
+          ensure(1);
+        bytes[size++] = (byte) c;
+      } else {
+        writeUtf8(text, i, c);
+        if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(text.charAt(i + 1)))
+          i++;
+      }
+    }
+    return this;
+  }
+
+  private void writeUtf8(CharSequence text, int i, char c) {
+    ensure(4);
+    if (c < 0x800) {
+      bytes[size++] = (byte) (0xc0 | (c >> 6));
+      bytes[size++] = (byte) (0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+        && Character.isLowSurrogate(text.charAt(i + 1))) {
+      int cp = Character.toCodePoint(c, text.charAt(i + 1));
+      bytes[size++] = (byte) (0xf0 | (cp >> 18));
+      bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+      bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      bytes[size++] = (byte) (0x80 | (cp & 0x3f));
+    } else if (Character.isSurrogate(c)) {
+      bytes[size++] = '?';
+    } else {
+      bytes[size++] = (byte) (0xe0 | (c >> 12));
+      bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+      bytes[size++] = (byte) (0x80 | (c & 0x3f));
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return exactly the bytes written
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, size);
+  }
+
+  /**
+   * @param reuse - array to copy into if it is exactly the right length, may be null
+   * @return the bytes written, in reuse or a new array
+   */
+  public byte[] toByteArray(byte[] reuse) {
+    if (reuse == null || reuse.length != size)
+      return toByteArray();
+    System.arraycopy(bytes, 0, reuse, 0, size);
+    return reuse;
+  }
+
+  /**
+   * Encodes text as UTF-8 in this thread's buffer.
+   *
+   * @param text
+   * @param reuse - array to copy into if it is exactly the right length, may be null
+   * @return the encoded text, in reuse or a new array
+   */
+  public static byte[] utf8(CharSequence text, byte[] reuse) {
+    PayloadBuffer buffer = acquire();
+    try {
+      return buffer.writeUtf8(text).toByteArray(reuse);
+    } finally {
+      buffer.release();
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+package me.kevinthorne.MQTTBlocks.codec;
+
+/**
+ * Turns payloads into objects and back for the topics it is registered on. Codecs are shared by
+ * every message on those topics, possibly from several threads at once, so they must be
+ * stateless or thread-safe.
+ *
+ * <p>
+ * Besides the built-in string, json and binary codecs, a codec can be named in a block's config
+ * by the value {@link #getName()} returns, if it is listed in
+ * META-INF/services/me.kevinthorne.MQTTBlocks.codec.PayloadCodec, or by its class name.
+ */
+public interface PayloadCodec {
+
+  /**
+   * @return name used for this codec in the codecs config key
+   */
+  String getName();
+
+  /**
+   * @param topic
+   * @param payload - the received bytes, don't modify them
+   * @return decoded value
+   * @throws CodecException if the payload can't be decoded
+   */
+  Object decode(String topic, byte[] payload) throws CodecException;
+
+  /**
+   * Encodes a value to publish. Codecs that write their output should write it to the buffer
+   * and return {@link PayloadBuffer#toByteArray()}; the buffer is pooled, so the copy is the only
+   * allocation.
+   * 
+   * @param topic
+   * @param value
+   * @param buffer - empty scratch buffer, only valid during the call
+   * @return the payload to publish
+   * @throws CodecException if the value can't be encoded
+   */
+  byte[] encode(String topic, Object value, PayloadBuffer buffer) throws CodecException;
+
+}
@@ -0,0 +1,30 @@
+package me.kevinthorne.MQTTBlocks.codec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 text. Values of any type are published as their toString().
+ */
+public class StringCodec implements PayloadCodec {
+
+  public static final String NAME = "string";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Object decode(String topic, byte[] payload) {
+    return new String(payload, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public byte[] encode(String topic, Object value, PayloadBuffer buffer) throws CodecException {
+    if (value == null)
+      throw new CodecException("Can't publish null on " + topic);
+    return buffer.writeUtf8(value instanceof CharSequence ? (CharSequence) value
+        : value.toString()).toByteArray();
+  }
+
+}
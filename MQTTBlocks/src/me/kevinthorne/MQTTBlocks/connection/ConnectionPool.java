@@ -0,0 +1,221 @@
+package me.kevinthorne.MQTTBlocks.connection;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.BlockScheduler;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.blocks.StartupTimes;
+
+/**
+ * Hands out one physical MQTT connection per broker/credential pair, shared between every block
+ * that points at it.
+ *
+ * <p>
+ * Lost connections reconnect on their own. At most mqttblocks.reconnect.concurrency (default 4)
+ * reconnects are attempted at once across the pool, so a recovering broker isn't hit by every
+ * connection at the same moment.
+ */
+public class ConnectionPool {
+
+  public static final String RECONNECT_PROPERTY = "mqttblocks.reconnect.concurrency";
+
+  private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+
+  private final BlockScheduler scheduler;
+  private final Semaphore reconnects;
+
+  private final Map<Key, SharedConnection> connections = new HashMap<>();
+  private final Map<MQTTBlock, SharedConnection> leases = new HashMap<>();
+  private final Map<String, LoopbackBus> loopbacks = new HashMap<>();
+
+  public ConnectionPool(BlockScheduler scheduler) {
+    this.scheduler = scheduler;
+    this.reconnects = new Semaphore(Math.max(1, Integer.getInteger(RECONNECT_PROPERTY, 4)));
+  }
+
+  /**
+   * Attaches the block to the connection for its broker, connecting a new client if this is the
+   * first block to ask for it. The pool is only locked while the connection is looked up, so
+   * blocks on different brokers connect in parallel. Time spent connecting and subscribing is
+   * recorded in the block's StartupTimes.
+   *
+   * @param block
+   * @return the connection the block is now attached to
+   * @throws MqttException
+   */
+  public SharedConnection acquire(MQTTBlock block) throws MqttException {
+    SharedConnection connection;
+    synchronized (this) {
+      connection = leases.get(block);
+      if (connection != null)
+        return connection;
+      Key key = new Key(block.getBlockConfig());
+      connection = connections.get(key);
+      if (connection == null) {
+        connection = new SharedConnection(this, block.getBlockConfig());
+        connections.put(key, connection);
+      } else {
+        String clientId = block.getBlockConfig().getClientId();
+        if (clientId != null && !clientId.isEmpty()
+            && !clientId.equals(connection.getClientId()))
+          logger.warning(block.getBlockName() + " joins the connection to " + block.getBroker()
+              + " as " + connection.getClientId() + ", not its own clientId " + clientId
+              + "; set sharedConnection=false to connect as " + clientId);
+      }
+      connection.leases++;
+      leases.put(block, connection);
+    }
+
+    StartupTimes times = block.getStartupTimes();
+    try {
+      long start = System.nanoTime();
+      if (connection.connect())
+        logger.info("Opened connection to " + block.getBroker() + " for " + block.getBlockName());
+      long connected = System.nanoTime();
+      times.setConnectNanos(connected - start);
+      connection.attach(block);
+      times.setSubscribeNanos(System.nanoTime() - connected);
+    } catch (MqttException | RuntimeException e) {
+      release(block);
+      throw e;
+    }
+    return connection;
+  }
+
+  /**
+   * Detaches the block from its connection, closing the connection once no block uses it.
+   *
+   * @param block
+   */
+  public synchronized void release(MQTTBlock block) {
+    SharedConnection connection = leases.remove(block);
+    if (connection == null)
+      return;
+    connection.detach(block);
+    if (--connection.leases == 0) {
+      connections.values().remove(connection);
+      connection.close();
+      logger.info("Closed connection to " + connection.getBroker());
+    }
+  }
+
+  /**
+   * @return true if the connection may start a reconnect now; it must call reconnected() once
+   *         the attempt has finished
+   */
+  boolean tryReconnect() {
+    return reconnects.tryAcquire();
+  }
+
+  void reconnected() {
+    reconnects.release();
+  }
+
+  ScheduledFuture<?> schedule(Runnable task, long delay) {
+    return scheduler.schedule(task, delay);
+  }
+
+  void execute(Runnable task) {
+    scheduler.execute(task);
+  }
+
+  public synchronized void closeAll() {
+    for (SharedConnection connection : connections.values()) {
+      connection.close();
+    }
+    connections.clear();
+    leases.clear();
+  }
+
+  /**
+   * @param broker
+   * @return the in-process bus shared by local-delivery blocks on this broker
+   */
+  public synchronized LoopbackBus getLoopback(String broker) {
+    LoopbackBus bus = loopbacks.get(broker);
+    if (bus == null) {
+      bus = new LoopbackBus(broker);
+      loopbacks.put(broker, bus);
+    }
+    return bus;
+  }
+
+  public synchronized int getConnectionCount() {
+    return connections.size();
+  }
+
+  /**
+   * Broker URL, credentials and persistence; blocks that opt out of sharing also key on their own
+   * name. With file persistence the clientId and persistenceDir identify the session being
+   * resumed, so they are part of the key too. Blocks with shared subscriptions get a connection apart from those without: the broker
+   * sends a client one copy per matching subscription and a copy can't be told apart from the
+   * rest, so a group's messages would otherwise reach plain subscribers of the same topics too.
+   */
+  private static class Key {
+
+    private final String broker;
+    private final String username;
+    private final char[] password;
+    private final String owner;
+    private final SharedConnection.Persistence persistence;
+    /** Null unless the persistence is FILE */
+    private final String clientId;
+    private final String persistenceDir;
+    private final boolean shares;
+
+    Key(BlockConfigurationFile config) {
+      this.broker = config.getBroker();
+      this.username = config.getUsername();
+      this.password = config.getPassword();
+      this.owner = config.isSharedConnection() ? null : config.getName();
+      this.persistence = config.getPersistence();
+      boolean durable = persistence == SharedConnection.Persistence.FILE;
+      this.clientId = durable ? config.getClientId() : null;
+      this.persistenceDir = durable ? config.getPersistenceDir() : null;
+      boolean shares = false;
+      String[] filters = config.getSubscribedTopics();
+      for (int i = 0; filters != null && i < filters.length; i++) {
+        shares |= TopicTrie.isShared(filters[i]);
+      }
+      this.shares = shares;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key))
+        return false;
+      Key key = (Key) other;
+      return equal(broker, key.broker) && equal(username, key.username)
+          && Arrays.equals(password, key.password) && equal(owner, key.owner)
+          && persistence == key.persistence && equal(clientId, key.clientId)
+          && equal(persistenceDir, key.persistenceDir) && shares == key.shares;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = broker == null ? 0 : broker.hashCode();
+      result = 31 * result + (username == null ? 0 : username.hashCode());
+      result = 31 * result + Arrays.hashCode(password);
+      result = 31 * result + (owner == null ? 0 : owner.hashCode());
+      result = 31 * result + persistence.hashCode();
+      result = 31 * result + (clientId == null ? 0 : clientId.hashCode());
+      result = 31 * result + (persistenceDir == null ? 0 : persistenceDir.hashCode());
+      result = 31 * result + (shares ? 1 : 0);
+      return result;
+    }
+
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+package me.kevinthorne.MQTTBlocks.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.EchoSuppressionCache;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+/**
+ * In-process delivery between the blocks of one manager that use the same broker. A message
+ * published by a block with localDelivery enabled is handed straight to the matching local
+ * subscribers' inbound queues, with the QoS and retain flag the broker would have given them.
+ *
+ * <p>
+ * If the publisher also forwards to the broker, the broker keeps the retained messages, and once
+ * the publish pipeline has taken the message each local subscriber remembers it so the broker's
+ * copy is dropped when it arrives. If it doesn't, retained messages are kept here and replayed to local blocks as they subscribe.
+ *
+ * <p>
+ * Shared subscriptions are left to the broker, which picks one member of the group for each
+ * message across every node, so they only receive messages that are forwarded to it.
+ */
+public class LoopbackBus {
+
+  /**
+   * Blocks always subscribe at QoS 1, so that is the most a subscriber is delivered at.
+   */
+  private static final int SUBSCRIPTION_QOS = 1;
+
+  private final String broker;
+  private final TopicTrie<Route> trie = new TopicTrie<>();
+  private final Map<MQTTBlock, Route> routes = new ConcurrentHashMap<>();
+  private final Map<String, MqttMessage> retained = new ConcurrentHashMap<>();
+
+  LoopbackBus(String broker) {
+    this.broker = broker;
+  }
+
+  /**
+   * Routes matching local messages to the block for its configured topics.
+   *
+   * @param block
+   */
+  public void attach(MQTTBlock block) {
+    routes.put(block, new Route(block));
+    String[] filters = block.getBlockConfig().getSubscribedTopics();
+    if (filters != null) {
+      for (String filter : filters) {
+        subscribe(block, filter);
+      }
+    }
+  }
+
+  /**
+   * Routes matching local messages to the block and replays retained local messages to it.
+   *
+   * @param block
+   * @param filter
+   */
+  public void subscribe(MQTTBlock block, String filter) {
+    Route route = routes.get(block);
+    if (route == null || TopicTrie.isShared(filter) || !route.filters.add(filter))
+      return;
+    trie.add(filter, route);
+    for (Map.Entry<String, MqttMessage> message : retained.entrySet()) {
+      if (TopicTrie.matches(filter, message.getKey()))
+        deliver(block, message.getKey(), message.getValue());
+    }
+  }
+
+  public void unsubscribe(MQTTBlock block, String filter) {
+    Route route = routes.get(block);
+    if (route != null && route.filters.remove(filter))
+      trie.remove(filter, route);
+  }
+
+  public void detach(MQTTBlock block) {
+    Route route = routes.remove(block);
+    if (route == null)
+      return;
+    for (String filter : route.filters) {
+      trie.remove(filter, route);
+    }
+  }
+
+  /**
+   * Delivers a message to every local block subscribed to the topic.
+   *
+   * @param topic
+   * @param message - its payload is shared with the subscribers, not copied
+   * @param forwarded - whether the message is also being published to the broker
+   * @return number of blocks the message was delivered to
+   */
+  public int publish(String topic, MqttMessage message, boolean forwarded) {
+    if (message.isRetained() && !forwarded) {
+      if (message.getPayload().length == 0) {
+        retained.remove(topic);
+      } else {
+        MqttMessage copy = new MqttMessage(message.getPayload());
+        copy.setQos(Math.min(message.getQos(), SUBSCRIPTION_QOS));
+        copy.setRetained(true);
+        retained.put(topic, copy);
+      }
+    }
+
+    List<Route> matched = match(topic);
+    if (matched.isEmpty())
+      return 0;
+
+    MqttMessage live = new MqttMessage(message.getPayload());
+    live.setQos(Math.min(message.getQos(), SUBSCRIPTION_QOS));
+    for (Route route : matched) {
+      deliver(route.block, topic, live);
+    }
+    return matched.size();
+  }
+
+  /**
+   * Has the local subscribers to a topic drop the broker's copy of a forwarded message, which
+   * they were already given. Called once the message is queued for the broker, before it is sent.
+   *
+   * @param topic
+   * @param payload
+   */
+  public void recordEchoes(String topic, byte[] payload) {
+    for (Route route : match(topic)) {
+      EchoSuppressionCache echoes = route.block.getLoopbackEchoes();
+      if (echoes != null)
+        echoes.record(topic, payload);
+    }
+  }
+
+  /**
+   * Undoes recordEchoes for a message that won't reach the broker after all, having failed or
+   * been replaced by a newer one.
+   *
+   * @param topic
+   * @param payload
+   */
+  public void forgetEchoes(String topic, byte[] payload) {
+    for (Route route : match(topic)) {
+      EchoSuppressionCache echoes = route.block.getLoopbackEchoes();
+      if (echoes != null)
+        echoes.forget(topic, payload);
+    }
+  }
+
+  /**
+   * @param topic
+   * @return the routes subscribed to the topic, each once however many of its filters match
+   */
+  private List<Route> match(String topic) {
+    final List<Route> matched = new ArrayList<>();
+    trie.match(topic, new TopicTrie.Visitor<Route>() {
+      @Override
+      public void visit(Route route) {
+        matched.add(route);
+      }
+    });
+    if (matched.size() < 2)
+      return matched;
+    Set<Route> seen = Collections.newSetFromMap(new IdentityHashMap<Route, Boolean>());
+    List<Route> distinct = new ArrayList<>(matched.size());
+    for (Route route : matched) {
+      if (seen.add(route))
+        distinct.add(route);
+    }
+    return distinct;
+  }
+
+  private void deliver(MQTTBlock block, String topic, MqttMessage message) {
+    try {
+      block.messageArrived(topic, message);
+    } catch (Exception e) {
+      BlockManager.logError(block, "Error while handling local message on " + topic);
+      e.printStackTrace();
+    }
+  }
+
+  public String getBroker() {
+    return broker;
+  }
+
+  public int getRetainedCount() {
+    return retained.size();
+  }
+
+  /**
+   * A local block and the filters it has on this bus.
+   */
+  private static class Route {
+
+    private final MQTTBlock block;
+    private final Set<String> filters = ConcurrentHashMap.newKeySet();
+
+    Route(MQTTBlock block) {
+      this.block = block;
+    }
+  }
+
+}
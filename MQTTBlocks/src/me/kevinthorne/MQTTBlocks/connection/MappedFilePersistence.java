@@ -0,0 +1,579 @@
+package me.kevinthorne.MQTTBlocks.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+
+/**
+ * Keeps a client's in-flight QoS 1 and 2 state in memory-mapped segment files, so it survives a
+ * restart and doesn't sit on the heap. Only the key index is held in memory.
+ *
+ * <p>
+ * Every put and remove is appended to the active segment as a checksummed record; when the
+ * segment is full a new one is started. Once less than half of the sealed segments' bytes are
+ * still live, the live records are copied forward on a background thread and the sealed segments
+ * are deleted. On open, the segments are replayed in order, stopping at the first torn or
+ * corrupt record in each, and appending resumes in a fresh segment.
+ *
+ * <p>
+ * Writes are not forced to disk one by one: a crashed process loses nothing, but a power cut can
+ * lose the last few records.
+ */
+public class MappedFilePersistence implements MqttClientPersistence {
+
+  private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+
+  public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String LOCK_FILE = ".lck";
+  /** Record length and CRC32 */
+  private static final int RECORD_PREFIX = 8;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+
+  private static final ExecutorService compactor =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+          Thread thread = new Thread(task, "MQTTBlocks-compactor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final File root;
+  private final int segmentSize;
+  private final long maxBytes;
+
+  private File directory;
+  private RandomAccessFile lockFile;
+  private FileLock lock;
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+  private final Map<String, Location> index = new HashMap<>();
+  private Segment active;
+  private int nextId;
+  private long liveBytes;
+  private boolean compacting;
+
+  /**
+   * @param root - each client gets its own directory under this one
+   * @param segmentSize - <strong>bytes</strong> per segment file
+   * @param maxBytes - <strong>bytes</strong> of live records before puts are refused
+   */
+  public MappedFilePersistence(File root, int segmentSize, long maxBytes) {
+    this.root = root;
+    this.segmentSize = segmentSize;
+    this.maxBytes = maxBytes;
+  }
+
+  public MappedFilePersistence(File root) {
+    this(root, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BYTES);
+  }
+
+  @Override
+  public synchronized void open(String clientId, String serverURI)
+      throws MqttPersistenceException {
+    File target = new File(root, sanitize(clientId + "-" + serverURI));
+    // Paho opens its persistence again on every connect
+    if (active != null && target.equals(directory))
+      return;
+    close();
+    directory = target;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new MqttPersistenceException(new IOException("Could not create " + directory));
+    try {
+      lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+      try {
+        lock = lockFile.getChannel().tryLock();
+      } catch (OverlappingFileLockException e) {
+        // Held by another client in this JVM
+      }
+      if (lock == null) {
+        close();
+        throw new MqttPersistenceException(
+            MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+      }
+      recover();
+      roll(0);
+    } catch (IOException e) {
+      close();
+      throw new MqttPersistenceException(e);
+    }
+    if (!index.isEmpty())
+      logger.info("Recovered " + index.size() + " in-flight record(s) from " + directory);
+    maybeCompact();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (active != null)
+      active.map.force();
+    segments.clear();
+    index.clear();
+    active = null;
+    liveBytes = 0;
+    try {
+      if (lock != null)
+        lock.release();
+      if (lockFile != null)
+        lockFile.close();
+    } catch (IOException e) {
+      logger.warning("Could not release " + directory + ": " + e.getMessage());
+    }
+    lock = null;
+    lockFile = null;
+  }
+
+  @Override
+  public synchronized void put(String key, MqttPersistable persistable)
+      throws MqttPersistenceException {
+    checkOpen();
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int headerLength = persistable.getHeaderLength();
+    int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+    int bodyLength = 1 + 2 + keyBytes.length + 4 + headerLength + 4 + payloadLength;
+    Location previous = index.get(key);
+    long growth = RECORD_PREFIX + bodyLength - (previous == null ? 0 : previous.size);
+    if (liveBytes + growth > maxBytes)
+      throw new MqttPersistenceException(
+          new IOException(directory + " is full (" + liveBytes + " live bytes)"));
+
+    ByteBuffer body = ByteBuffer.allocate(bodyLength);
+    body.put(PUT).putShort((short) keyBytes.length).put(keyBytes);
+    body.putInt(headerLength).put(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+        headerLength);
+    body.putInt(payloadLength);
+    if (payloadLength > 0)
+      body.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+    int offset = append(body.array());
+
+    int headerOffset = offset + RECORD_PREFIX + 3 + keyBytes.length + 4;
+    Location location = new Location(active, offset, RECORD_PREFIX + bodyLength, headerOffset,
+        headerLength, headerOffset + headerLength + 4, payloadLength);
+    index.put(key, location);
+    active.live += location.size;
+    liveBytes += location.size;
+    if (previous != null)
+      discard(previous);
+  }
+
+  @Override
+  public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+    checkOpen();
+    Location location = index.get(key);
+    if (location == null)
+      return null;
+    byte[] header = new byte[location.headerLength];
+    byte[] payload = new byte[location.payloadLength];
+    ByteBuffer view = location.segment.map.duplicate();
+    view.position(location.headerOffset);
+    view.get(header);
+    view.position(location.payloadOffset);
+    view.get(payload);
+    return new Stored(header, payload);
+  }
+
+  @Override
+  public synchronized void remove(String key) throws MqttPersistenceException {
+    checkOpen();
+    Location location = index.remove(key);
+    if (location == null)
+      return;
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer body = ByteBuffer.allocate(3 + keyBytes.length);
+    body.put(REMOVE).putShort((short) keyBytes.length).put(keyBytes);
+    append(body.array());
+    discard(location);
+  }
+
+  @Override
+  public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+    checkOpen();
+    return Collections.enumeration(new ArrayList<>(index.keySet()));
+  }
+
+  @Override
+  public synchronized void clear() throws MqttPersistenceException {
+    checkOpen();
+    for (Segment segment : new ArrayList<>(segments.values())) {
+      delete(segment);
+    }
+    index.clear();
+    liveBytes = 0;
+    try {
+      roll(0);
+    } catch (IOException e) {
+      throw new MqttPersistenceException(e);
+    }
+  }
+
+  @Override
+  public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+    checkOpen();
+    return index.containsKey(key);
+  }
+
+  /**
+   * @return number of segment files, including the active one
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * @return long <strong>bytes</strong> of records still referenced by a key
+   */
+  public synchronized long getLiveBytes() {
+    return liveBytes;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Writes a record to the active segment, starting a new segment if it doesn't fit.
+   *
+   * @param body
+   * @return offset of the record in the active segment
+   * @throws MqttPersistenceException
+   */
+  private int append(byte[] body) throws MqttPersistenceException {
+    int size = RECORD_PREFIX + body.length;
+    if (active.position + size > active.capacity) {
+      try {
+        roll(size);
+      } catch (IOException e) {
+        throw new MqttPersistenceException(e);
+      }
+      maybeCompact();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, body.length);
+    int offset = active.position;
+    ByteBuffer view = active.map.duplicate();
+    view.position(offset + 4);
+    view.putInt((int) crc.getValue());
+    view.put(body);
+    // Length last, so a record cut short by a crash reads as the end of the segment
+    active.map.putInt(offset, body.length);
+    active.position += size;
+    return offset;
+  }
+
+  /**
+   * Seals the active segment and starts a new one.
+   *
+   * @param needed - <strong>bytes</strong> the new segment must hold at least
+   * @throws IOException
+   */
+  private void roll(int needed) throws IOException {
+    int id = nextId++;
+    if (active != null)
+      active.map.force();
+    active = new Segment(id, new File(directory, String.format("%010d", id) + SEGMENT_SUFFIX),
+        Math.max(segmentSize, needed), true);
+    segments.put(id, active);
+  }
+
+  private void discard(Location location) {
+    location.segment.live -= location.size;
+    liveBytes -= location.size;
+    if (location.segment != active)
+      maybeCompact();
+  }
+
+  /**
+   * Schedules a compaction once less than half of the sealed segments is live.
+   */
+  private void maybeCompact() {
+    if (compacting || active == null)
+      return;
+    Collection<Segment> sealed = segments.headMap(active.id).values();
+    long written = 0;
+    long live = 0;
+    for (Segment segment : sealed) {
+      written += segment.position;
+      live += segment.live;
+    }
+    if (sealed.isEmpty() || live * 2 > written)
+      return;
+    compacting = true;
+    compactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        compact();
+      }
+    });
+  }
+
+  /**
+   * Copies live records out of the sealed segments into the active one and deletes the sealed
+   * segments, oldest first so a crash part way through never leaves a removal without the put it
+   * cancels.
+   */
+  private synchronized void compact() {
+    compacting = false;
+    if (active == null)
+      return;
+    List<Segment> sealed = new ArrayList<>(segments.headMap(active.id).values());
+    if (sealed.isEmpty())
+      return;
+    Set<Segment> sources = Collections.newSetFromMap(new IdentityHashMap<Segment, Boolean>());
+    sources.addAll(sealed);
+    try {
+      for (Location location : index.values()) {
+        if (!sources.contains(location.segment))
+          continue;
+        byte[] record = new byte[location.size];
+        ByteBuffer view = location.segment.map.duplicate();
+        view.position(location.offset);
+        view.get(record);
+        if (active.position + record.length > active.capacity)
+          roll(record.length);
+        ByteBuffer target = active.map.duplicate();
+        target.position(active.position);
+        target.put(record);
+        location.move(active, active.position);
+        active.live += record.length;
+        active.position += record.length;
+      }
+      for (Segment segment : sealed) {
+        delete(segment);
+      }
+    } catch (IOException e) {
+      logger.warning("Could not compact " + directory + ": " + e.getMessage());
+    }
+  }
+
+  private void delete(Segment segment) {
+    segments.remove(segment.id);
+    // The mapping can outlive the file on some platforms; an empty first record hides it on replay
+    segment.map.putInt(0, 0);
+    segment.map.force();
+    if (!segment.file.delete())
+      logger.warning("Could not delete " + segment.file);
+  }
+
+  /**
+   * Replays every segment in the directory into the index.
+   *
+   * @throws IOException
+   */
+  private void recover() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null)
+      return;
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(SEGMENT_SUFFIX))
+        continue;
+      try {
+        int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        segments.put(id, new Segment(id, file, (int) file.length(), false));
+      } catch (NumberFormatException e) {
+        logger.warning("Ignoring " + file);
+      }
+    }
+    for (Segment segment : segments.values()) {
+      replay(segment);
+    }
+    nextId = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+  }
+
+  private void replay(Segment segment) {
+    ByteBuffer view = segment.map.duplicate();
+    CRC32 crc = new CRC32();
+    while (segment.position + RECORD_PREFIX <= segment.capacity) {
+      int offset = segment.position;
+      int length = view.getInt(offset);
+      if (length <= 0 || offset + RECORD_PREFIX + length > segment.capacity)
+        break;
+      byte[] body = new byte[length];
+      view.position(offset + RECORD_PREFIX);
+      view.get(body);
+      crc.reset();
+      crc.update(body, 0, length);
+      if ((int) crc.getValue() != view.getInt(offset + 4)) {
+        logger.warning("Stopped replaying " + segment.file + " at corrupt record " + offset);
+        break;
+      }
+      segment.position += RECORD_PREFIX + length;
+
+      ByteBuffer record = ByteBuffer.wrap(body);
+      byte type = record.get();
+      byte[] keyBytes = new byte[record.getShort() & 0xFFFF];
+      record.get(keyBytes);
+      String key = new String(keyBytes, StandardCharsets.UTF_8);
+      Location previous = index.remove(key);
+      if (previous != null) {
+        previous.segment.live -= previous.size;
+        liveBytes -= previous.size;
+      }
+      if (type != PUT)
+        continue;
+      int headerOffset = offset + RECORD_PREFIX + record.position() + 4;
+      int headerLength = record.getInt();
+      record.position(record.position() + headerLength);
+      int payloadLength = record.getInt();
+      Location location = new Location(segment, offset, RECORD_PREFIX + length, headerOffset,
+          headerLength, headerOffset + headerLength + 4, payloadLength);
+      index.put(key, location);
+      segment.live += location.size;
+      liveBytes += location.size;
+    }
+  }
+
+  private void checkOpen() throws MqttPersistenceException {
+    if (active == null)
+      throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_EXCEPTION);
+  }
+
+  private static String sanitize(String name) {
+    StringBuilder result = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      result.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+    }
+    return result.toString();
+  }
+
+  /**
+   * One mapped segment file. Only touched while holding the persistence's lock.
+   */
+  private static class Segment {
+
+    private final int id;
+    private final File file;
+    private final int capacity;
+    private final MappedByteBuffer map;
+    /** Bytes written so far */
+    private int position;
+    /** Bytes of records still in the index */
+    private long live;
+
+    /**
+     * @param create - start from an empty file rather than mapping what is there
+     */
+    Segment(int id, File file, int capacity, boolean create) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.capacity = capacity;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if (create)
+          raf.setLength(0);
+        raf.setLength(capacity);
+        // The mapping stays valid once the channel is closed
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      }
+    }
+  }
+
+  /**
+   * Where a key's latest put lives.
+   */
+  private static class Location {
+
+    private Segment segment;
+    private int offset;
+    private final int size;
+    private int headerOffset;
+    private final int headerLength;
+    private int payloadOffset;
+    private final int payloadLength;
+
+    Location(Segment segment, int offset, int size, int headerOffset, int headerLength,
+        int payloadOffset, int payloadLength) {
+      this.segment = segment;
+      this.offset = offset;
+      this.size = size;
+      this.headerOffset = headerOffset;
+      this.headerLength = headerLength;
+      this.payloadOffset = payloadOffset;
+      this.payloadLength = payloadLength;
+    }
+
+    void move(Segment to, int newOffset) {
+      int shift = newOffset - offset;
+      segment.live -= size;
+      segment = to;
+      offset = newOffset;
+      headerOffset += shift;
+      payloadOffset += shift;
+    }
+  }
+
+  /**
+   * A record read back for Paho.
+   */
+  private static class Stored implements MqttPersistable {
+
+    private final byte[] header;
+    private final byte[] payload;
+
+    Stored(byte[] header, byte[] payload) {
+      this.header = header;
+      this.payload = payload;
+    }
+
+    @Override
+    public byte[] getHeaderBytes() {
+      return header;
+    }
+
+    @Override
+    public int getHeaderOffset() {
+      return 0;
+    }
+
+    @Override
+    public int getHeaderLength() {
+      return header.length;
+    }
+
+    @Override
+    public byte[] getPayloadBytes() {
+      return payload;
+    }
+
+    @Override
+    public int getPayloadOffset() {
+      return 0;
+    }
+
+    @Override
+    public int getPayloadLength() {
+      return payload.length;
+    }
+  }
+
+}
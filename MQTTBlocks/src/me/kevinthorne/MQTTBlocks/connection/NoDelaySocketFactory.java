@@ -0,0 +1,49 @@
+package me.kevinthorne.MQTTBlocks.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * Creates plain TCP sockets with Nagle's algorithm turned off. Paho writes a PUBLISH header and
+ * its payload separately, so with Nagle on each publish can sit behind the broker's delayed ACK.
+ */
+class NoDelaySocketFactory extends SocketFactory {
+
+  private final SocketFactory delegate = SocketFactory.getDefault();
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return configure(delegate.createSocket());
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return configure(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+      throws IOException {
+    return configure(delegate.createSocket(host, port, localHost, localPort));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return configure(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+      int localPort) throws IOException {
+    return configure(delegate.createSocket(address, port, localAddress, localPort));
+  }
+
+  private static Socket configure(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    return socket;
+  }
+
+}
@@ -0,0 +1,425 @@
+package me.kevinthorne.MQTTBlocks.connection;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+/**
+ * Non-blocking publish path for a shared connection. Publishes are queued in a bounded buffer and
+ * handed to the async client while fewer than the window are awaiting their acknowledgement;
+ * each completion, reported through deliveryComplete, lets the next one go.
+ *
+ * <p>
+ * While the connection is down the queue doubles as the offline buffer. Messages that were in
+ * flight when it dropped go back to the front of the queue, unless the client persists them to
+ * a file and resends them itself; those stay in flight until the resent copy is acknowledged.
+ *
+ * <p>
+ * A conflating publish replaces the block's message for the same topic if one is still queued,
+ * so a backed-up connection only ever sends the latest value. The replaced caller's future
+ * completes with the message that superseded it.
+ */
+public class PublishPipeline {
+
+  /**
+   * What publish() does when the outbound queue is full.
+   */
+  public enum Overflow {
+    /** Wait for space, up to the configured timeout */
+    BLOCK,
+    /** Fail the oldest queued publish to make room */
+    DROP_OLDEST,
+    /** Fail the new publish */
+    FAIL;
+
+    public static Overflow parse(String value) {
+      return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  /**
+   * Takes back a message once the broker has acknowledged it, for publishers that reuse them.
+   */
+  public interface Recycler {
+    void recycle(MqttMessage message);
+  }
+
+  /**
+   * Paho 1.0.x rejects publishes beyond ten in flight per client.
+   */
+  public static final int MAX_WINDOW = 10;
+
+  private final IMqttAsyncClient client;
+  private final int window;
+  private final int capacity;
+  private final Overflow overflow;
+  private final long blockTimeout;
+  /** False when the client persists in-flight messages to a file and resends them itself */
+  private final boolean requeueLost;
+
+  private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+  /** Queued conflating publishes by block and topic */
+  private final Map<MQTTBlock, Map<String, Pending>> latest = new HashMap<>();
+  private int inFlight;
+  private boolean closed;
+
+  private final IMqttActionListener failureListener = new IMqttActionListener() {
+    @Override
+    public void onSuccess(IMqttToken token) {
+      // Completed through deliveryComplete
+    }
+
+    @Override
+    public void onFailure(IMqttToken token, Throwable cause) {
+      Object context = token.getUserContext();
+      if (context instanceof Pending)
+        finish((Pending) context, null, cause);
+    }
+  };
+
+  PublishPipeline(IMqttAsyncClient client, BlockConfigurationFile config) {
+    this.client = client;
+    this.window = Math.max(1, Math.min(MAX_WINDOW, config.getPublishWindow()));
+    this.capacity = Math.max(1, config.getPublishQueue());
+    this.overflow = config.getPublishOverflow();
+    this.blockTimeout = config.getPublishBlockTimeout();
+    this.requeueLost = config.getPersistence() != SharedConnection.Persistence.FILE;
+  }
+
+  /**
+   * Queues a message for publishing.
+   *
+   * @param source - block the completion is reported to
+   * @param topic
+   * @param message
+   * @return completes with the delivery token once the broker has acknowledged the message
+   */
+  public CompletableFuture<IMqttDeliveryToken> publish(MQTTBlock source, String topic,
+      MqttMessage message) {
+    return publish(source, topic, message, false);
+  }
+
+  /**
+   * Queues a message for publishing, optionally replacing the source's queued message on the
+   * same topic.
+   *
+   * @param source - block the completion is reported to
+   * @param topic
+   * @param message
+   * @param conflate - whether a newer conflating publish on the topic may replace this one
+   * @return completes with the delivery token once the broker has acknowledged the message, or
+   *         the message that replaced it
+   */
+  public CompletableFuture<IMqttDeliveryToken> publish(MQTTBlock source, String topic,
+      MqttMessage message, boolean conflate) {
+    return publish(source, topic, message, conflate, null);
+  }
+
+  /**
+   * Queues a message already delivered to local subscribers, who are told to drop the broker's
+   * copy once it is queued, and to stop expecting it if it fails or is replaced.
+   *
+   * @param source - block the completion is reported to
+   * @param topic
+   * @param message
+   * @param conflate - whether a newer conflating publish on the topic may replace this one
+   * @param loopback - bus the message was delivered on, or null
+   * @return completes with the delivery token once the broker has acknowledged the message, or
+   *         the message that replaced it
+   */
+  public CompletableFuture<IMqttDeliveryToken> publish(MQTTBlock source, String topic,
+      MqttMessage message, boolean conflate, LoopbackBus loopback) {
+    return enqueue(new Pending(source, topic, message, conflate, null, loopback));
+  }
+
+  /**
+   * Queues a message without a future; failures are only logged and counted. Once the broker
+   * acknowledges it, and the block's deliveryComplete has returned, the message is handed to the
+   * recycler. Messages that fail aren't, as the client may still hold them to resend.
+   *
+   * @param source
+   * @param topic
+   * @param message
+   * @param recycler
+   */
+  public void send(MQTTBlock source, String topic, MqttMessage message, Recycler recycler) {
+    enqueue(new Pending(source, topic, message, false, recycler, null));
+  }
+
+  /**
+   * @param pending
+   * @return the future of the publish, or of the queued one it replaced
+   */
+  private CompletableFuture<IMqttDeliveryToken> enqueue(Pending pending) {
+    MQTTBlock source = pending.source;
+    String topic = pending.topic;
+    MqttMessage message = pending.message;
+    boolean conflate = pending.conflate;
+    Pending dropped = null;
+    synchronized (this) {
+      if (closed) {
+        pending.reject(new IllegalStateException("Connection closed"));
+        return pending.future;
+      }
+      if (conflate) {
+        Map<String, Pending> topics = latest.get(source);
+        Pending queued = topics == null ? null : topics.get(topic);
+        if (queued != null) {
+          queued.replace(message);
+          source.getMetrics().recordConflated();
+          return queued.future;
+        }
+      }
+      if (queue.size() >= capacity) {
+        switch (overflow) {
+          case FAIL:
+            pending.reject(
+                new RejectedExecutionException("Publish queue full (" + capacity + ")"));
+            return pending.future;
+          case DROP_OLDEST:
+            dropped = queue.poll();
+            forget(dropped);
+            break;
+          case BLOCK:
+            if (!awaitSpace()) {
+              pending.reject(new RejectedExecutionException(
+                  "Publish queue full (" + capacity + ") for " + blockTimeout + "ms"));
+              return pending.future;
+            }
+            break;
+        }
+      }
+      pending.accept();
+      queue.add(pending);
+      if (conflate) {
+        Map<String, Pending> topics = latest.get(source);
+        if (topics == null)
+          latest.put(source, topics = new HashMap<>());
+        topics.put(topic, pending);
+      }
+    }
+    if (dropped != null)
+      dropped.reject(
+          new RejectedExecutionException("Dropped to make room in the publish queue"));
+    drain();
+    return pending.future;
+  }
+
+  private boolean awaitSpace() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+    while (queue.size() >= capacity && !closed) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0)
+        return false;
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return !closed;
+  }
+
+  /**
+   * Sends queued messages while the window has room and the client is connected.
+   */
+  void drain() {
+    while (true) {
+      Pending next;
+      synchronized (this) {
+        if (closed || inFlight >= window || queue.isEmpty() || !client.isConnected())
+          return;
+        next = queue.poll();
+        forget(next);
+        inFlight++;
+        notifyAll();
+      }
+      try {
+        client.publish(next.topic, next.message, next, failureListener);
+      } catch (MqttException e) {
+        if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+          finish(next, null, e);
+          continue;
+        }
+        // Paho releases its own slot just after deliveryComplete returns; retry on the next one
+        synchronized (this) {
+          queue.addFirst(next);
+          inFlight--;
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Called from the connection's deliveryComplete.
+   *
+   * @param token
+   */
+  void deliveryComplete(IMqttDeliveryToken token) {
+    Object context = token.getUserContext();
+    if (context instanceof Pending)
+      finish((Pending) context, token, null);
+  }
+
+  private void finish(Pending pending, IMqttDeliveryToken token, Throwable cause) {
+    boolean lost = cause != null && isDisconnect(cause);
+    synchronized (this) {
+      if (pending.done)
+        return;
+      if (lost && !closed) {
+        // Sent as the connection dropped; the client resends its own copy once it is back
+        if (!requeueLost)
+          return;
+        inFlight--;
+        queue.addFirst(pending);
+        return;
+      }
+      inFlight--;
+      pending.done = true;
+    }
+    if (cause == null) {
+      pending.source.getMetrics().recordPublished(pending.message.getPayload().length,
+          System.nanoTime() - pending.created);
+      if (pending.future != null)
+        pending.future.complete(token);
+      try {
+        pending.source.deliveryComplete(token);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      if (pending.recycler != null)
+        pending.recycler.recycle(pending.message);
+    } else {
+      BlockManager.logError(pending.source,
+          "Couldn't publish message on " + pending.topic + ": " + cause);
+      pending.reject(cause);
+    }
+    drain();
+  }
+
+  /**
+   * Stops a conflating publish being replaced once it has left the queue.
+   *
+   * @param pending
+   */
+  private void forget(Pending pending) {
+    if (!pending.conflate)
+      return;
+    Map<String, Pending> topics = latest.get(pending.source);
+    if (topics != null && topics.get(pending.topic) == pending) {
+      topics.remove(pending.topic);
+      if (topics.isEmpty())
+        latest.remove(pending.source);
+    }
+  }
+
+  private static boolean isDisconnect(Throwable cause) {
+    if (!(cause instanceof MqttException))
+      return false;
+    int reason = ((MqttException) cause).getReasonCode();
+    return reason == MqttException.REASON_CODE_CONNECTION_LOST
+        || reason == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED;
+  }
+
+  /**
+   * Fails everything still queued; in-flight messages are left to the client.
+   */
+  void close() {
+    ArrayDeque<Pending> remaining;
+    synchronized (this) {
+      closed = true;
+      remaining = new ArrayDeque<>(queue);
+      queue.clear();
+      latest.clear();
+      notifyAll();
+    }
+    for (Pending pending : remaining) {
+      pending.reject(new IllegalStateException("Connection closed"));
+    }
+  }
+
+  public synchronized int getQueued() {
+    return queue.size();
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public int getWindow() {
+    return window;
+  }
+
+  private static class Pending {
+
+    private final MQTTBlock source;
+    private final String topic;
+    private final boolean conflate;
+    /** Null for send(), which has the recycler instead */
+    private final CompletableFuture<IMqttDeliveryToken> future;
+    private final Recycler recycler;
+    /** Null unless the message was also delivered locally */
+    private final LoopbackBus loopback;
+    private final long created = System.nanoTime();
+    /** Replaced while queued by a newer conflating publish, guarded by the pipeline */
+    private MqttMessage message;
+    private boolean done;
+    private volatile boolean accepted;
+
+    Pending(MQTTBlock source, String topic, MqttMessage message, boolean conflate,
+        Recycler recycler, LoopbackBus loopback) {
+      this.source = source;
+      this.topic = topic;
+      this.message = message;
+      this.conflate = conflate;
+      this.recycler = recycler;
+      this.loopback = loopback;
+      this.future = recycler == null ? new CompletableFuture<IMqttDeliveryToken>() : null;
+    }
+
+    /**
+     * Called under the pipeline's lock as the message is queued, before it can be sent.
+     */
+    void accept() {
+      accepted = true;
+      if (loopback != null)
+        loopback.recordEchoes(topic, message.getPayload());
+    }
+
+    /**
+     * Called under the pipeline's lock while the message is still queued.
+     */
+    void replace(MqttMessage newer) {
+      if (loopback != null) {
+        loopback.forgetEchoes(topic, message.getPayload());
+        loopback.recordEchoes(topic, newer.getPayload());
+      }
+      message = newer;
+    }
+
+    void reject(Throwable cause) {
+      if (accepted && loopback != null)
+        loopback.forgetEchoes(topic, message.getPayload());
+      source.getMetrics().recordPublishFailure();
+      if (future != null)
+        future.completeExceptionally(cause);
+    }
+  }
+
+}
@@ -0,0 +1,578 @@
+package me.kevinthorne.MQTTBlocks.connection;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.EchoSuppressionCache;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+/**
+ * One physical MqttAsyncClient shared by every block on the same broker. Subscriptions are
+ * reference counted per filter, inbound messages are routed to the blocks whose filters match and
+ * outbound messages go through the connection's PublishPipeline.
+ *
+ * <p>
+ * When the connection is lost the blocks keep running: publishes wait in the pipeline's queue,
+ * and the connection retries with exponential backoff and jitter until it is back. It then
+ * resubscribes every filter and resumes publishing.
+ */
+public class SharedConnection implements MqttCallback {
+
+  public enum Persistence {
+    /** In-flight messages are lost with the process; sessions start clean */
+    MEMORY,
+    /** In-flight messages are kept in MappedFilePersistence and the session resumes */
+    FILE;
+
+    public static Persistence parse(String value) {
+      return valueOf(value.trim().toUpperCase());
+    }
+  }
+
+  private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+
+  private final ConnectionPool pool;
+  private final String broker;
+  private final MqttClientPersistence persistence;
+  private final MqttAsyncClient client;
+  private final PublishPipeline pipeline;
+  private final MqttConnectOptions connOpts = new MqttConnectOptions();
+  private final long reconnectMinDelay;
+  private final long reconnectMaxDelay;
+
+  /* Reconnect state, guarded by this */
+  private boolean reconnecting;
+  private boolean closed;
+  private int attempts;
+  private ScheduledFuture<?> retry;
+
+  /** Blocks holding this connection, guarded by the pool */
+  int leases;
+
+  private final List<MQTTBlock> blocks = new CopyOnWriteArrayList<>();
+  private final Map<MQTTBlock, Route> routes = new HashMap<>();
+  private final Map<String, Integer> filterRefs = new HashMap<>();
+  private final TopicTrie<Route> trie = new TopicTrie<>();
+  /** Shared subscriptions by full filter, and in a trie by the filter they match */
+  private final Map<String, ShareGroup> shareGroups = new HashMap<>();
+  private final TopicTrie<ShareGroup> shareTrie = new TopicTrie<>();
+
+  /*
+   * Only touched from the Paho callback thread; lets a block subscribed through several matching
+   * filters receive each message once.
+   */
+  private long messageSeq;
+  private final TopicTrie.Visitor<Route> dispatcher = new TopicTrie.Visitor<Route>() {
+    @Override
+    public void visit(Route route) {
+      if (route.lastSeq == messageSeq)
+        return;
+      route.lastSeq = messageSeq;
+      deliver(route.block, currentTopic, currentMessage);
+    }
+  };
+  /* Each message on a shared subscription goes to one of the group's blocks, in turn */
+  private final TopicTrie.Visitor<ShareGroup> balancer = new TopicTrie.Visitor<ShareGroup>() {
+    @Override
+    public void visit(ShareGroup group) {
+      Route[] members = group.members;
+      if (members.length == 0)
+        return;
+      if (group.next >= members.length)
+        group.next = 0;
+      dispatcher.visit(members[group.next++]);
+    }
+  };
+  private String currentTopic;
+  private MqttMessage currentMessage;
+
+  SharedConnection(ConnectionPool pool, BlockConfigurationFile config) throws MqttException {
+    this.pool = pool;
+    this.broker = config.getBroker();
+    this.reconnectMinDelay = Math.max(1, config.getReconnectMinDelay());
+    this.reconnectMaxDelay = Math.max(reconnectMinDelay, config.getReconnectMaxDelay());
+
+    String clientId = config.getClientId();
+    boolean durable = config.getPersistence() == Persistence.FILE;
+    if (clientId == null || clientId.isEmpty()) {
+      clientId = MqttAsyncClient.generateClientId();
+      if (durable)
+        logger.warning(config.getName() + " has file persistence but no clientId,"
+            + " so its session can't be resumed after a restart");
+    }
+    if (durable) {
+      persistence = new MappedFilePersistence(new File(config.getPersistenceDir()),
+          config.getPersistenceSegmentSize(), config.getPersistenceMaxBytes());
+    } else {
+      persistence = new MemoryPersistence();
+    }
+    client = new MqttAsyncClient(broker, clientId, persistence);
+    pipeline = new PublishPipeline(client, config);
+    // Paho clears its persistence when connecting with a clean session
+    connOpts.setCleanSession(!durable);
+    if (config.getUsername() != null && !config.getUsername().equals(""))
+      connOpts.setUserName(config.getUsername());
+    if (config.getPassword() != null && config.getPassword().length > 0)
+      connOpts.setPassword(config.getPassword());
+    if (broker.startsWith("tcp://"))
+      connOpts.setSocketFactory(new NoDelaySocketFactory());
+    client.setCallback(this);
+  }
+
+  /**
+   * Connects the client unless it already is, or is reconnecting on its own. Blocks acquiring the
+   * connection concurrently wait here for the first one's connect rather than each opening their
+   * own.
+   *
+   * @return true if this call made the connection
+   * @throws MqttException
+   */
+  synchronized boolean connect() throws MqttException {
+    if (client.isConnected() || reconnecting)
+      return false;
+    client.connect(connOpts).waitForCompletion();
+    return true;
+  }
+
+  /**
+   * Routes messages for the block's subscribed topics to it. Filters the broker doesn't already
+   * know about are sent in a single SUBSCRIBE, and the connection isn't locked while waiting for
+   * the SUBACK so other blocks can attach meanwhile. While disconnected they are left for the
+   * resubscribe that follows the reconnect.
+   *
+   * @param block
+   * @throws MqttException
+   */
+  void attach(MQTTBlock block) throws MqttException {
+    List<String> fresh = new ArrayList<>();
+    synchronized (this) {
+      Route route = new Route(block);
+      routes.put(block, route);
+      blocks.add(block);
+      String[] filters = block.getBlockConfig().getSubscribedTopics();
+      if (filters != null) {
+        for (String filter : filters) {
+          if (route.filters.contains(filter))
+            continue;
+          route(filter, route);
+          Integer refs = filterRefs.get(filter);
+          if (refs == null)
+            fresh.add(filter);
+          filterRefs.put(filter, refs == null ? 1 : refs + 1);
+          route.filters.add(filter);
+        }
+      }
+    }
+    if (fresh.isEmpty() || !client.isConnected())
+      return;
+    String[] filters = fresh.toArray(new String[0]);
+    int[] qos = new int[filters.length];
+    Arrays.fill(qos, 1);
+    IMqttToken token;
+    try {
+      token = client.subscribe(filters, qos);
+      token.waitForCompletion();
+    } catch (MqttException e) {
+      detach(block);
+      throw e;
+    }
+    int[] granted = token.getGrantedQos();
+    for (int i = 0; granted != null && i < granted.length && i < filters.length; i++) {
+      if (granted[i] == 0x80)
+        BlockManager.logWarn(block, "Broker refused subscription to " + filters[i]);
+    }
+  }
+
+  /**
+   * Routes messages matching the filter to the block, subscribing on the broker if no other block
+   * on this connection already has.
+   *
+   * @param block
+   * @param filter
+   * @throws MqttException
+   */
+  public synchronized void subscribe(MQTTBlock block, String filter) throws MqttException {
+    Route route = routes.get(block);
+    if (route == null || route.filters.contains(filter))
+      return;
+    // Route first so retained messages sent straight after the SUBACK aren't dropped
+    route(filter, route);
+    Integer refs = filterRefs.get(filter);
+    if (refs == null && client.isConnected()) {
+      try {
+        client.subscribe(filter, 1).waitForCompletion();
+      } catch (MqttException e) {
+        unroute(filter, route);
+        throw e;
+      }
+    }
+    filterRefs.put(filter, refs == null ? 1 : refs + 1);
+    route.filters.add(filter);
+  }
+
+  /**
+   * Stops routing the filter to the block, unsubscribing on the broker once no block uses it.
+   *
+   * @param block
+   * @param filter
+   */
+  public synchronized void unsubscribe(MQTTBlock block, String filter) {
+    Route route = routes.get(block);
+    if (route == null || !route.filters.remove(filter))
+      return;
+    unroute(filter, route);
+    Integer refs = filterRefs.get(filter);
+    if (refs == null)
+      return;
+    if (refs > 1) {
+      filterRefs.put(filter, refs - 1);
+      return;
+    }
+    filterRefs.remove(filter);
+    try {
+      if (client.isConnected())
+        client.unsubscribe(filter).waitForCompletion();
+    } catch (MqttException e) {
+      logger.warning("Could not unsubscribe " + filter + " on " + broker);
+    }
+  }
+
+  /**
+   * Adds the block's route under a filter. Blocks on a shared subscription join its group, which
+   * hands each message to one of them, so a group is balanced within this process as well as
+   * across every client the broker knows in it.
+   *
+   * @param filter
+   * @param route
+   */
+  private void route(String filter, Route route) {
+    if (!TopicTrie.isShared(filter)) {
+      trie.add(filter, route);
+      return;
+    }
+    ShareGroup group = shareGroups.get(filter);
+    if (group == null) {
+      group = new ShareGroup();
+      shareTrie.add(TopicTrie.matchFilter(filter), group);
+      shareGroups.put(filter, group);
+    }
+    group.add(route);
+  }
+
+  private void unroute(String filter, Route route) {
+    if (!TopicTrie.isShared(filter)) {
+      trie.remove(filter, route);
+      return;
+    }
+    ShareGroup group = shareGroups.get(filter);
+    if (group != null && group.remove(route) && group.members.length == 0) {
+      shareTrie.remove(TopicTrie.matchFilter(filter), group);
+      shareGroups.remove(filter);
+    }
+  }
+
+  /**
+   * Stops routing to the block and unsubscribes filters nobody else uses.
+   *
+   * @param block
+   */
+  synchronized void detach(MQTTBlock block) {
+    Route route = routes.get(block);
+    if (route != null) {
+      for (String filter : new ArrayList<>(route.filters)) {
+        unsubscribe(block, filter);
+      }
+      routes.remove(block);
+      blocks.remove(block);
+    }
+  }
+
+  void close() {
+    synchronized (this) {
+      closed = true;
+      if (retry != null)
+        retry.cancel(false);
+    }
+    pipeline.close();
+    try {
+      if (client.isConnected())
+        client.disconnect().waitForCompletion();
+      client.close();
+    } catch (MqttException e) {
+      logger.warning("Could not close client for " + broker + " gracefully, using force...");
+      try {
+        client.disconnectForcibly();
+        client.close();
+      } catch (MqttException ignored) {
+      }
+    }
+  }
+
+  @Override
+  public void messageArrived(String topic, MqttMessage message) throws Exception {
+    messageSeq++;
+    currentTopic = topic;
+    currentMessage = message;
+    try {
+      trie.match(topic, dispatcher);
+      shareTrie.match(topic, balancer);
+    } finally {
+      currentTopic = null;
+      currentMessage = null;
+    }
+  }
+
+  private void deliver(MQTTBlock block, String topic, MqttMessage message) {
+    EchoSuppressionCache delivered = block.getLoopbackEchoes();
+    // Already handed to the block in-process by its LoopbackBus
+    if (delivered != null && delivered.consume(topic, message.getPayload()))
+      return;
+    try {
+      block.messageArrived(topic, message);
+    } catch (Exception e) {
+      BlockManager.logError(block, "Error while handling message on " + topic);
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public void connectionLost(Throwable cause) {
+    logger.warning("Lost connection to " + broker + ": " + cause);
+    for (MQTTBlock block : blocks) {
+      try {
+        block.connectionLost(cause);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    long delay;
+    synchronized (this) {
+      delay = nextDelay();
+    }
+    scheduleReconnect(delay);
+  }
+
+  private synchronized void scheduleReconnect(long delay) {
+    if (closed)
+      return;
+    reconnecting = true;
+    retry = pool.schedule(new Runnable() {
+      @Override
+      public void run() {
+        reconnect();
+      }
+    }, delay);
+  }
+
+  /**
+   * Doubles the delay from reconnectMinDelay up to reconnectMaxDelay, then picks a point in its
+   * upper half so connections that dropped together don't retry together.
+   *
+   * @return long <strong>milliseconds</strong>
+   */
+  private long nextDelay() {
+    long ceiling = reconnectMaxDelay;
+    if (attempts < 30)
+      ceiling = Math.min(reconnectMaxDelay, reconnectMinDelay << attempts);
+    attempts++;
+    return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling - ceiling / 2 + 1);
+  }
+
+  private void reconnect() {
+    synchronized (this) {
+      if (closed)
+        return;
+    }
+    if (!pool.tryReconnect()) {
+      // Enough connections are already reconnecting; wait a little without backing off further
+      scheduleReconnect(1 + ThreadLocalRandom.current().nextLong(reconnectMinDelay));
+      return;
+    }
+    try {
+      client.connect(connOpts, null, new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+          pool.reconnected();
+          restored();
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+          pool.reconnected();
+          reconnectFailed(cause);
+        }
+      });
+    } catch (MqttException e) {
+      pool.reconnected();
+      if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_CONNECTED)
+        restored();
+      else
+        reconnectFailed(e);
+    }
+  }
+
+  private void reconnectFailed(Throwable cause) {
+    long delay;
+    synchronized (this) {
+      delay = nextDelay();
+    }
+    logger.warning("Could not reconnect to " + broker + " (" + cause + "), retrying in " + delay
+        + " ms");
+    scheduleReconnect(delay);
+  }
+
+  /**
+   * Resubscribes every filter, resumes publishing and tells the blocks.
+   */
+  private void restored() {
+    String[] filters;
+    int tries;
+    synchronized (this) {
+      reconnecting = false;
+      retry = null;
+      tries = attempts;
+      attempts = 0;
+      filters = filterRefs.keySet().toArray(new String[0]);
+    }
+    logger.info("Reconnected to " + broker + " after " + tries + " attempt(s)");
+    if (filters.length > 0) {
+      int[] qos = new int[filters.length];
+      Arrays.fill(qos, 1);
+      try {
+        client.subscribe(filters, qos, null, new IMqttActionListener() {
+          @Override
+          public void onSuccess(IMqttToken token) {
+          }
+
+          @Override
+          public void onFailure(IMqttToken token, Throwable cause) {
+            logger.warning("Could not resubscribe on " + broker + ": " + cause);
+          }
+        });
+      } catch (MqttException e) {
+        logger.warning("Could not resubscribe on " + broker + ": " + e);
+      }
+    }
+    pipeline.drain();
+    for (final MQTTBlock block : blocks) {
+      try {
+        pool.execute(new Runnable() {
+          @Override
+          public void run() {
+            block.getMetrics().recordReconnect();
+            block.connectionRestored();
+          }
+        });
+      } catch (RejectedExecutionException ignored) {
+        // Shutting down
+      }
+    }
+  }
+
+  /**
+   * @return true while the connection is lost and retrying
+   */
+  public synchronized boolean isReconnecting() {
+    return reconnecting;
+  }
+
+  @Override
+  public void deliveryComplete(IMqttDeliveryToken token) {
+    pipeline.deliveryComplete(token);
+  }
+
+  public boolean isConnected() {
+    return client.isConnected();
+  }
+
+  public String getClientId() {
+    return client.getClientId();
+  }
+
+  public String getBroker() {
+    return broker;
+  }
+
+  public MqttAsyncClient getClient() {
+    return client;
+  }
+
+  public PublishPipeline getPipeline() {
+    return pipeline;
+  }
+
+  public MqttClientPersistence getPersistence() {
+    return persistence;
+  }
+
+  public List<MQTTBlock> getBlocks() {
+    return blocks;
+  }
+
+  /**
+   * A block's place in the trie along with the filters it holds on this connection.
+   */
+  private static class Route {
+
+    private final MQTTBlock block;
+    private final List<String> filters = new ArrayList<>();
+    private long lastSeq;
+
+    Route(MQTTBlock block) {
+      this.block = block;
+    }
+  }
+
+  /**
+   * The blocks on this connection holding one shared subscription.
+   */
+  private static class ShareGroup {
+
+    private volatile Route[] members = new Route[0];
+    /** Only touched from the Paho callback thread */
+    private int next;
+
+    void add(Route route) {
+      Route[] updated = Arrays.copyOf(members, members.length + 1);
+      updated[members.length] = route;
+      members = updated;
+    }
+
+    boolean remove(Route route) {
+      Route[] current = members;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == route) {
+          Route[] updated = new Route[current.length - 1];
+          System.arraycopy(current, 0, updated, 0, i);
+          System.arraycopy(current, i + 1, updated, i, updated.length - i);
+          members = updated;
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+}
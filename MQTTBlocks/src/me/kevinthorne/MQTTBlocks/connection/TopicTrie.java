@@ -0,0 +1,377 @@
+package me.kevinthorne.MQTTBlocks.connection;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Topic-level trie of MQTT subscription filters. Adding and removing filters is synchronized,
+ * matching is lock free and walks the topic in place, so routing a message neither locks nor
+ * allocates no matter how many filters are registered.
+ *
+ * @param <T> value stored against each filter
+ */
+public class TopicTrie<T> {
+
+  /**
+   * Receives every value whose filter matches a topic. A value registered under several matching
+   * filters is visited once per filter.
+   */
+  public interface Visitor<T> {
+    void visit(T value);
+  }
+
+  /** Prefix of a shared subscription, $share/group/filter */
+  public static final String SHARE_PREFIX = "$share/";
+
+  private final Node<T> root = new Node<>(null);
+  private int size;
+
+  /**
+   * Registers a value under a filter.
+   *
+   * @param filter - may contain + and # wildcards
+   * @param value
+   */
+  public synchronized void add(String filter, T value) {
+    Node<T> node = root;
+    int start = 0;
+    while (true) {
+      int end = filter.indexOf('/', start);
+      boolean last = end < 0;
+      if (last)
+        end = filter.length();
+      String level = filter.substring(start, end);
+      if (level.equals("#") && !last)
+        throw new IllegalArgumentException("# must be the last level of " + filter);
+      node = node.getOrCreate(level);
+      if (last)
+        break;
+      start = end + 1;
+    }
+    node.addValue(value);
+    size++;
+  }
+
+  /**
+   * Removes a value from a filter, pruning nodes nothing is registered under any more.
+   *
+   * @param filter
+   * @param value
+   * @return true if the value was registered under the filter
+   */
+  public synchronized boolean remove(String filter, T value) {
+    return remove(root, filter, 0, value);
+  }
+
+  private boolean remove(Node<T> node, String filter, int start, T value) {
+    int end = filter.indexOf('/', start);
+    boolean last = end < 0;
+    if (last)
+      end = filter.length();
+    Node<T> child = node.find(filter, start, end);
+    if (child == null)
+      return false;
+    boolean removed = last ? child.removeValue(value) : remove(child, filter, end + 1, value);
+    if (removed) {
+      if (last)
+        size--;
+      if (child.isEmpty())
+        node.removeChild(child);
+    }
+    return removed;
+  }
+
+  /**
+   * Visits every value whose filter matches the topic.
+   *
+   * @param topic - a concrete topic, no wildcards
+   * @param visitor
+   */
+  public void match(String topic, Visitor<? super T> visitor) {
+    match(root, topic, 0, visitor);
+  }
+
+  private void match(Node<T> node, String topic, int start, Visitor<? super T> visitor) {
+    int end = topic.indexOf('/', start);
+    boolean last = end < 0;
+    if (last)
+      end = topic.length();
+
+    // Wildcards never match the first level of $-prefixed topics such as $SYS
+    if (start > 0 || topic.isEmpty() || topic.charAt(0) != '$') {
+      Node<T> hash = node.hash;
+      if (hash != null)
+        hash.visit(visitor);
+      Node<T> plus = node.plus;
+      if (plus != null)
+        descend(plus, topic, end, last, visitor);
+    }
+    Node<T> child = node.lookup(topic, start, end);
+    if (child != null)
+      descend(child, topic, end, last, visitor);
+  }
+
+  private void descend(Node<T> node, String topic, int end, boolean last,
+      Visitor<? super T> visitor) {
+    if (last) {
+      node.visit(visitor);
+      // "a/#" also matches "a"
+      Node<T> hash = node.hash;
+      if (hash != null)
+        hash.visit(visitor);
+    } else {
+      match(node, topic, end + 1, visitor);
+    }
+  }
+
+  /**
+   * @param filter
+   * @return true if the filter is a shared subscription, $share/group/filter
+   */
+  public static boolean isShared(String filter) {
+    return filter.startsWith(SHARE_PREFIX);
+  }
+
+  /**
+   * The filter topics are matched against, which for a shared subscription is the part after the
+   * group.
+   *
+   * @param filter
+   * @return the filter without any $share/group/ prefix
+   * @throws IllegalArgumentException if a shared subscription has no group or no filter, or a
+   *         wildcard in its group
+   */
+  public static String matchFilter(String filter) {
+    if (!isShared(filter))
+      return filter;
+    int split = filter.indexOf('/', SHARE_PREFIX.length());
+    if (split <= SHARE_PREFIX.length() || split == filter.length() - 1)
+      throw new IllegalArgumentException("Shared subscription " + filter
+          + " should be $share/group/filter");
+    String group = filter.substring(SHARE_PREFIX.length(), split);
+    if (group.indexOf('+') >= 0 || group.indexOf('#') >= 0)
+      throw new IllegalArgumentException("Share group of " + filter + " can't hold a wildcard");
+    return filter.substring(split + 1);
+  }
+
+  /**
+   * Checks a single filter against a topic with the same rules as match(). A shared subscription
+   * is checked by its filter, ignoring the group.
+   *
+   * @param filter
+   * @param topic
+   * @return true if the filter matches the topic
+   */
+  public static boolean matches(String filter, String topic) {
+    if (isShared(filter))
+      filter = matchFilter(filter);
+    if (!topic.isEmpty() && topic.charAt(0) == '$' && !filter.isEmpty()
+        && (filter.charAt(0) == '+' || filter.charAt(0) == '#'))
+      return false;
+    int f = 0;
+    int t = 0;
+    while (true) {
+      int filterEnd = filter.indexOf('/', f);
+      if (filterEnd < 0)
+        filterEnd = filter.length();
+      if (filterEnd - f == 1 && filter.charAt(f) == '#')
+        return true;
+      int topicEnd = topic.indexOf('/', t);
+      if (topicEnd < 0)
+        topicEnd = topic.length();
+      boolean plus = filterEnd - f == 1 && filter.charAt(f) == '+';
+      int length = topicEnd - t;
+      if (!plus && (filterEnd - f != length || !filter.regionMatches(f, topic, t, length)))
+        return false;
+      boolean filterDone = filterEnd == filter.length();
+      boolean topicDone = topicEnd == topic.length();
+      if (filterDone || topicDone) {
+        if (filterDone && topicDone)
+          return true;
+        // "a/#" also matches "a"
+        return topicDone && filter.length() - filterEnd == 2 && filter.endsWith("/#");
+      }
+      f = filterEnd + 1;
+      t = topicEnd + 1;
+    }
+  }
+
+  /**
+   * @return number of filter/value registrations
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * A single topic level. Children other than + and # live in an open addressed table that
+   * readers probe with a region of the topic string; writers publish new entries through the
+   * atomic array and only copy the table when it grows.
+   */
+  private static class Node<T> {
+
+    private static final Node<?> REMOVED = new Node<>(null);
+
+    final String level;
+    volatile Node<T> plus;
+    volatile Node<T> hash;
+    volatile AtomicReferenceArray<Node<T>> children;
+    volatile Object[] values = new Object[0];
+    private int childCount;
+    private int removedCount;
+
+    Node(String level) {
+      this.level = level;
+    }
+
+    Node<T> find(String topic, int start, int end) {
+      if (end - start == 1) {
+        char c = topic.charAt(start);
+        if (c == '+')
+          return plus;
+        if (c == '#')
+          return hash;
+      }
+      return lookup(topic, start, end);
+    }
+
+    Node<T> lookup(String topic, int start, int end) {
+      AtomicReferenceArray<Node<T>> table = children;
+      if (table == null)
+        return null;
+      int length = end - start;
+      int h = 0;
+      for (int i = start; i < end; i++) {
+        h = 31 * h + topic.charAt(i);
+      }
+      int mask = table.length() - 1;
+      for (int i = spread(h) & mask;; i = (i + 1) & mask) {
+        Node<T> candidate = table.get(i);
+        if (candidate == null)
+          return null;
+        if (candidate != REMOVED && candidate.level.length() == length
+            && topic.regionMatches(start, candidate.level, 0, length))
+          return candidate;
+      }
+    }
+
+    Node<T> getOrCreate(String level) {
+      if (level.equals("+")) {
+        if (plus == null)
+          plus = new Node<>(level);
+        return plus;
+      }
+      if (level.equals("#")) {
+        if (hash == null)
+          hash = new Node<>(level);
+        return hash;
+      }
+      Node<T> existing = lookup(level, 0, level.length());
+      if (existing != null)
+        return existing;
+      Node<T> created = new Node<>(level);
+      if (children == null || (childCount + removedCount + 1) * 2 > children.length())
+        resize(Math.max(4, Integer.highestOneBit(Math.max(1, childCount + 1) * 4)));
+      insert(children, created);
+      childCount++;
+      return created;
+    }
+
+    void removeChild(Node<T> child) {
+      if (child == plus) {
+        plus = null;
+        return;
+      }
+      if (child == hash) {
+        hash = null;
+        return;
+      }
+      AtomicReferenceArray<Node<T>> table = children;
+      int mask = table.length() - 1;
+      for (int i = spread(child.level.hashCode()) & mask;; i = (i + 1) & mask) {
+        Node<T> candidate = table.get(i);
+        if (candidate == null)
+          return;
+        if (candidate == child) {
+          table.set(i, removed());
+          childCount--;
+          removedCount++;
+          break;
+        }
+      }
+      if (childCount == 0) {
+        children = null;
+        removedCount = 0;
+      } else if (removedCount > childCount) {
+        resize(table.length());
+      }
+    }
+
+    private void resize(int capacity) {
+      AtomicReferenceArray<Node<T>> table = new AtomicReferenceArray<>(capacity);
+      AtomicReferenceArray<Node<T>> old = children;
+      if (old != null) {
+        for (int i = 0; i < old.length(); i++) {
+          Node<T> node = old.get(i);
+          if (node != null && node != REMOVED)
+            insert(table, node);
+        }
+      }
+      removedCount = 0;
+      children = table;
+    }
+
+    private static <T> void insert(AtomicReferenceArray<Node<T>> table, Node<T> node) {
+      int mask = table.length() - 1;
+      for (int i = spread(node.level.hashCode()) & mask;; i = (i + 1) & mask) {
+        Node<T> candidate = table.get(i);
+        if (candidate == null || candidate == REMOVED) {
+          table.set(i, node);
+          return;
+        }
+      }
+    }
+
+    void addValue(T value) {
+      Object[] current = values;
+      Object[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = value;
+      values = updated;
+    }
+
+    boolean removeValue(T value) {
+      Object[] current = values;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i].equals(value)) {
+          Object[] updated = new Object[current.length - 1];
+          System.arraycopy(current, 0, updated, 0, i);
+          System.arraycopy(current, i + 1, updated, i, updated.length - i);
+          values = updated;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    void visit(Visitor<? super T> visitor) {
+      for (Object value : values) {
+        visitor.visit((T) value);
+      }
+    }
+
+    boolean isEmpty() {
+      return values.length == 0 && childCount == 0 && plus == null && hash == null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T> removed() {
+      return (Node<T>) REMOVED;
+    }
+
+    private static int spread(int h) {
+      return h ^ (h >>> 16);
+    }
+  }
+
+}
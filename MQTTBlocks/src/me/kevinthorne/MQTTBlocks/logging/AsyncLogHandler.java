@@ -0,0 +1,391 @@
+package me.kevinthorne.MQTTBlocks.logging;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Log handler that hands records to a single writer thread through a bounded lock-free ring
+ * (the same sequence-numbered array queue as InboundQueue), so logging threads never wait on the
+ * console or the log file. Messages are formatted on the writer thread, "{}" placeholders being
+ * replaced by the arguments in order, and written to the console and file a batch at a time.
+ *
+ * <p>
+ * Arguments are formatted after the call returns, so don't pass objects that will change, such
+ * as a BlockMessage.
+ *
+ * <p>
+ * Settings (system properties):
+ * <ul>
+ * <li>mqttblocks.log.buffer - records the ring holds (default 8192)</li>
+ * <li>mqttblocks.log.overflow - what happens when it is full: block, drop-newest or drop-info
+ * (default drop-info, which drops records below WARNING and waits for room for the rest)</li>
+ * <li>mqttblocks.log.file - log file, empty for console only (default MQTTBlocks.log)</li>
+ * </ul>
+ */
+public class AsyncLogHandler extends Handler {
+
+  public static final String BUFFER_PROPERTY = "mqttblocks.log.buffer";
+  public static final String OVERFLOW_PROPERTY = "mqttblocks.log.overflow";
+  public static final String FILE_PROPERTY = "mqttblocks.log.file";
+
+  /**
+   * What happens when a record is logged and the ring is full.
+   */
+  public enum Overflow {
+    /** Wait for the writer to make room */
+    BLOCK,
+    /** Discard the new record */
+    DROP_NEWEST,
+    /** Discard the new record if it is below WARNING, otherwise wait */
+    DROP_INFO;
+
+    public static Overflow parse(String value) {
+      return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  /** Most records formatted before the batch is written out */
+  private static final int WRITE_BATCH = 512;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final DateTimeFormatter TIMESTAMP =
+      DateTimeFormatter.ofPattern("dd/MM/yyyy hh:mm:ss").withZone(ZoneId.systemDefault());
+
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final Level[] levels;
+  private final long[] times;
+  private final String[] sources;
+  private final String[] messages;
+  private final Object[][] arguments;
+  private final Throwable[] thrown;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  private final Overflow overflow;
+  private final PrintStream console;
+  private final Writer file;
+  private final Formatter recordFormatter = new SimpleFormatter();
+  private final Thread writer;
+  private volatile boolean sleeping;
+  private volatile boolean closed;
+  private volatile boolean flushRequested;
+  private volatile long written;
+  private final AtomicLong dropped = new AtomicLong();
+
+  /* Only touched by the writer thread */
+  private final StringBuilder text = new StringBuilder(16 * 1024);
+  private long second = -1;
+  private String secondText;
+  private long droppedReported;
+
+  /**
+   * Handler configured from the system properties, writing to System.err and the log file.
+   */
+  public AsyncLogHandler() {
+    this(Integer.getInteger(BUFFER_PROPERTY, 8192),
+        Overflow.parse(System.getProperty(OVERFLOW_PROPERTY, "drop-info")), System.err,
+        System.getProperty(FILE_PROPERTY, "MQTTBlocks.log"));
+  }
+
+  /**
+   * @param capacity - rounded up to a power of two
+   * @param overflow
+   * @param console - null for none
+   * @param fileName - appended to; null or empty for none
+   */
+  public AsyncLogHandler(int capacity, Overflow overflow, PrintStream console, String fileName) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.mask = size - 1;
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    this.levels = new Level[size];
+    this.times = new long[size];
+    this.sources = new String[size];
+    this.messages = new String[size];
+    this.arguments = new Object[size][];
+    this.thrown = new Throwable[size];
+    this.overflow = overflow;
+    this.console = console;
+    this.file = openFile(fileName);
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drainLoop();
+      }
+    }, "MQTTBlocks-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private static Writer openFile(String fileName) {
+    if (fileName == null || fileName.isEmpty())
+      return null;
+    try {
+      return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true),
+          StandardCharsets.UTF_8), 64 * 1024);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Queues a record. The level should already have been checked.
+   *
+   * @param level
+   * @param source - block name shown before the message, or null
+   * @param message - may contain {} placeholders if there are arguments
+   * @param args - null to log the message as it is
+   * @param error - stack trace to print after the message, or null
+   * @return false if the record was dropped
+   */
+  public boolean log(Level level, String source, String message, Object[] args, Throwable error) {
+    long time = System.currentTimeMillis();
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          levels[index] = level;
+          times[index] = time;
+          sources[index] = source;
+          messages[index] = message;
+          arguments[index] = args;
+          thrown[index] = error;
+          sequences.set(index, position + 1);
+          if (sleeping)
+            LockSupport.unpark(writer);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        if (!awaitSpace(level)) {
+          dropped.incrementAndGet();
+          return false;
+        }
+        position = tail.get();
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  private boolean awaitSpace(Level level) {
+    if (closed || Thread.currentThread() == writer || overflow == Overflow.DROP_NEWEST
+        || (overflow == Overflow.DROP_INFO && level.intValue() < Level.WARNING.intValue()))
+      return false;
+    LockSupport.unpark(writer);
+    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+    return true;
+  }
+
+  /**
+   * Queues a record from java.util.logging. Records with parameters are formatted here, in the
+   * usual {0} style; others are formatted by the writer.
+   */
+  @Override
+  public void publish(LogRecord record) {
+    if (!isLoggable(record))
+      return;
+    String message = record.getParameters() == null ? record.getMessage()
+        : recordFormatter.formatMessage(record);
+    log(record.getLevel(), null, message, null, record.getThrown());
+  }
+
+  private void drainLoop() {
+    while (true) {
+      int count = 0;
+      while (count < WRITE_BATCH && poll()) {
+        count++;
+      }
+      if (count > 0) {
+        reportDrops();
+        write(head.get() == tail.get());
+        continue;
+      }
+      if (flushRequested) {
+        write(true);
+        continue;
+      }
+      if (closed && head.get() == tail.get())
+        break;
+      sleeping = true;
+      if (head.get() == tail.get() && !closed)
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      sleeping = false;
+    }
+    closeOutputs();
+  }
+
+  private boolean poll() {
+    long position = head.get();
+    int index = (int) (position & mask);
+    if (sequences.get(index) != position + 1)
+      return false;
+    format(levels[index], times[index], sources[index], messages[index], arguments[index],
+        thrown[index]);
+    sources[index] = null;
+    messages[index] = null;
+    arguments[index] = null;
+    thrown[index] = null;
+    // Only the writer polls, so no compare-and-set is needed
+    head.set(position + 1);
+    sequences.set(index, position + mask + 1);
+    return true;
+  }
+
+  private void reportDrops() {
+    long count = dropped.get();
+    if (count != droppedReported) {
+      format(Level.WARNING, System.currentTimeMillis(), null,
+          "Log buffer full, {} record(s) dropped so far", new Object[] {count}, null);
+      droppedReported = count;
+    }
+  }
+
+  private void format(Level level, long time, String source, String message, Object[] args,
+      Throwable error) {
+    appendTimestamp(time);
+    text.append(" - [").append(level.getName()).append("] - ");
+    if (source != null)
+      text.append('[').append(source).append("] - ");
+    if (args == null)
+      text.append(message);
+    else
+      appendFormatted(message, args);
+    text.append('\n');
+    if (error != null) {
+      StringWriter trace = new StringWriter();
+      error.printStackTrace(new PrintWriter(trace));
+      text.append(trace);
+    }
+  }
+
+  /**
+   * Only formats the date and time once per second; the milliseconds are appended by hand.
+   */
+  private void appendTimestamp(long time) {
+    long now = time / 1000;
+    if (now != second) {
+      second = now;
+      secondText = TIMESTAMP.format(Instant.ofEpochSecond(now));
+    }
+    int millis = (int) (time % 1000);
+    text.append(secondText).append('.');
+    if (millis < 100)
+      text.append('0');
+    if (millis < 10)
+      text.append('0');
+    text.append(millis);
+  }
+
+  private void appendFormatted(String message, Object[] args) {
+    int start = 0;
+    int next = 0;
+    int placeholder;
+    while (next < args.length && (placeholder = message.indexOf("{}", start)) >= 0) {
+      text.append(message, start, placeholder);
+      Object arg = args[next++];
+      if (arg instanceof Object[])
+        text.append(Arrays.deepToString((Object[]) arg));
+      else
+        text.append(arg);
+      start = placeholder + 2;
+    }
+    text.append(message, start, message.length());
+  }
+
+  private void write(boolean caughtUp) {
+    boolean flush = caughtUp || flushRequested;
+    try {
+      if (console != null)
+        console.append(text);
+      if (file != null) {
+        file.append(text);
+        if (flush)
+          file.flush();
+      }
+    } catch (IOException e) {
+      reportError("Couldn't write the log file", e, 0);
+    }
+    if (flush) {
+      flushRequested = false;
+      written = head.get();
+    }
+    text.setLength(0);
+    if (text.capacity() > 1024 * 1024)
+      text.trimToSize();
+  }
+
+  private void closeOutputs() {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Waits, for up to five seconds, until everything logged so far has been written out.
+   */
+  @Override
+  public void flush() {
+    long target = tail.get();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (written < target && writer.isAlive() && deadline - System.nanoTime() > 0) {
+      flushRequested = true;
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+  }
+
+  /**
+   * Writes out what is queued and stops the writer thread.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return records waiting to be written
+   */
+  public int getQueued() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+}
@@ -0,0 +1,320 @@
+package me.kevinthorne.MQTTBlocks.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import me.kevinthorne.MQTTBlocks.blocks.BlockClassLoader;
+import me.kevinthorne.MQTTBlocks.blocks.InboundDispatcher;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.connection.SharedConnection;
+
+/**
+ * Counters and latency histograms for one block. Counters are striped (LongAdder) so the
+ * connection's callback thread, the block's workers and the publish path don't contend;
+ * queue depths are read from the block when asked for.
+ */
+public class BlockMetrics implements BlockMetricsMBean {
+
+  private final MQTTBlock block;
+
+  private final LongAdder messagesIn = new LongAdder();
+  private final LongAdder messagesOut = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder publishFailures = new LongAdder();
+  private final LongAdder conflated = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder connectionsLost = new LongAdder();
+  private final LongAdder reconnects = new LongAdder();
+  private final LongAdder missedUpdates = new LongAdder();
+
+  private final Histogram handlerLatency = new Histogram();
+  private final Histogram updateLatency = new Histogram();
+  private final Histogram updateJitter = new Histogram();
+  private final Histogram ackLatency = new Histogram();
+
+  public BlockMetrics(MQTTBlock block) {
+    this.block = block;
+  }
+
+  /**
+   * A message matched one of the block's subscriptions.
+   *
+   * @param bytes - payload length
+   */
+  public void recordReceived(int bytes) {
+    messagesIn.increment();
+    bytesIn.add(bytes);
+  }
+
+  /**
+   * The broker acknowledged a message the block published.
+   *
+   * @param bytes - payload length
+   * @param nanos - time from publish() to the acknowledgement
+   */
+  public void recordPublished(int bytes, long nanos) {
+    messagesOut.increment();
+    bytesOut.add(bytes);
+    ackLatency.record(nanos);
+  }
+
+  public void recordPublishFailure() {
+    publishFailures.increment();
+  }
+
+  /**
+   * A queued publish was replaced by a newer one on the same topic before it was sent.
+   */
+  public void recordConflated() {
+    conflated.increment();
+  }
+
+  /**
+   * An inbound message was dropped as a repeat of one already handled.
+   */
+  public void recordDuplicate() {
+    duplicates.increment();
+  }
+
+  public void recordHandler(long nanos) {
+    handlerLatency.record(nanos);
+  }
+
+  public void recordUpdate(long nanos) {
+    updateLatency.record(nanos);
+  }
+
+  /**
+   * An update() started after it was due.
+   *
+   * @param nanos - how late it started
+   */
+  public void recordUpdateLateness(long nanos) {
+    updateJitter.record(Math.max(0, nanos));
+  }
+
+  /**
+   * A fixed-rate block overran and skipped updates to get back on schedule.
+   *
+   * @param count - updates skipped
+   */
+  public void recordMissedUpdates(long count) {
+    missedUpdates.add(count);
+  }
+
+  public void recordConnectionLost() {
+    connectionsLost.increment();
+  }
+
+  public void recordReconnect() {
+    reconnects.increment();
+  }
+
+  public Histogram getHandlerLatency() {
+    return handlerLatency;
+  }
+
+  public Histogram getUpdateLatency() {
+    return updateLatency;
+  }
+
+  public Histogram getUpdateJitter() {
+    return updateJitter;
+  }
+
+  public Histogram getAckLatency() {
+    return ackLatency;
+  }
+
+  @Override
+  public long getMessagesIn() {
+    return messagesIn.sum();
+  }
+
+  @Override
+  public long getMessagesOut() {
+    return messagesOut.sum();
+  }
+
+  @Override
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getPublishFailures() {
+    return publishFailures.sum();
+  }
+
+  @Override
+  public long getMessagesConflated() {
+    return conflated.sum();
+  }
+
+  @Override
+  public long getDuplicatesSuppressed() {
+    return duplicates.sum();
+  }
+
+  @Override
+  public long getInboundDropped() {
+    InboundDispatcher dispatcher = block.getDispatcher();
+    return dispatcher == null ? 0 : dispatcher.getDropped();
+  }
+
+  @Override
+  public int getInboundQueueDepth() {
+    InboundDispatcher dispatcher = block.getDispatcher();
+    return dispatcher == null ? 0 : dispatcher.getDepth();
+  }
+
+  @Override
+  public int[] getInboundLaneDepths() {
+    InboundDispatcher dispatcher = block.getDispatcher();
+    return dispatcher == null ? new int[0] : dispatcher.getLaneDepths();
+  }
+
+  @Override
+  public double[] getInboundLaneUtilization() {
+    InboundDispatcher dispatcher = block.getDispatcher();
+    return dispatcher == null ? new double[0] : dispatcher.getLaneUtilization();
+  }
+
+  /**
+   * @return messages queued on the block's connection, shared with the other blocks on it
+   */
+  @Override
+  public int getOutboundQueueDepth() {
+    SharedConnection connection = block.getConnection();
+    return connection == null ? 0 : connection.getPipeline().getQueued();
+  }
+
+  @Override
+  public long getConnectionsLost() {
+    return connectionsLost.sum();
+  }
+
+  @Override
+  public int getLoadedClasses() {
+    ClassLoader loader = block.getClass().getClassLoader();
+    return loader instanceof BlockClassLoader ? ((BlockClassLoader) loader).getLoadedClasses() : 0;
+  }
+
+  @Override
+  public long getLoadedClassBytes() {
+    ClassLoader loader = block.getClass().getClassLoader();
+    return loader instanceof BlockClassLoader ? ((BlockClassLoader) loader).getLoadedBytes() : 0;
+  }
+
+  @Override
+  public long getReconnects() {
+    return reconnects.sum();
+  }
+
+  @Override
+  public long getHandlerCount() {
+    return handlerLatency.getCount();
+  }
+
+  @Override
+  public long getHandlerMeanMicros() {
+    return micros(handlerLatency.getMean());
+  }
+
+  @Override
+  public long getHandlerP99Micros() {
+    return micros(handlerLatency.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getHandlerMaxMicros() {
+    return micros(handlerLatency.getMax());
+  }
+
+  @Override
+  public long getUpdateCount() {
+    return updateLatency.getCount();
+  }
+
+  @Override
+  public long getUpdateMeanMicros() {
+    return micros(updateLatency.getMean());
+  }
+
+  @Override
+  public long getUpdateP99Micros() {
+    return micros(updateLatency.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getUpdateMaxMicros() {
+    return micros(updateLatency.getMax());
+  }
+
+  @Override
+  public long getUpdateJitterMeanMicros() {
+    return micros(updateJitter.getMean());
+  }
+
+  @Override
+  public long getUpdateJitterP99Micros() {
+    return micros(updateJitter.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getUpdateJitterMaxMicros() {
+    return micros(updateJitter.getMax());
+  }
+
+  @Override
+  public long getMissedUpdates() {
+    return missedUpdates.sum();
+  }
+
+  @Override
+  public long getAckMeanMicros() {
+    return micros(ackLatency.getMean());
+  }
+
+  @Override
+  public long getAckP99Micros() {
+    return micros(ackLatency.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getAckMaxMicros() {
+    return micros(ackLatency.getMax());
+  }
+
+  @Override
+  public void reset() {
+    messagesIn.reset();
+    messagesOut.reset();
+    bytesIn.reset();
+    bytesOut.reset();
+    publishFailures.reset();
+    conflated.reset();
+    duplicates.reset();
+    connectionsLost.reset();
+    reconnects.reset();
+    missedUpdates.reset();
+    handlerLatency.reset();
+    updateLatency.reset();
+    updateJitter.reset();
+    ackLatency.reset();
+    InboundDispatcher dispatcher = block.getDispatcher();
+    if (dispatcher != null)
+      dispatcher.resetUtilization();
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+}
@@ -0,0 +1,93 @@
+package me.kevinthorne.MQTTBlocks.metrics;
+
+/**
+ * JMX view of a block's metrics. Latencies are in microseconds.
+ */
+public interface BlockMetricsMBean {
+
+  long getMessagesIn();
+
+  long getMessagesOut();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getPublishFailures();
+
+  long getMessagesConflated();
+
+  /**
+   * @return inbound messages dropped as repeats by the block's dedup stage
+   */
+  long getDuplicatesSuppressed();
+
+  long getInboundDropped();
+
+  int getInboundQueueDepth();
+
+  int getOutboundQueueDepth();
+
+  int[] getInboundLaneDepths();
+
+  /**
+   * @return share of the time since the last reset each inbound lane spent handling messages
+   */
+  double[] getInboundLaneUtilization();
+
+  long getConnectionsLost();
+
+  /**
+   * @return classes defined by the block's own class loader, 0 unless it was hot-loaded
+   */
+  int getLoadedClasses();
+
+  /**
+   * @return bytecode size of those classes, a rough measure of the block's metaspace
+   */
+  long getLoadedClassBytes();
+
+  long getReconnects();
+
+  long getHandlerCount();
+
+  long getHandlerMeanMicros();
+
+  long getHandlerP99Micros();
+
+  long getHandlerMaxMicros();
+
+  long getUpdateCount();
+
+  long getUpdateMeanMicros();
+
+  long getUpdateP99Micros();
+
+  long getUpdateMaxMicros();
+
+  /**
+   * @return mean time update() started after it was due
+   */
+  long getUpdateJitterMeanMicros();
+
+  long getUpdateJitterP99Micros();
+
+  long getUpdateJitterMaxMicros();
+
+  /**
+   * @return updates a fixed-rate block skipped after overrunning
+   */
+  long getMissedUpdates();
+
+  long getAckMeanMicros();
+
+  long getAckP99Micros();
+
+  long getAckMaxMicros();
+
+  /**
+   * Zeroes the counters and histograms.
+   */
+  void reset();
+
+}
@@ -0,0 +1,151 @@
+package me.kevinthorne.MQTTBlocks.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size latency histogram. Values are bucketed by power of two with four linear
+ * sub-buckets each, so a percentile is accurate to within 25% and recording is a couple of shifts
+ * and one atomic add. Everything under a microsecond shares the first bucket; everything over
+ * about 18 minutes shares the last.
+ *
+ * <p>
+ * Where tail percentiles matter more than memory, as in a load test, more sub-buckets can be
+ * asked for: 2^subBits per power of two, each step halving the error.
+ */
+public class Histogram {
+
+  private static final int MIN_EXPONENT = 10;
+  private static final int MAX_EXPONENT = 40;
+  private static final int SUB_BITS = 2;
+  private static final int MAX_SUB_BITS = 8;
+
+  private final int subBits;
+  private final int bucketCount;
+  private final AtomicLongArray buckets;
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public Histogram() {
+    this(SUB_BITS);
+  }
+
+  /**
+   * @param subBits - 1 to 8; percentiles are accurate to within 1 / 2^subBits
+   */
+  public Histogram(int subBits) {
+    if (subBits < 1 || subBits > MAX_SUB_BITS)
+      throw new IllegalArgumentException("subBits must be 1 to " + MAX_SUB_BITS);
+    this.subBits = subBits;
+    this.bucketCount = 1 + ((MAX_EXPONENT - MIN_EXPONENT + 1) << subBits);
+    this.buckets = new AtomicLongArray(bucketCount);
+  }
+
+  /**
+   * @param nanos - negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    buckets.incrementAndGet(index(value, subBits));
+    count.increment();
+    sum.add(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return long <strong>nanoseconds</strong>, 0 if nothing was recorded
+   */
+  public long getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : sum.sum() / n;
+  }
+
+  /**
+   * @return long <strong>nanoseconds</strong>
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile - 0 to 100
+   * @return upper bound of the bucket holding the value, in <strong>nanoseconds</strong>
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] counts = new long[bucketCount];
+    long total = 0;
+    for (int i = 0; i < bucketCount; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0)
+      return 0;
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < bucketCount; i++) {
+      seen += counts[i];
+      if (seen >= target)
+        return Math.min(upperBound(i, subBits), max.get());
+    }
+    return max.get();
+  }
+
+  /**
+   * Adds another histogram's counts to this one.
+   *
+   * @param other - of the same precision
+   */
+  public void add(Histogram other) {
+    if (other.subBits != subBits)
+      throw new IllegalArgumentException("Histograms differ in precision");
+    for (int i = 0; i < bucketCount; i++) {
+      long n = other.buckets.get(i);
+      if (n != 0)
+        buckets.addAndGet(i, n);
+    }
+    count.add(other.count.sum());
+    sum.add(other.sum.sum());
+    long otherMax = other.max.get();
+    long current = max.get();
+    while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+      current = max.get();
+    }
+  }
+
+  public void reset() {
+    for (int i = 0; i < bucketCount; i++) {
+      buckets.set(i, 0);
+    }
+    count.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+  static int index(long value, int subBits) {
+    if (value < (1L << MIN_EXPONENT))
+      return 0;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT)
+      return ((MAX_EXPONENT - MIN_EXPONENT + 1) << subBits);
+    int sub = (int) (value >>> (exponent - subBits)) & ((1 << subBits) - 1);
+    return 1 + ((exponent - MIN_EXPONENT) << subBits) + sub;
+  }
+
+  static long upperBound(int index, int subBits) {
+    if (index == 0)
+      return 1L << MIN_EXPONENT;
+    int exponent = MIN_EXPONENT + ((index - 1) >> subBits);
+    int sub = (index - 1) & ((1 << subBits) - 1);
+    return (1L << exponent) + ((sub + 1L) << (exponent - subBits));
+  }
+
+}
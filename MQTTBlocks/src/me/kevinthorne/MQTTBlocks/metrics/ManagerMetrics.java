@@ -0,0 +1,138 @@
+package me.kevinthorne.MQTTBlocks.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockClassLoaders;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+/**
+ * Manager-wide metrics, summed from the blocks' own when read so nothing extra is counted on the
+ * message path.
+ */
+public class ManagerMetrics implements ManagerMetricsMBean {
+
+  private final BlockManager manager;
+  private final long started = System.nanoTime();
+
+  public ManagerMetrics(BlockManager manager) {
+    this.manager = manager;
+  }
+
+  @Override
+  public int getBlockCount() {
+    return manager.getBlocks().size();
+  }
+
+  @Override
+  public int getRunningBlocks() {
+    int running = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      if (block.isRunning())
+        running++;
+    }
+    return running;
+  }
+
+  @Override
+  public int getConnectionCount() {
+    return manager.getConnectionPool().getConnectionCount();
+  }
+
+  @Override
+  public long getMessagesIn() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getMessagesIn();
+    }
+    return total;
+  }
+
+  @Override
+  public long getMessagesOut() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getMessagesOut();
+    }
+    return total;
+  }
+
+  @Override
+  public long getBytesIn() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getBytesIn();
+    }
+    return total;
+  }
+
+  @Override
+  public long getBytesOut() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getBytesOut();
+    }
+    return total;
+  }
+
+  @Override
+  public long getMessagesConflated() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getMessagesConflated();
+    }
+    return total;
+  }
+
+  @Override
+  public long getDuplicatesSuppressed() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getDuplicatesSuppressed();
+    }
+    return total;
+  }
+
+  @Override
+  public long getPublishFailures() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getPublishFailures();
+    }
+    return total;
+  }
+
+  @Override
+  public long getInboundDropped() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getInboundDropped();
+    }
+    return total;
+  }
+
+  @Override
+  public long getConnectionsLost() {
+    long total = 0;
+    for (MQTTBlock block : manager.getBlocks().values()) {
+      total += block.getMetrics().getConnectionsLost();
+    }
+    return total;
+  }
+
+  @Override
+  public long getUptimeSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+  }
+
+  @Override
+  public long getMetaspaceUsed() {
+    return BlockClassLoaders.getMetaspaceUsed();
+  }
+
+  @Override
+  public int getUnloadedClassLoaders() {
+    return manager.getClassLoaders().getUnloadedCount();
+  }
+
+}
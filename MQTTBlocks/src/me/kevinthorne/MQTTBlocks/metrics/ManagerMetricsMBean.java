@@ -0,0 +1,44 @@
+package me.kevinthorne.MQTTBlocks.metrics;
+
+/**
+ * JMX view of a BlockManager; message counts are totals over its current blocks.
+ */
+public interface ManagerMetricsMBean {
+
+  int getBlockCount();
+
+  int getRunningBlocks();
+
+  int getConnectionCount();
+
+  long getMessagesIn();
+
+  long getMessagesOut();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getPublishFailures();
+
+  long getMessagesConflated();
+
+  long getDuplicatesSuppressed();
+
+  long getInboundDropped();
+
+  long getConnectionsLost();
+
+  long getUptimeSeconds();
+
+  /**
+   * @return metaspace used by the whole JVM, in bytes
+   */
+  long getMetaspaceUsed();
+
+  /**
+   * @return class loaders of removed blocks that haven't been garbage collected yet
+   */
+  int getUnloadedClassLoaders();
+
+}
@@ -0,0 +1,89 @@
+package me.kevinthorne.MQTTBlocks.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+
+/**
+ * Registers metrics on the platform MBean server, where jconsole, VisualVM or any local JMX client
+ * can read them without an agent. Set mqttblocks.jmx=false to skip registration.
+ *
+ * <p>
+ * Names are me.kevinthorne.MQTTBlocks:type=BlockManager,manager=N and
+ * me.kevinthorne.MQTTBlocks:type=Block,manager=N,name="block name".
+ */
+public class MetricsRegistry {
+
+  public static final String DOMAIN = "me.kevinthorne.MQTTBlocks";
+  public static final String JMX_PROPERTY = "mqttblocks.jmx";
+
+  private static Logger logger = Logger.getLogger(BlockManager.class.getName());
+
+  private final boolean enabled;
+  private final int managerId;
+  private final MBeanServer server;
+
+  /**
+   * @param managerId - keeps the names of several managers in one JVM apart
+   */
+  public MetricsRegistry(int managerId) {
+    this.enabled = Boolean.parseBoolean(System.getProperty(JMX_PROPERTY, "true"));
+    this.managerId = managerId;
+    this.server = enabled ? ManagementFactory.getPlatformMBeanServer() : null;
+  }
+
+  public void registerManager(ManagerMetrics metrics) {
+    register(metrics, managerName());
+  }
+
+  public void unregisterManager() {
+    unregister(managerName());
+  }
+
+  public void registerBlock(String name, BlockMetrics metrics) {
+    register(metrics, blockName(name));
+  }
+
+  public void unregisterBlock(String name) {
+    unregister(blockName(name));
+  }
+
+  public String managerName() {
+    return DOMAIN + ":type=BlockManager,manager=" + managerId;
+  }
+
+  public String blockName(String name) {
+    return DOMAIN + ":type=Block,manager=" + managerId + ",name=" + ObjectName.quote(name);
+  }
+
+  private void register(Object mbean, String name) {
+    if (!enabled)
+      return;
+    try {
+      ObjectName objectName = new ObjectName(name);
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+      server.registerMBean(mbean, objectName);
+    } catch (JMException e) {
+      logger.warning("Couldn't register " + name + ": " + e);
+    }
+  }
+
+  private void unregister(String name) {
+    if (!enabled)
+      return;
+    try {
+      ObjectName objectName = new ObjectName(name);
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+    } catch (JMException e) {
+      logger.warning("Couldn't unregister " + name + ": " + e);
+    }
+  }
+
+}
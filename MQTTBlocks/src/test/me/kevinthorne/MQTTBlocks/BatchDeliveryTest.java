@@ -0,0 +1,106 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.blocks.MessageBatch;
+
+public class BatchDeliveryTest {
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class BatchingBlock extends MQTTBlock {
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final List<Integer> batches = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessagesReceived(MessageBatch batch) {
+      batches.add(batch.size());
+      for (BlockMessage message : batch) {
+        received.add(message.getString());
+      }
+      return true;
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      throw new AssertionError("Delivered outside a batch");
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+  }
+
+  @Test
+  public void testBatchesInOrder() throws Exception {
+    BlockConfigurationFile config = new BlockConfigurationFile("Batching", null, null,
+        new String[] {"batch/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setBatchSize(50);
+    config.setBatchDelay(20000);
+    BatchingBlock block = new BatchingBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+
+    List<CompletableFuture<IMqttDeliveryToken>> futures = new ArrayList<>();
+    for (int i = 0; i < 120; i++) {
+      futures.add(block.publishAsync("batch/" + (i % 3), String.valueOf(i)));
+    }
+    for (CompletableFuture<IMqttDeliveryToken> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+
+    // The last, partial batch is only delivered once batchDelay runs out
+    long deadline = System.currentTimeMillis() + 5000;
+    while (block.received.size() < 120 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(120, block.received.size());
+    for (int i = 0; i < 120; i++) {
+      Assert.assertEquals(String.valueOf(i), block.received.get(i));
+    }
+    int total = 0;
+    for (int size : block.batches) {
+      Assert.assertTrue("Batch of " + size, size > 0 && size <= 50);
+      total += size;
+    }
+    Assert.assertEquals(120, total);
+    Assert.assertTrue("Nothing was batched", block.batches.size() < 120);
+  }
+
+}
@@ -0,0 +1,112 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.blocks.BlockClassLoader;
+import me.kevinthorne.MQTTBlocks.blocks.BlockClassLoaders;
+
+public class ClassLoaderTest {
+
+  private static final String PROBE = Probe.class.getName();
+
+  private File directory;
+  private File jar;
+  private BlockClassLoaders loaders;
+
+  /**
+   * Only depends on java.*, so it can be loaded with no application class loader above it.
+   */
+  public static class Probe {
+    @Override
+    public String toString() {
+      return "probe";
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("loaders").toFile();
+    jar = new File(directory, "probe.jar");
+    String entry = PROBE.replace('.', '/') + ".class";
+    try (InputStream in = Probe.class.getClassLoader().getResourceAsStream(entry);
+        OutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+      ((JarOutputStream) out).putNextEntry(new JarEntry(entry));
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    // No parent but the bootstrap loader, so the probe can only come from the jar
+    loaders = new BlockClassLoaders(new File(directory, "lib"), null, 0);
+  }
+
+  @After
+  public void tearDown() {
+    loaders.close();
+    jar.delete();
+    directory.delete();
+  }
+
+  @Test
+  public void testCountsClosesAndTracks() throws Exception {
+    BlockClassLoader loader;
+    try (JarFile jarFile = new JarFile(jar)) {
+      loader = loaders.create("Probe", jar.toPath(), jarFile);
+    }
+    Class<?> probe = loader.loadClass(PROBE);
+    Assert.assertSame(loader, probe.getClassLoader());
+    Assert.assertEquals("probe", probe.getDeclaredConstructor().newInstance().toString());
+    Assert.assertEquals(1, loader.getLoadedClasses());
+    Assert.assertTrue(loader.getLoadedBytes() > 0);
+
+    // Never activated, so no block uses it
+    loaders.discard(loader);
+    Assert.assertTrue(loader.isClosed());
+    Assert.assertEquals(1, loaders.getUnloadedCount());
+    // Still referenced from here, so it is reported once the (zero) timeout has passed
+    Assert.assertEquals("Probe", loaders.checkLeaks().get(0));
+
+    loader = null;
+    probe = null;
+    long deadline = System.currentTimeMillis() + 10000;
+    while (loaders.getUnloadedCount() > 0 && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(0, loaders.getUnloadedCount());
+    Assert.assertTrue(loaders.checkLeaks().isEmpty());
+  }
+
+  @Test
+  public void testActiveLoaderIsKept() throws Exception {
+    BlockClassLoader loader;
+    try (JarFile jarFile = new JarFile(jar)) {
+      loader = loaders.create("Probe", jar.toPath(), jarFile);
+    }
+    loader.loadClass(PROBE);
+    loaders.activate(loader);
+    loaders.activate(loader);
+    loaders.discard(loader);
+
+    Assert.assertFalse(loader.isClosed());
+    Assert.assertSame(loader, loaders.getLoader("Probe"));
+    Assert.assertTrue(loaders.getMetaspaceReport(),
+        loaders.getMetaspaceReport().contains("Probe - 1 classes, 2 instances"));
+    loaders.close();
+    Assert.assertTrue(loader.isClosed());
+  }
+
+}
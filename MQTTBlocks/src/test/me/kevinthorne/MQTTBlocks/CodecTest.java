@@ -0,0 +1,164 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.blocks.TypedHandler;
+import me.kevinthorne.MQTTBlocks.codec.BinaryCodec;
+import me.kevinthorne.MQTTBlocks.codec.CodecException;
+import me.kevinthorne.MQTTBlocks.codec.CodecRegistry;
+import me.kevinthorne.MQTTBlocks.codec.JsonCodec;
+
+public class CodecTest {
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class TypedBlock extends MQTTBlock {
+
+    private final List<Object> received = new CopyOnWriteArrayList<>();
+    private final List<String> untyped = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onEnable() {
+      handle("codec/json/reading", Double.class, new TypedHandler<Double>() {
+        @Override
+        public void onMessage(Double value, BlockMessage message) {
+          received.add(value);
+        }
+      });
+      handle("codec/json/state", Map.class, new TypedHandler<Object>() {
+        @Override
+        public void onMessage(Object value, BlockMessage message) {
+          received.add(value);
+        }
+      });
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      untyped.add(message.getTopic());
+      return true;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+  }
+
+  @Test
+  public void testJsonRoundTrip() throws Exception {
+    CodecRegistry codecs = new CodecRegistry();
+    codecs.register("json/#", new JsonCodec());
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("name", "caf\u00e9 \"quoted\"\n\ud83d\ude00");
+    value.put("count", 3);
+    value.put("ratio", 0.5);
+    value.put("tags", Arrays.asList("a", null, true));
+    value.put("nested", new int[] {1, 2});
+
+    byte[] payload = codecs.encode("json/x", value);
+    Object decoded = codecs.decode("json/x", payload);
+
+    Map<String, Object> expected = new LinkedHashMap<>(value);
+    expected.put("count", 3L);
+    expected.put("nested", Arrays.asList(1L, 2L));
+    Assert.assertEquals(expected, decoded);
+    byte[] spaced = " {\"a\" : \"\u00e9\\t\", \"b\": [ ] } ".getBytes(StandardCharsets.UTF_8);
+    byte[] compact = codecs.encode("json/y", codecs.decode("json/y", spaced));
+    Assert.assertEquals("{\"a\":\"\u00e9\\t\",\"b\":[]}",
+        new String(compact, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testJsonRejectsBadInput() {
+    CodecRegistry codecs = new CodecRegistry();
+    codecs.setDefault(new JsonCodec());
+    for (String bad : new String[] {"", "{", "[1,]", "{\"a\" 1}", "nul", "1 2", "\"\\x\""}) {
+      try {
+        codecs.decode("t", bad.getBytes(StandardCharsets.UTF_8));
+        Assert.fail("Accepted " + bad);
+      } catch (CodecException expected) {
+      }
+    }
+    try {
+      codecs.encode("t", new Object());
+      Assert.fail("Encoded an Object");
+    } catch (CodecException expected) {
+    }
+  }
+
+  @Test
+  public void testFirstMatchingFilterWins() throws Exception {
+    CodecRegistry codecs = new CodecRegistry();
+    codecs.register("raw/#", new BinaryCodec());
+    codecs.register("#", new JsonCodec());
+    byte[] raw = {1, 2, 3};
+    Assert.assertSame(raw, codecs.encode("raw/a", raw));
+    Assert.assertSame(raw, codecs.decode("raw/a", raw));
+    Assert.assertEquals("\"x\"", new String(codecs.encode("other", "x"), StandardCharsets.UTF_8));
+    Assert.assertEquals("x", CodecRegistry.forName("string", null).decode("t", new byte[] {'x'}));
+  }
+
+  @Test
+  public void testTypedHandlers() throws Exception {
+    BlockConfigurationFile config = new BlockConfigurationFile("Typed", null, null,
+        new String[] {"codec/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setCodec("codec/json/#", "json");
+    TypedBlock block = new TypedBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+
+    Map<String, Object> state = new LinkedHashMap<>();
+    state.put("on", true);
+    block.publishObject("codec/json/reading", 21).get(5, TimeUnit.SECONDS);
+    block.publishObject("codec/json/state", state).get(5, TimeUnit.SECONDS);
+    block.publishObject("codec/text", "plain").get(5, TimeUnit.SECONDS);
+    try {
+      block.publishObject("codec/json/reading", new Object()).get(5, TimeUnit.SECONDS);
+      Assert.fail("Published an unencodable value");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof CodecException);
+    }
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((block.received.size() < 2 || block.untyped.isEmpty())
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(Arrays.asList(21.0, state), block.received);
+    Assert.assertEquals(Arrays.asList("codec/text"), block.untyped);
+  }
+
+}
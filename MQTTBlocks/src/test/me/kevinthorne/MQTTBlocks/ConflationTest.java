@@ -0,0 +1,133 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+public class ConflationTest {
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class RecordingBlock extends MQTTBlock {
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      received.add(message.getTopic() + "=" + message.getString());
+      return true;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+  }
+
+  private RecordingBlock add(long window) {
+    BlockConfigurationFile config = new BlockConfigurationFile("Telemetry", null, null,
+        new String[] {"telemetry/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setConflateTopics(new String[] {"telemetry/+/value"});
+    config.setConflateWindow(window);
+    RecordingBlock block = new RecordingBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+    return block;
+  }
+
+  @Test
+  public void testWindow() throws Exception {
+    RecordingBlock block = add(200);
+    List<CompletableFuture<IMqttDeliveryToken>> futures = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      futures.add(block.publishAsync("telemetry/temp/value", String.valueOf(i)));
+    }
+    futures.add(block.publishAsync("telemetry/temp/alarm", "high"));
+    for (CompletableFuture<IMqttDeliveryToken> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+    awaitSize(block.received, 2);
+    Thread.sleep(200);
+
+    Assert.assertEquals(2, block.received.size());
+    Assert.assertTrue(block.received.contains("telemetry/temp/value=99"));
+    Assert.assertTrue(block.received.contains("telemetry/temp/alarm=high"));
+    Assert.assertEquals(99, block.getMetrics().getMessagesConflated());
+    Assert.assertEquals(2, block.getMetrics().getMessagesOut());
+  }
+
+  @Test
+  public void testCongested() throws Exception {
+    RecordingBlock block = add(0);
+    List<CompletableFuture<IMqttDeliveryToken>> futures = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      futures.add(block.publishAsync("telemetry/load/value", String.valueOf(i)));
+    }
+    for (CompletableFuture<IMqttDeliveryToken> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+    long sent = block.getMetrics().getMessagesOut();
+    Assert.assertEquals(2000, sent + block.getMetrics().getMessagesConflated());
+    Assert.assertTrue("Nothing was conflated", sent < 2000);
+
+    awaitSize(block.received, (int) sent);
+    Assert.assertEquals("telemetry/load/value=1999",
+        block.received.get(block.received.size() - 1));
+  }
+
+  @Test
+  public void testSchedulerShutDown() throws Exception {
+    RecordingBlock block = add(200);
+    blockManager.getScheduler().shutdown();
+    CompletableFuture<IMqttDeliveryToken> future =
+        block.publishAsync("telemetry/temp/value", "late");
+    try {
+      // Held with no flush to come, it must not be left hanging
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException ignored) {
+    }
+  }
+
+  private static void awaitSize(List<?> list, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (list.size() < size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("Expected " + size + " messages, got " + list.size(), list.size() >= size);
+  }
+
+}
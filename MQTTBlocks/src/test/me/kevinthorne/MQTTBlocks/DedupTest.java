@@ -0,0 +1,149 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.Deduplicator;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+public class DedupTest {
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class RecordingBlock extends MQTTBlock {
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      received.add(message.getString());
+      return true;
+    }
+  }
+
+  /**
+   * A message as the broker sends it again after a reconnect.
+   */
+  private static class Redelivered extends MqttMessage {
+    Redelivered(String payload) {
+      super(payload.getBytes(BlockMessage.CHARSET));
+      setDuplicate(true);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+  }
+
+  private RecordingBlock add(Deduplicator.Mode mode, long window) {
+    BlockConfigurationFile config = new BlockConfigurationFile("Dedup", null, null,
+        new String[] {"orders/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setDedup(mode);
+    config.setDedupWindow(window);
+    config.setDedupCapacity(1000);
+    RecordingBlock block = new RecordingBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+    return block;
+  }
+
+  private static void arrive(MQTTBlock block, MqttMessage message) throws Exception {
+    block.messageArrived("orders/new", message);
+  }
+
+  private static MqttMessage message(String payload) {
+    return new MqttMessage(payload.getBytes(BlockMessage.CHARSET));
+  }
+
+  @Test
+  public void testAll() throws Exception {
+    RecordingBlock block = add(Deduplicator.Mode.ALL, 60000);
+    arrive(block, message("1"));
+    arrive(block, message("2"));
+    arrive(block, message("1"));
+    arrive(block, new Redelivered("2"));
+    arrive(block, message("3"));
+    awaitSize(block.received, 3);
+    Thread.sleep(100);
+    Assert.assertEquals("[1, 2, 3]", block.received.toString());
+    Assert.assertEquals(2, block.getMetrics().getDuplicatesSuppressed());
+    Assert.assertEquals(5, block.getMetrics().getMessagesIn());
+  }
+
+  @Test
+  public void testMarked() throws Exception {
+    RecordingBlock block = add(Deduplicator.Mode.MARKED, 60000);
+    arrive(block, message("1"));
+    arrive(block, message("1"));
+    arrive(block, new Redelivered("1"));
+    arrive(block, new Redelivered("2"));
+    awaitSize(block.received, 3);
+    Thread.sleep(100);
+    Assert.assertEquals("[1, 1, 2]", block.received.toString());
+    Assert.assertEquals(1, block.getMetrics().getDuplicatesSuppressed());
+  }
+
+  @Test
+  public void testBeyondExactWindow() throws Exception {
+    RecordingBlock block = add(Deduplicator.Mode.ALL, 60000);
+    for (int i = 0; i < 900; i++) {
+      arrive(block, message(String.valueOf(i)));
+    }
+    for (int i = 0; i < 900; i++) {
+      arrive(block, new Redelivered(String.valueOf(i)));
+    }
+    awaitSize(block.received, 900);
+    Thread.sleep(100);
+    Assert.assertEquals(900, block.received.size());
+    Assert.assertEquals(900, block.getMetrics().getDuplicatesSuppressed());
+  }
+
+  @Test
+  public void testWindowExpires() throws Exception {
+    RecordingBlock block = add(Deduplicator.Mode.ALL, 100);
+    arrive(block, message("1"));
+    Thread.sleep(250);
+    arrive(block, message("1"));
+    awaitSize(block.received, 2);
+    Assert.assertEquals(0, block.getMetrics().getDuplicatesSuppressed());
+  }
+
+  private static void awaitSize(List<?> list, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (list.size() < size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("Expected " + size + " messages, got " + list.size(), list.size() >= size);
+  }
+
+}
@@ -0,0 +1,62 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.blocks.EchoSuppressionCache;
+
+public class EchoSuppressionCacheTest {
+
+  @Test
+  public void testBurstOnOneTopic() {
+    EchoSuppressionCache cache = new EchoSuppressionCache(16, 10000);
+    for (int i = 0; i < 5; i++) {
+      cache.record("lights/state", ("value " + i).getBytes());
+    }
+    for (int i = 0; i < 5; i++) {
+      Assert.assertTrue("Echo " + i + " wasn't recognised",
+          cache.consume("lights/state", ("value " + i).getBytes()));
+    }
+    Assert.assertFalse(cache.consume("lights/state", "value 0".getBytes()));
+    Assert.assertFalse(cache.consume("lights/other", "value 1".getBytes()));
+  }
+
+  @Test
+  public void testBounded() {
+    EchoSuppressionCache cache = new EchoSuppressionCache(4, 10000);
+    for (int i = 0; i < 1000; i++) {
+      cache.record("topic/" + i, "on".getBytes());
+    }
+    Assert.assertEquals(4, cache.size());
+    Assert.assertFalse(cache.consume("topic/0", "on".getBytes()));
+    Assert.assertTrue(cache.consume("topic/999", "on".getBytes()));
+  }
+
+  @Test
+  public void testOverwrittenAndRepeated() {
+    EchoSuppressionCache cache = new EchoSuppressionCache(8, 10000);
+    // Wraps the ring twice, overwriting entries that share probe runs with live ones
+    for (int i = 0; i < 20; i++) {
+      cache.record("topic/" + i % 5, ("value " + i % 3).getBytes());
+    }
+    Assert.assertEquals(8, cache.size());
+    for (int i = 12; i < 20; i++) {
+      Assert.assertTrue("Echo " + i + " wasn't recognised",
+          cache.consume("topic/" + i % 5, ("value " + i % 3).getBytes()));
+    }
+    Assert.assertEquals(0, cache.size());
+    for (int i = 0; i < 20; i++) {
+      Assert.assertFalse(cache.consume("topic/" + i % 5, ("value " + i % 3).getBytes()));
+    }
+  }
+
+  @Test
+  public void testExpiry() throws InterruptedException {
+    EchoSuppressionCache cache = new EchoSuppressionCache(4, 1);
+    cache.record("lights/state", "on".getBytes());
+    Thread.sleep(10);
+    Assert.assertFalse(cache.consume("lights/state", "on".getBytes()));
+    Assert.assertEquals(0, cache.size());
+  }
+
+}
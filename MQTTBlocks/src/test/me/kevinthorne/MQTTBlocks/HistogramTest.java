@@ -0,0 +1,68 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.metrics.Histogram;
+
+public class HistogramTest {
+
+  @Test
+  public void testPercentiles() {
+    Histogram histogram = new Histogram();
+    for (long micros = 1; micros <= 10000; micros++) {
+      histogram.record(micros * 1000);
+    }
+    Assert.assertEquals(10000, histogram.getCount());
+    Assert.assertEquals(10000000, histogram.getMax());
+    assertWithin(5000000, histogram.getValueAtPercentile(50));
+    assertWithin(9900000, histogram.getValueAtPercentile(99));
+    Assert.assertEquals(10000000, histogram.getValueAtPercentile(100));
+    assertWithin(5000500, histogram.getMean());
+  }
+
+  @Test
+  public void testOutOfRange() {
+    Histogram histogram = new Histogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    Assert.assertEquals(2, histogram.getCount());
+    Assert.assertEquals(Long.MAX_VALUE, histogram.getMax());
+    Assert.assertEquals(1024, histogram.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void testAddAndReset() {
+    Histogram a = new Histogram();
+    Histogram b = new Histogram();
+    a.record(2000);
+    b.record(4000000);
+    a.add(b);
+    Assert.assertEquals(2, a.getCount());
+    Assert.assertEquals(4000000, a.getMax());
+    a.reset();
+    Assert.assertEquals(0, a.getCount());
+    Assert.assertEquals(0, a.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testFinerPrecision() {
+    Histogram histogram = new Histogram(5);
+    for (long micros = 1; micros <= 10000; micros++) {
+      histogram.record(micros * 1000);
+    }
+    long p999 = histogram.getValueAtPercentile(99.9);
+    Assert.assertTrue("p99.9 was " + p999, Math.abs(p999 - 9990000) <= 9990000 / 32);
+    try {
+      histogram.add(new Histogram());
+      Assert.fail("Added a histogram of another precision");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    Assert.assertTrue("Expected about " + expected + " but was " + actual,
+        Math.abs(actual - expected) <= expected / 4);
+  }
+
+}
@@ -0,0 +1,66 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.blocks.InboundQueue;
+
+public class InboundQueueTest {
+
+  @Test
+  public void testOrderAndCapacity() {
+    InboundQueue queue = new InboundQueue(3);
+    Assert.assertEquals(4, queue.getCapacity());
+    for (int i = 0; i < 4; i++) {
+      Assert.assertTrue(queue.offer("topic/" + i, new MqttMessage()));
+    }
+    Assert.assertFalse(queue.offer("topic/4", new MqttMessage()));
+    Assert.assertEquals(4, queue.size());
+
+    final List<String> seen = new ArrayList<String>();
+    while (queue.poll((topic, message) -> seen.add(topic))) {
+    }
+    Assert.assertEquals(4, seen.size());
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals("topic/" + i, seen.get(i));
+    }
+    Assert.assertTrue(queue.isEmpty());
+    Assert.assertFalse(queue.poll(null));
+  }
+
+  @Test
+  public void testConcurrentProducers() throws InterruptedException {
+    final InboundQueue queue = new InboundQueue(64);
+    final int producers = 4;
+    final int perProducer = 50000;
+    final MqttMessage message = new MqttMessage();
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      threads[p] = new Thread(() -> {
+        for (int i = 0; i < perProducer; i++) {
+          while (!queue.offer("topic", message)) {
+            Thread.yield();
+          }
+        }
+      });
+      threads[p].start();
+    }
+    final AtomicLong received = new AtomicLong();
+    long deadline = System.currentTimeMillis() + 30000;
+    while (received.get() < producers * perProducer && System.currentTimeMillis() < deadline) {
+      if (!queue.poll((topic, m) -> received.incrementAndGet()))
+        Thread.yield();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(producers * perProducer, received.get());
+    Assert.assertTrue(queue.isEmpty());
+  }
+
+}
@@ -0,0 +1,67 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+
+public class InstanceConfigTest {
+
+  private static Properties template() {
+    Properties properties = new Properties();
+    properties.setProperty("name", "Sensor");
+    properties.setProperty("main", "test.Sensor");
+    properties.setProperty("topic", "sensors/${instance}/#, ${site}/alarms");
+    properties.setProperty("qos", "1");
+    properties.setProperty("updateWait", "60");
+    properties.setProperty("clientId", "sensor-${instance}");
+    properties.setProperty("instances", "kitchen, garage");
+    properties.setProperty("kitchen.site", "house");
+    properties.setProperty("garage.site", "yard");
+    properties.setProperty("garage.updateWait", "5");
+    return properties;
+  }
+
+  @Test
+  public void testExpansion() {
+    List<BlockConfigurationFile> instances = new BlockConfigurationFile(template()).getInstances();
+    Assert.assertEquals(2, instances.size());
+
+    BlockConfigurationFile kitchen = instances.get(0);
+    Assert.assertEquals("Sensor-kitchen", kitchen.getName());
+    Assert.assertEquals("kitchen", kitchen.getInstance());
+    Assert.assertEquals("sensor-kitchen", kitchen.getClientId());
+    Assert.assertArrayEquals(new String[] {"sensors/kitchen/#", "house/alarms"},
+        kitchen.getTopics());
+    Assert.assertEquals(60, kitchen.getUpdateWait());
+
+    BlockConfigurationFile garage = instances.get(1);
+    Assert.assertEquals("Sensor-garage", garage.getName());
+    Assert.assertArrayEquals(new String[] {"sensors/garage/#", "yard/alarms"},
+        garage.getTopics());
+    Assert.assertEquals(5, garage.getUpdateWait());
+    Assert.assertEquals("test.Sensor", garage.getMain());
+  }
+
+  @Test
+  public void testInstancesFile() {
+    Properties properties = template();
+    properties.remove("instances");
+    properties.setProperty("name", "${site}-sensor");
+    BlockConfigurationFile config = new BlockConfigurationFile(properties);
+    Assert.assertEquals(1, config.getInstances().size());
+
+    Properties file = new Properties();
+    file.setProperty("instances", "kitchen");
+    file.setProperty("kitchen.clientId", "kitchen-probe");
+    config.addInstances(file);
+    List<BlockConfigurationFile> instances = config.getInstances();
+    Assert.assertEquals(1, instances.size());
+    Assert.assertEquals("house-sensor", instances.get(0).getName());
+    Assert.assertEquals("kitchen-probe", instances.get(0).getClientId());
+  }
+
+}
@@ -0,0 +1,132 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.BlockScheduler;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+public class LaneTest {
+
+  private static final int DEVICES = 8;
+  private static final int PER_DEVICE = 25;
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class ShardedBlock extends MQTTBlock {
+
+    private final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger mostActive = new AtomicInteger();
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      int now = active.incrementAndGet();
+      mostActive.accumulateAndGet(now, Math::max);
+      try {
+        Thread.sleep(2);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      String device = message.getTopic().split("/")[1];
+      received.computeIfAbsent(device, k -> new CopyOnWriteArrayList<>())
+          .add(Integer.valueOf(message.getString()));
+      active.decrementAndGet();
+      count.incrementAndGet();
+      return true;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    System.setProperty(BlockScheduler.THREADS_PROPERTY, "4");
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+    System.clearProperty(BlockScheduler.THREADS_PROPERTY);
+  }
+
+  @Test
+  public void testKeyOrderedLanes() throws Exception {
+    BlockConfigurationFile config = new BlockConfigurationFile("Sharded", null, null,
+        new String[] {"sensors/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setLanes(4);
+    config.setLaneKey("level:2");
+    ShardedBlock block = new ShardedBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+
+    List<CompletableFuture<IMqttDeliveryToken>> futures = new ArrayList<>();
+    for (int i = 0; i < PER_DEVICE; i++) {
+      for (int device = 0; device < DEVICES; device++) {
+        futures.add(block.publishAsync("sensors/dev" + device + "/temp", String.valueOf(i)));
+      }
+    }
+    for (CompletableFuture<IMqttDeliveryToken> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (block.count.get() < DEVICES * PER_DEVICE && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    Assert.assertEquals(DEVICES * PER_DEVICE, block.count.get());
+    for (List<Integer> values : block.received.values()) {
+      for (int i = 0; i < PER_DEVICE; i++) {
+        Assert.assertEquals(i, values.get(i).intValue());
+      }
+    }
+    Assert.assertTrue("Lanes never ran in parallel", block.mostActive.get() > 1);
+
+    Assert.assertEquals(4, block.getDispatcher().getLaneCount());
+    long total = 0;
+    int used = 0;
+    for (long delivered : block.getDispatcher().getLaneDelivered()) {
+      total += delivered;
+      if (delivered > 0)
+        used++;
+    }
+    Assert.assertEquals(DEVICES * PER_DEVICE, total);
+    Assert.assertTrue("Only " + used + " lane(s) used", used > 1);
+    double busiest = 0;
+    for (double utilization : block.getMetrics().getInboundLaneUtilization()) {
+      busiest = Math.max(busiest, utilization);
+    }
+    Assert.assertTrue(busiest > 0 && busiest <= 1);
+  }
+
+}
@@ -0,0 +1,84 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.logging.AsyncLogHandler;
+
+public class LogPipelineTest {
+
+  private File file;
+  private AsyncLogHandler handler;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("pipeline", ".log");
+  }
+
+  @After
+  public void tearDown() {
+    if (handler != null)
+      handler.close();
+    file.delete();
+  }
+
+  private List<String> lines() throws Exception {
+    handler.flush();
+    return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testFormatsInOrder() throws Exception {
+    handler = new AsyncLogHandler(64, AsyncLogHandler.Overflow.BLOCK, null, file.getPath());
+    handler.log(Level.INFO, "Sensor", "{} readings from {} in {}", new Object[] {3, "dev1"},
+        null);
+    handler.log(Level.WARNING, null, "Literal {} kept", null, null);
+    handler.publish(new LogRecord(Level.SEVERE, "Record {0}"));
+    for (int i = 0; i < 1000; i++) {
+      handler.log(Level.INFO, "Sensor", "line {}", new Object[] {i}, null);
+    }
+
+    List<String> lines = lines();
+    Assert.assertEquals(1003, lines.size());
+    Assert.assertTrue(lines.get(0),
+        lines.get(0).matches("\\d\\d/\\d\\d/\\d{4} \\d\\d:\\d\\d:\\d\\d\\.\\d{3} - \\[INFO\\] - "
+            + "\\[Sensor\\] - 3 readings from dev1 in \\{\\}"));
+    Assert.assertTrue(lines.get(1), lines.get(1).endsWith("[WARNING] - Literal {} kept"));
+    Assert.assertTrue(lines.get(2), lines.get(2).endsWith("[SEVERE] - Record {0}"));
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertTrue(lines.get(3 + i).endsWith("line " + i));
+    }
+    Assert.assertEquals(0, handler.getDropped());
+  }
+
+  @Test
+  public void testDropsInfoWhenFull() throws Exception {
+    handler = new AsyncLogHandler(2, AsyncLogHandler.Overflow.DROP_INFO, null, file.getPath());
+    int accepted = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (handler.log(Level.INFO, null, "chatty {}", new Object[] {i}, null))
+        accepted++;
+    }
+    Assert.assertTrue(handler.log(Level.SEVERE, null, "important", null, null));
+
+    List<String> lines = lines();
+    Assert.assertEquals(10000 - accepted, handler.getDropped());
+    Assert.assertTrue("Nothing was dropped", handler.getDropped() > 0);
+    Assert.assertTrue(lines.get(lines.size() - 1).endsWith("[SEVERE] - important"));
+    boolean reported = false;
+    for (String line : lines) {
+      reported |= line.contains("Log buffer full");
+    }
+    Assert.assertTrue(reported);
+  }
+
+}
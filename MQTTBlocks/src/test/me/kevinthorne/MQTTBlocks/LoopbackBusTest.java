@@ -0,0 +1,236 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+public class LoopbackBusTest {
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class RecordingBlock extends MQTTBlock {
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      received.add(message.getTopic() + "=" + message.getString() + " qos=" + message.getQos()
+          + (message.isRetained() ? " retained" : "") + (message.isFromHome() ? " home" : ""));
+      return true;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+  }
+
+  private RecordingBlock add(String name, String topic, boolean forward) {
+    BlockConfigurationFile config = new BlockConfigurationFile(name, null, null,
+        topic == null ? null : new String[] {topic}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setLocalDelivery(true);
+    config.setForwardToBroker(forward);
+    RecordingBlock block = new RecordingBlock();
+    blockManager.addBlock(config, block);
+    return block;
+  }
+
+  @Test
+  public void testLocalOnly() throws Exception {
+    RecordingBlock publisher = add("Publisher", "lights/#", false);
+    RecordingBlock subscriber = add("Subscriber", "lights/+/state", false);
+    blockManager.enableBlocks();
+
+    publisher.publishAsync("lights/kitchen/state", "on".getBytes(), 2, false).get(5,
+        TimeUnit.SECONDS);
+    publisher.publishAsync("lights/kitchen/level", "80".getBytes(), 0, true).get(5,
+        TimeUnit.SECONDS);
+    awaitSize(subscriber.received, 1);
+    awaitSize(publisher.received, 2);
+
+    Assert.assertEquals(0, broker.getPublishedCount());
+    Assert.assertEquals("lights/kitchen/state=on qos=1", subscriber.received.get(0));
+    Assert.assertTrue(publisher.received.contains("lights/kitchen/state=on qos=1 home"));
+    Assert.assertTrue(publisher.received.contains("lights/kitchen/level=80 qos=0 home"));
+
+    // Retained locally and replayed to a late subscriber
+    subscriber.subscribe("lights/kitchen/level");
+    awaitSize(subscriber.received, 2);
+    Assert.assertEquals("lights/kitchen/level=80 qos=0 retained", subscriber.received.get(1));
+  }
+
+  @Test
+  public void testRetainedReplayedOnEnable() throws Exception {
+    RecordingBlock publisher = add("Publisher", null, false);
+    blockManager.enableBlocks();
+    publisher.publishAsync("lights/hall/level", "40".getBytes(), 1, true).get(5,
+        TimeUnit.SECONDS);
+
+    // Enabled after the retained publish, so its subscription replays it during enable()
+    final List<String> order = new CopyOnWriteArrayList<>();
+    RecordingBlock late = new RecordingBlock() {
+      @Override
+      public void onEnable() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ignored) {
+        }
+        order.add("enabled");
+      }
+
+      @Override
+      public boolean onMessageReceived(BlockMessage message) {
+        order.add("received");
+        return super.onMessageReceived(message);
+      }
+    };
+    BlockConfigurationFile config = new BlockConfigurationFile("Late", null, null,
+        new String[] {"lights/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setLocalDelivery(true);
+    config.setForwardToBroker(false);
+    blockManager.addBlock(config, late);
+    blockManager.enableBlock("Late");
+
+    awaitSize(late.received, 1);
+    Assert.assertEquals("lights/hall/level=40 qos=1 retained", late.received.get(0));
+    Assert.assertEquals("[enabled, received]", order.toString());
+  }
+
+  @Test
+  public void testForwardedOnce() throws Exception {
+    final List<String> external = new CopyOnWriteArrayList<>();
+    MqttClient outside = new MqttClient(broker.getUrl(), "outside", new MemoryPersistence());
+    outside.setCallback(new MqttCallback() {
+      @Override
+      public void messageArrived(String topic, MqttMessage message) {
+        external.add(topic + "=" + new String(message.getPayload()));
+      }
+
+      @Override
+      public void deliveryComplete(IMqttDeliveryToken token) {
+      }
+
+      @Override
+      public void connectionLost(Throwable cause) {
+      }
+    });
+    outside.connect();
+    outside.subscribe("doors/#", 1);
+
+    RecordingBlock publisher = add("Publisher", "doors/front", true);
+    RecordingBlock subscriber = add("Subscriber", "doors/+", true);
+    blockManager.enableBlocks();
+
+    publisher.publishAsync("doors/front", "open".getBytes(), 1, false).get(5, TimeUnit.SECONDS);
+    awaitSize(external, 1);
+    // Give the broker's copies time to come back, they must be dropped
+    Thread.sleep(500);
+
+    Assert.assertEquals("[doors/front=open]", external.toString());
+    Assert.assertEquals("[doors/front=open qos=1]", subscriber.received.toString());
+    Assert.assertEquals("[doors/front=open qos=1 home]", publisher.received.toString());
+    outside.disconnect();
+    outside.close();
+  }
+
+  @Test
+  public void testDroppedPublishNotSuppressed() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty("name", "Publisher");
+    properties.setProperty("main", "Publisher");
+    properties.setProperty("topic", "doors/front");
+    properties.setProperty("qos", "1");
+    properties.setProperty("broker", broker.getUrl());
+    properties.setProperty("updateWait", "3600");
+    properties.setProperty("localDelivery", "true");
+    properties.setProperty("publishQueue", "1");
+    properties.setProperty("publishOverflow", "drop-oldest");
+    RecordingBlock publisher = new RecordingBlock();
+    blockManager.addBlock(new BlockConfigurationFile(properties), publisher);
+    RecordingBlock subscriber = add("Subscriber", "doors/+", true);
+    blockManager.enableBlocks();
+
+    broker.setRefusing(true);
+    broker.dropClients();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!publisher.getConnection().isReconnecting() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    CompletableFuture<IMqttDeliveryToken> dropped =
+        publisher.publishAsync("doors/back", "open".getBytes(), 1, false);
+    CompletableFuture<IMqttDeliveryToken> kept =
+        publisher.publishAsync("doors/back", "closed".getBytes(), 1, false);
+    try {
+      dropped.get(5, TimeUnit.SECONDS);
+      Assert.fail("Expected the first publish to be dropped");
+    } catch (ExecutionException expected) {
+    }
+    // Both were delivered locally, but only the kept one's broker copy will come
+    awaitSize(subscriber.received, 2);
+    Assert.assertEquals(1, subscriber.getLoopbackEchoes().size());
+
+    broker.setRefusing(false);
+    kept.get(5, TimeUnit.SECONDS);
+    deadline = System.currentTimeMillis() + 5000;
+    while (subscriber.getConnection().isReconnecting() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    MqttClient outside = new MqttClient(broker.getUrl(), "outside", new MemoryPersistence());
+    outside.connect();
+    outside.publish("doors/back", "open".getBytes(), 1, false);
+    awaitSize(subscriber.received, 3);
+    Thread.sleep(500);
+
+    Assert.assertEquals("[doors/back=open qos=1, doors/back=closed qos=1, doors/back=open qos=1]",
+        subscriber.received.toString());
+    outside.disconnect();
+    outside.close();
+  }
+
+  private static void awaitSize(List<?> list, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (list.size() < size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("Expected " + size + " messages, got " + list, list.size() >= size);
+  }
+
+}
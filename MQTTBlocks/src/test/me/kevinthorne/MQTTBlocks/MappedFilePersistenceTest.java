@@ -0,0 +1,185 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import me.kevinthorne.MQTTBlocks.connection.MappedFilePersistence;
+
+public class MappedFilePersistenceTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MappedFilePersistence persistence;
+
+  private static class Record implements MqttPersistable {
+
+    private final byte[] header;
+    private final byte[] payload;
+
+    Record(String header, String payload) {
+      this.header = header.getBytes();
+      this.payload = payload == null ? null : payload.getBytes();
+    }
+
+    @Override
+    public byte[] getHeaderBytes() {
+      return header;
+    }
+
+    @Override
+    public int getHeaderOffset() {
+      return 0;
+    }
+
+    @Override
+    public int getHeaderLength() {
+      return header.length;
+    }
+
+    @Override
+    public byte[] getPayloadBytes() {
+      return payload;
+    }
+
+    @Override
+    public int getPayloadOffset() {
+      return 0;
+    }
+
+    @Override
+    public int getPayloadLength() {
+      return payload == null ? 0 : payload.length;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    persistence = open(4096, 1 << 20);
+  }
+
+  @After
+  public void tearDown() {
+    persistence.close();
+  }
+
+  private MappedFilePersistence open(int segmentSize, long maxBytes) throws Exception {
+    MappedFilePersistence opened =
+        new MappedFilePersistence(folder.getRoot(), segmentSize, maxBytes);
+    opened.open("client", "tcp://localhost:1883");
+    return opened;
+  }
+
+  private String read(String key) throws Exception {
+    MqttPersistable record = persistence.get(key);
+    if (record == null)
+      return null;
+    return new String(record.getHeaderBytes(), record.getHeaderOffset(), record.getHeaderLength())
+        + "|" + new String(record.getPayloadBytes(), record.getPayloadOffset(),
+            record.getPayloadLength());
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    persistence.put("s-1", new Record("header", "payload"));
+    persistence.put("sc-2", new Record("pubrel", null));
+    persistence.put("s-1", new Record("header2", "payload2"));
+
+    Assert.assertEquals("header2|payload2", read("s-1"));
+    Assert.assertEquals("pubrel|", read("sc-2"));
+    Assert.assertTrue(persistence.containsKey("sc-2"));
+
+    persistence.remove("sc-2");
+    Assert.assertNull(read("sc-2"));
+    Assert.assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    for (int i = 0; i < 50; i++) {
+      persistence.put("s-" + i, new Record("h" + i, "message " + i));
+    }
+    for (int i = 0; i < 50; i += 2) {
+      persistence.remove("s-" + i);
+    }
+    persistence.close();
+
+    persistence = open(4096, 1 << 20);
+    Assert.assertEquals(25, Collections.list(persistence.keys()).size());
+    Assert.assertNull(read("s-10"));
+    Assert.assertEquals("h11|message 11", read("s-11"));
+    Assert.assertEquals("h49|message 49", read("s-49"));
+
+    persistence.clear();
+    persistence.close();
+    persistence = open(4096, 1 << 20);
+    Assert.assertFalse(persistence.keys().hasMoreElements());
+  }
+
+  @Test
+  public void testTornRecord() throws Exception {
+    persistence.put("s-1", new Record("first", "one"));
+    persistence.put("s-2", new Record("second", "two"));
+    File directory = persistence.getDirectory();
+    persistence.close();
+
+    // Corrupt the last byte of the second record, as a write cut short would
+    File segment = directory.listFiles((dir, name) -> name.endsWith(".seg"))[0];
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      int first = 8 + 1 + 2 + 3 + 4 + 5 + 4 + 3;
+      int second = 8 + 1 + 2 + 3 + 4 + 6 + 4 + 3;
+      file.seek(first + second - 1);
+      file.write('x');
+    }
+
+    persistence = open(4096, 1 << 20);
+    Assert.assertEquals("first|one", read("s-1"));
+    Assert.assertNull(read("s-2"));
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    persistence.put("s-keep", new Record("keep", "kept across compaction"));
+    for (int i = 0; i < 500; i++) {
+      persistence.put("s-" + i, new Record("header", "a payload of some length " + i));
+      persistence.remove("s-" + i);
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (persistence.getSegmentCount() > 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(persistence.getSegmentCount() <= 2);
+    Assert.assertEquals("keep|kept across compaction", read("s-keep"));
+
+    persistence.close();
+    persistence = open(4096, 1 << 20);
+    Assert.assertEquals(Collections.singletonList("s-keep"), Collections.list(persistence.keys()));
+    Assert.assertEquals("keep|kept across compaction", read("s-keep"));
+  }
+
+  @Test(expected = MqttPersistenceException.class)
+  public void testFull() throws Exception {
+    persistence.close();
+    persistence = open(4096, 200);
+    for (int i = 0; i < 10; i++) {
+      persistence.put("s-" + i, new Record("header", "a payload of some length"));
+    }
+  }
+
+  @Test(expected = MqttPersistenceException.class)
+  public void testInUse() throws Exception {
+    MappedFilePersistence second = new MappedFilePersistence(folder.getRoot());
+    second.open("client", "tcp://localhost:1883");
+  }
+
+}
@@ -0,0 +1,147 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.connection.PublishPipeline;
+import me.kevinthorne.MQTTBlocks.connection.SharedConnection;
+
+public class ReconnectTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class RecordingBlock extends MQTTBlock {
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger restored = new AtomicInteger();
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      received.add(message.getString());
+      return true;
+    }
+
+    @Override
+    public void connectionRestored() {
+      restored.incrementAndGet();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+  }
+
+  @Test
+  public void testReconnectAndBuffer() throws Exception {
+    BlockConfigurationFile config = new BlockConfigurationFile("Reconnecting", null, null,
+        new String[] {"reconnect/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setReconnectMinDelay(50);
+    config.setReconnectMaxDelay(200);
+    RecordingBlock block = new RecordingBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+
+    block.publishAsync("reconnect/a", "before").get(5, TimeUnit.SECONDS);
+    awaitSize(block.received, 1);
+
+    broker.setRefusing(true);
+    broker.dropClients();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!block.getConnection().isReconnecting() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(block.getConnection().isReconnecting());
+
+    // Buffered while the broker refuses connections
+    CompletableFuture<IMqttDeliveryToken> offline = block.publishAsync("reconnect/b", "offline");
+    Thread.sleep(500);
+    Assert.assertTrue(block.isRunning());
+    Assert.assertFalse(offline.isDone());
+    Assert.assertTrue("Expected several refused attempts", broker.getConnectCount() > 3);
+
+    broker.setRefusing(false);
+    offline.get(5, TimeUnit.SECONDS);
+    // Delivered through the renewed subscription
+    awaitSize(block.received, 2);
+    Assert.assertEquals("offline", block.received.get(1));
+    Assert.assertEquals(1, block.restored.get());
+    Assert.assertEquals(1, block.getMetrics().getConnectionsLost());
+    Assert.assertEquals(1, block.getMetrics().getReconnects());
+    Assert.assertEquals(1, blockManager.getConnectionPool().getConnectionCount());
+  }
+
+  @Test
+  public void testFilePersistenceResends() throws Exception {
+    BlockConfigurationFile config = new BlockConfigurationFile("Persistent", null, null,
+        new String[] {"persistent/#"}, 1, broker.getUrl(), null, null, "persistent", 3600);
+    config.setReconnectMinDelay(50);
+    config.setReconnectMaxDelay(200);
+    config.setPersistence(SharedConnection.Persistence.FILE);
+    config.setPersistenceDir(folder.getRoot().getPath());
+    RecordingBlock block = new RecordingBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+
+    // In flight when the connection drops, so the client resends it from the file
+    broker.setAcking(false);
+    CompletableFuture<IMqttDeliveryToken> unacked = block.publishAsync("persistent/a", "once");
+    awaitSize(block.received, 1);
+    PublishPipeline pipeline = block.getConnection().getPipeline();
+    Assert.assertEquals(1, pipeline.getInFlight());
+    broker.setAcking(true);
+    broker.dropClients();
+
+    unacked.get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(0, pipeline.getInFlight());
+    Assert.assertEquals(0, pipeline.getQueued());
+    Assert.assertEquals(0, block.getMetrics().getPublishFailures());
+  }
+
+  private static void awaitSize(List<?> list, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (list.size() < size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("Expected " + size + " messages, got " + list, list.size() >= size);
+  }
+
+}
@@ -0,0 +1,195 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.BlockScheduler;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+
+public class SchedulingTest {
+
+  private BlockManager blockManager;
+
+  private static class TimedBlock extends MQTTBlock {
+
+    private final List<Long> starts = new CopyOnWriteArrayList<>();
+    private final long firstMillis;
+    private final long busyMillis;
+
+    /**
+     * @param firstMillis - how long the first update() takes
+     * @param busyMillis - how long the others take
+     */
+    TimedBlock(long firstMillis, long busyMillis) {
+      this.firstMillis = firstMillis;
+      this.busyMillis = busyMillis;
+    }
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+      starts.add(System.nanoTime());
+      try {
+        Thread.sleep(starts.size() == 1 ? firstMillis : busyMillis);
+      } catch (InterruptedException ignored) {
+      }
+    }
+
+    /**
+     * @return mean time between the starts of update() after the first
+     */
+    long meanIntervalMillis() {
+      int count = starts.size();
+      Assert.assertTrue("Only " + count + " updates", count >= 4);
+      return TimeUnit.NANOSECONDS.toMillis((starts.get(count - 1) - starts.get(1)) / (count - 2));
+    }
+  }
+
+  @Before
+  public void setUp() {
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+  }
+
+  private static BlockConfigurationFile config(String updateWait) {
+    Properties properties = new Properties();
+    properties.setProperty("name", "Timed");
+    properties.setProperty("main", "Timed");
+    properties.setProperty("topic", "timed");
+    properties.setProperty("qos", "1");
+    properties.setProperty("updateWait", updateWait);
+    return new BlockConfigurationFile(properties);
+  }
+
+  private TimedBlock run(long periodMillis, TimedBlock block, BlockScheduler.UpdateMode mode,
+      BlockScheduler.Overrun overrun) throws InterruptedException {
+    BlockConfigurationFile config = new BlockConfigurationFile("Timed", null, null, null, 1, null,
+        null, null, null, 3600);
+    config.setUpdatePeriod(periodMillis, TimeUnit.MILLISECONDS);
+    config.setUpdateMode(mode);
+    config.setUpdateOverrun(overrun);
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+    Thread.sleep(1000);
+    blockManager.disableBlock("Timed");
+    return block;
+  }
+
+  @Test
+  public void updateWaitTakesUnits() {
+    Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(50),
+        config("50ms").getUpdatePeriodNanos());
+    Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(250),
+        config("250us").getUpdatePeriodNanos());
+    Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1500),
+        config("1.5s").getUpdatePeriodNanos());
+    BlockConfigurationFile seconds = config("10");
+    Assert.assertEquals(TimeUnit.SECONDS.toNanos(10), seconds.getUpdatePeriodNanos());
+    Assert.assertEquals(10, seconds.getUpdateWait());
+    Assert.assertEquals(BlockScheduler.UpdateMode.FIXED_DELAY, seconds.getUpdateMode());
+    Assert.assertEquals(BlockScheduler.Overrun.SKIP, seconds.getUpdateOverrun());
+    Assert.assertEquals(BlockScheduler.UpdateMode.FIXED_RATE,
+        BlockScheduler.UpdateMode.parse("fixed-rate"));
+    Assert.assertEquals(BlockScheduler.Overrun.CATCH_UP, BlockScheduler.Overrun.parse("catch-up"));
+  }
+
+  @Test
+  public void fixedRateDoesNotDrift() throws Exception {
+    TimedBlock block = run(50, new TimedBlock(30, 30), BlockScheduler.UpdateMode.FIXED_RATE,
+        BlockScheduler.Overrun.SKIP);
+    long interval = block.meanIntervalMillis();
+    Assert.assertTrue("Mean interval " + interval + "ms", interval >= 45 && interval <= 60);
+    Assert.assertEquals(0, block.getMetrics().getMissedUpdates());
+    Assert.assertTrue(block.getMetrics().getUpdateJitter().getCount() > 0);
+  }
+
+  @Test
+  public void fixedDelayWaitsAfterUpdate() throws Exception {
+    TimedBlock block = run(50, new TimedBlock(30, 30), BlockScheduler.UpdateMode.FIXED_DELAY,
+        BlockScheduler.Overrun.SKIP);
+    long interval = block.meanIntervalMillis();
+    Assert.assertTrue("Mean interval " + interval + "ms", interval >= 78);
+  }
+
+  @Test
+  public void overrunSkipsMissedUpdates() throws Exception {
+    TimedBlock block = run(20, new TimedBlock(200, 0), BlockScheduler.UpdateMode.FIXED_RATE,
+        BlockScheduler.Overrun.SKIP);
+    // The 200ms update overran ten 20ms periods, the next starts on the following one
+    long gap = TimeUnit.NANOSECONDS.toMillis(block.starts.get(1) - block.starts.get(0));
+    Assert.assertTrue("Gap " + gap + "ms", gap >= 215);
+    // Eleven if the update itself started or slept late
+    long missed = block.getMetrics().getMissedUpdates();
+    Assert.assertTrue("Missed " + missed, missed == 10 || missed == 11);
+    long interval = block.meanIntervalMillis();
+    Assert.assertTrue("Mean interval " + interval + "ms", interval >= 15);
+  }
+
+  @Test
+  public void overrunCatchesUp() throws Exception {
+    TimedBlock block = run(20, new TimedBlock(200, 0), BlockScheduler.UpdateMode.FIXED_RATE,
+        BlockScheduler.Overrun.CATCH_UP);
+    // The ten updates the first one overran run back to back rather than 20ms apart
+    long burst = TimeUnit.NANOSECONDS.toMillis(block.starts.get(5) - block.starts.get(1));
+    Assert.assertTrue("Burst took " + burst + "ms", burst < 40);
+    Assert.assertEquals(0, block.getMetrics().getMissedUpdates());
+    Assert.assertTrue(block.starts.size() >= 40);
+  }
+
+  @Test
+  public void joinWaitsForTheLastUpdate() throws Exception {
+    TimedBlock block = new TimedBlock(300, 0);
+    BlockConfigurationFile config = new BlockConfigurationFile("Timed", null, null, null, 1, null,
+        null, null, null, 3600);
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (block.starts.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    Assert.assertFalse(block.isInterrupted());
+
+    block.interrupt();
+    block.join();
+    long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - block.starts.get(0));
+    Assert.assertTrue("Joined " + waited + "ms after the update started", waited >= 290);
+    Assert.assertTrue(block.isInterrupted());
+    Assert.assertFalse(block.isAlive());
+  }
+
+  @Test
+  public void legacyPeriodOverrideIsHonoured() throws Exception {
+    TimedBlock block = new TimedBlock(0, 0) {
+      @Override
+      public long getUpdatePeriod() {
+        return 20;
+      }
+    };
+    blockManager.addBlock(new BlockConfigurationFile("Legacy", null, null, null, 1, null, null,
+        null, null, 3600), block);
+    blockManager.enableBlocks();
+    Thread.sleep(500);
+    Assert.assertTrue(block.starts.size() >= 5);
+    Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(20), block.getUpdatePeriodNanos());
+  }
+}
@@ -0,0 +1,154 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.connection.TopicTrie;
+
+public class SharedSubscriptionTest {
+
+  private static final int MESSAGES = 200;
+
+  private StandInBroker broker;
+  private BlockManager first;
+  private BlockManager second;
+
+  private static class Worker extends MQTTBlock {
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      received.add(message.getString());
+      return true;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    first = new BlockManager();
+    second = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    first.shutdown();
+    second.shutdown();
+    broker.close();
+  }
+
+  private Worker add(BlockManager manager, String name, String topic) {
+    BlockConfigurationFile config = new BlockConfigurationFile(name, null, null,
+        new String[] {topic}, 1, broker.getUrl(), null, null, null, 3600);
+    Worker block = new Worker();
+    manager.addBlock(config, block);
+    return block;
+  }
+
+  @Test
+  public void testAcrossManagers() throws Exception {
+    Worker a = add(first, "WorkerA", "$share/workers/jobs/#");
+    Worker b = add(second, "WorkerB", "$share/workers/jobs/#");
+    Worker audit = add(second, "Audit", "jobs/#");
+    first.enableBlocks();
+    second.enableBlocks();
+    publish(audit);
+
+    List<Worker> workers = new ArrayList<>();
+    workers.add(a);
+    workers.add(b);
+    awaitTotal(workers, MESSAGES);
+    awaitTotal(Collections.singletonList(audit), MESSAGES);
+    Thread.sleep(200);
+    assertSplit(workers);
+    Assert.assertEquals(MESSAGES, audit.received.size());
+  }
+
+  @Test
+  public void testWithinConnection() throws Exception {
+    List<Worker> workers = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      workers.add(add(first, "Worker" + i, "$share/workers/jobs/+"));
+    }
+    first.enableBlocks();
+    publish(workers.get(0));
+    awaitTotal(workers, MESSAGES);
+    Thread.sleep(200);
+    assertSplit(workers);
+  }
+
+  @Test
+  public void testMatchFilter() {
+    Assert.assertEquals("jobs/#", TopicTrie.matchFilter("$share/workers/jobs/#"));
+    Assert.assertEquals("jobs/#", TopicTrie.matchFilter("jobs/#"));
+    Assert.assertTrue(TopicTrie.matches("$share/workers/jobs/+", "jobs/1"));
+    try {
+      TopicTrie.matchFilter("$share/workers");
+      Assert.fail("No filter after the group");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private void publish(MQTTBlock publisher) throws Exception {
+    for (int i = 0; i < MESSAGES; i++) {
+      publisher.publishAsync("jobs/" + (i % 4), String.valueOf(i)).get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Every message went to exactly one worker, and every worker got some.
+   */
+  private static void assertSplit(List<Worker> workers) {
+    Set<String> seen = new HashSet<>();
+    for (Worker worker : workers) {
+      Assert.assertFalse(worker.getBlockName() + " got nothing", worker.received.isEmpty());
+      for (String message : worker.received) {
+        Assert.assertTrue("Delivered twice: " + message, seen.add(message));
+      }
+    }
+    Assert.assertEquals(MESSAGES, seen.size());
+  }
+
+  private static void awaitTotal(List<Worker> workers, int total) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    int received = 0;
+    while (System.currentTimeMillis() < deadline) {
+      received = 0;
+      for (Worker worker : workers) {
+        received += worker.received.size();
+      }
+      if (received >= total)
+        return;
+      Thread.sleep(10);
+    }
+    Assert.fail("Expected " + total + " messages, got " + received);
+  }
+
+}
@@ -0,0 +1,353 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-JVM MQTT 3.1.1 broker used by tests, benchmarks and the load test so none of them
+ * needs a network broker. Supports QoS 0/1/2, retained messages, wildcards and {@code $share/group/filter}
+ * shared subscriptions. Sessions are always clean.
+ */
+public class StandInBroker implements AutoCloseable {
+
+  private final ServerSocket server;
+  private final Thread acceptor;
+  private final List<Session> sessions = new CopyOnWriteArrayList<>();
+  private final Map<String, byte[]> retained = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> shareCursors = new ConcurrentHashMap<>();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicInteger connects = new AtomicInteger();
+  private volatile boolean running = true;
+  private volatile boolean refusing;
+  private volatile boolean acking = true;
+
+  public StandInBroker() throws IOException {
+    server = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+    acceptor = new Thread(this::accept, "StandInBroker-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public String getUrl() {
+    return "tcp://127.0.0.1:" + server.getLocalPort();
+  }
+
+  public long getPublishedCount() {
+    return published.get();
+  }
+
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  /**
+   * @return CONNECTs received, including refused ones
+   */
+  public int getConnectCount() {
+    return connects.get();
+  }
+
+  /**
+   * While set, CONNECTs are answered with "server unavailable", as a restarting broker would.
+   *
+   * @param refusing
+   */
+  public void setRefusing(boolean refusing) {
+    this.refusing = refusing;
+  }
+
+  /**
+   * While unset, QoS 1 and 2 publishes are routed but never acknowledged, as if the broker went
+   * down before it could.
+   *
+   * @param acking
+   */
+  public void setAcking(boolean acking) {
+    this.acking = acking;
+  }
+
+  /**
+   * Drops every client connection without a DISCONNECT, as a crashing broker would.
+   */
+  public void dropClients() {
+    for (Session session : sessions) {
+      session.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    try {
+      server.close();
+    } catch (IOException ignored) {
+    }
+    dropClients();
+  }
+
+  private void accept() {
+    while (running) {
+      try {
+        Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        Session session = new Session(socket);
+        Thread reader = new Thread(session, "StandInBroker-session");
+        reader.setDaemon(true);
+        reader.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void route(String topic, byte[] payload, int qos, boolean retain) {
+    published.incrementAndGet();
+    if (retain) {
+      if (payload.length == 0)
+        retained.remove(topic);
+      else
+        retained.put(topic, payload);
+    }
+    Map<String, List<Session>> groups = new HashMap<>();
+    for (Session session : sessions) {
+      int granted = -1;
+      for (Map.Entry<String, Integer> subscription : session.subscriptions.entrySet()) {
+        String filter = subscription.getKey();
+        if (filter.startsWith("$share/")) {
+          int split = filter.indexOf('/', 7);
+          if (split > 0 && matches(filter.substring(split + 1), topic)) {
+            List<Session> members = groups.get(filter);
+            if (members == null)
+              groups.put(filter, members = new ArrayList<>());
+            members.add(session);
+          }
+        } else if (matches(filter, topic)) {
+          granted = Math.max(granted, subscription.getValue());
+        }
+      }
+      if (granted >= 0)
+        session.send(topic, payload, Math.min(qos, granted), false);
+    }
+    for (Map.Entry<String, List<Session>> group : groups.entrySet()) {
+      List<Session> members = group.getValue();
+      AtomicInteger cursor = shareCursors.get(group.getKey());
+      if (cursor == null)
+        shareCursors.putIfAbsent(group.getKey(), new AtomicInteger());
+      cursor = shareCursors.get(group.getKey());
+      Session member = members.get(Math.floorMod(cursor.getAndIncrement(), members.size()));
+      member.send(topic, payload, Math.min(qos, member.subscriptions.get(group.getKey())), false);
+    }
+  }
+
+  static boolean matches(String filter, String topic) {
+    String[] filterLevels = filter.split("/", -1);
+    String[] topicLevels = topic.split("/", -1);
+    for (int i = 0; i < filterLevels.length; i++) {
+      if (filterLevels[i].equals("#"))
+        return !(i == 0 && topic.startsWith("$"));
+      if (i >= topicLevels.length)
+        return false;
+      if (filterLevels[i].equals("+")) {
+        if (i == 0 && topic.startsWith("$"))
+          return false;
+        continue;
+      }
+      if (!filterLevels[i].equals(topicLevels[i]))
+        return false;
+    }
+    return filterLevels.length == topicLevels.length;
+  }
+
+  private class Session implements Runnable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Map<String, Integer> subscriptions = new ConcurrentHashMap<>();
+    private int nextId = 1;
+
+    Session(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          int header = in.readUnsignedByte();
+          int length = readLength();
+          byte[] body = new byte[length];
+          in.readFully(body);
+          handle(header, body);
+        }
+      } catch (EOFException | SocketException ignored) {
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        close();
+      }
+    }
+
+    private void handle(int header, byte[] body) throws IOException {
+      int type = header >> 4;
+      switch (type) {
+        case 1: // CONNECT
+          connects.incrementAndGet();
+          if (refusing) {
+            write(0x20, new byte[] {0, 3});
+            close();
+            return;
+          }
+          sessions.add(this);
+          write(0x20, new byte[] {0, 0});
+          break;
+        case 3: { // PUBLISH
+          int qos = (header >> 1) & 3;
+          int topicLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+          String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+          int offset = 2 + topicLength;
+          int packetId = 0;
+          if (qos > 0) {
+            packetId = ((body[offset] & 0xff) << 8) | (body[offset + 1] & 0xff);
+            offset += 2;
+          }
+          byte[] payload = new byte[body.length - offset];
+          System.arraycopy(body, offset, payload, 0, payload.length);
+          if (acking && qos == 1)
+            write(0x40, id(packetId));
+          else if (acking && qos == 2)
+            write(0x50, id(packetId));
+          route(topic, payload, qos, (header & 1) == 1);
+          break;
+        }
+        case 5: // PUBREC from client for our QoS 2 send
+          write(0x62, new byte[] {body[0], body[1]});
+          break;
+        case 6: // PUBREL
+          write(0x70, new byte[] {body[0], body[1]});
+          break;
+        case 8: { // SUBSCRIBE
+          ByteArrayOutputStream granted = new ByteArrayOutputStream();
+          granted.write(body[0]);
+          granted.write(body[1]);
+          List<String> added = new ArrayList<>();
+          int offset = 2;
+          while (offset < body.length) {
+            int length = ((body[offset] & 0xff) << 8) | (body[offset + 1] & 0xff);
+            String filter = new String(body, offset + 2, length, StandardCharsets.UTF_8);
+            int qos = body[offset + 2 + length] & 3;
+            subscriptions.put(filter, qos);
+            added.add(filter);
+            granted.write(qos);
+            offset += 3 + length;
+          }
+          write(0x90, granted.toByteArray());
+          for (String filter : added) {
+            for (Map.Entry<String, byte[]> message : retained.entrySet()) {
+              if (matches(filter, message.getKey()))
+                send(message.getKey(), message.getValue(), subscriptions.get(filter), true);
+            }
+          }
+          break;
+        }
+        case 10: { // UNSUBSCRIBE
+          int offset = 2;
+          while (offset < body.length) {
+            int length = ((body[offset] & 0xff) << 8) | (body[offset + 1] & 0xff);
+            subscriptions.remove(new String(body, offset + 2, length, StandardCharsets.UTF_8));
+            offset += 2 + length;
+          }
+          write(0xB0, new byte[] {body[0], body[1]});
+          break;
+        }
+        case 12: // PINGREQ
+          write(0xD0, new byte[0]);
+          break;
+        case 14: // DISCONNECT
+          close();
+          break;
+        default: // PUBACK, PUBCOMP: nothing to do for a clean session
+          break;
+      }
+    }
+
+    void send(String topic, byte[] payload, int qos, boolean retain) {
+      byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + topicBytes.length + 4);
+      body.write(topicBytes.length >> 8);
+      body.write(topicBytes.length & 0xff);
+      body.write(topicBytes, 0, topicBytes.length);
+      synchronized (this) {
+        if (qos > 0) {
+          int packetId = nextId;
+          nextId = nextId == 0xffff ? 1 : nextId + 1;
+          body.write(packetId >> 8);
+          body.write(packetId & 0xff);
+        }
+        body.write(payload, 0, payload.length);
+        try {
+          write(0x30 | (qos << 1) | (retain ? 1 : 0), body.toByteArray());
+        } catch (IOException e) {
+          close();
+        }
+      }
+    }
+
+    private synchronized void write(int header, byte[] body) throws IOException {
+      out.write(header);
+      int length = body.length;
+      do {
+        int digit = length % 128;
+        length /= 128;
+        out.write(length > 0 ? digit | 0x80 : digit);
+      } while (length > 0);
+      out.write(body);
+      out.flush();
+    }
+
+    private int readLength() throws IOException {
+      int value = 0;
+      int multiplier = 1;
+      int digit;
+      do {
+        digit = in.readUnsignedByte();
+        value += (digit & 127) * multiplier;
+        multiplier *= 128;
+      } while ((digit & 128) != 0);
+      return value;
+    }
+
+    private byte[] id(int packetId) {
+      return new byte[] {(byte) (packetId >> 8), (byte) packetId};
+    }
+
+    void close() {
+      sessions.remove(this);
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+}
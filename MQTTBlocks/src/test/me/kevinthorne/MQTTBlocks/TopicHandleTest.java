@@ -0,0 +1,162 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.BlockManager;
+import me.kevinthorne.MQTTBlocks.blocks.BlockConfigurationFile;
+import me.kevinthorne.MQTTBlocks.blocks.BlockMessage;
+import me.kevinthorne.MQTTBlocks.blocks.MQTTBlock;
+import me.kevinthorne.MQTTBlocks.blocks.TopicHandle;
+
+public class TopicHandleTest {
+
+  private static final int MESSAGES = 500;
+
+  private StandInBroker broker;
+  private BlockManager blockManager;
+
+  private static class RecordingBlock extends MQTTBlock {
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final Set<Object> messages =
+        Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    @Override
+    public void onEnable() {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void update() {
+    }
+
+    @Override
+    public boolean onMessageReceived(BlockMessage message) {
+      received.add(message.getString());
+      return true;
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+      try {
+        messages.add(token.getMessage());
+      } catch (Exception ignored) {
+      }
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new StandInBroker();
+    blockManager = new BlockManager();
+  }
+
+  @After
+  public void tearDown() {
+    blockManager.shutdown();
+    broker.close();
+  }
+
+  private RecordingBlock add(String[] conflate) {
+    BlockConfigurationFile config = new BlockConfigurationFile("Handles", null, null,
+        new String[] {"handles/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setConflateTopics(conflate);
+    RecordingBlock block = new RecordingBlock();
+    blockManager.addBlock(config, block);
+    blockManager.enableBlocks();
+    return block;
+  }
+
+  @Test
+  public void testPooledPublish() throws Exception {
+    RecordingBlock block = add(null);
+    TopicHandle handle = block.topicHandle("handles/counter");
+    Assert.assertTrue(handle.isPooled());
+    Assert.assertEquals(1, handle.getQos());
+    for (int i = 0; i < MESSAGES; i++) {
+      handle.publish(String.format("%04d", i));
+    }
+    awaitSize(block.received, MESSAGES);
+    // Pooled payloads are rewritten in place, so a message reused too early would show up twice
+    Set<String> distinct = new HashSet<>(block.received);
+    for (int i = 0; i < MESSAGES; i++) {
+      Assert.assertTrue("Missing " + i, distinct.contains(String.format("%04d", i)));
+    }
+    Assert.assertEquals(MESSAGES, block.getMetrics().getMessagesOut());
+    Assert.assertTrue("Messages weren't reused: " + block.messages.size(),
+        block.messages.size() < MESSAGES / 2);
+  }
+
+  @Test
+  public void testConflatedTopicIsNotPooled() throws Exception {
+    RecordingBlock block = add(new String[] {"handles/latest/+"});
+    TopicHandle handle = block.topicHandle("handles/latest/value");
+    Assert.assertFalse(handle.isPooled());
+    Assert.assertTrue(block.topicHandle("handles/other").isPooled());
+    handle.publish(new byte[] {'4', '2'});
+    awaitSize(block.received, 1);
+    Assert.assertEquals("42", block.received.get(0));
+  }
+
+  @Test
+  public void testLocalDeliveryIsNotPooledBeforeEnable() throws Exception {
+    BlockConfigurationFile config = new BlockConfigurationFile("Handles", null, null,
+        new String[] {"handles/#"}, 1, broker.getUrl(), null, null, null, 3600);
+    config.setLocalDelivery(true);
+    RecordingBlock block = new RecordingBlock();
+    blockManager.addBlock(config, block);
+    // Handles are often made in a constructor or field initializer, before the loopback exists
+    TopicHandle handle = block.topicHandle("handles/early");
+    Assert.assertFalse(handle.isPooled());
+    blockManager.enableBlocks();
+    handle.publish("local");
+    awaitSize(block.received, 1);
+    Assert.assertEquals("local", block.received.get(0));
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testDeprecatedClient() throws Exception {
+    RecordingBlock block = add(null);
+    MqttClient client = block.getClient();
+    client.publish("handles/legacy", "old".getBytes(BlockMessage.CHARSET), 1, false);
+    awaitSize(block.received, 1);
+    Assert.assertEquals("old", block.received.get(0));
+    Assert.assertEquals(1, block.getMetrics().getMessagesOut());
+    try {
+      client.disconnect();
+      Assert.fail("Disconnected the shared connection");
+    } catch (UnsupportedOperationException expected) {
+    }
+    Assert.assertTrue(block.getConnection().isConnected());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWildcardTopic() throws Exception {
+    add(null).topicHandle("handles/+");
+  }
+
+  private static void awaitSize(List<?> list, int size) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (list.size() < size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("Expected " + size + " messages, got " + list.size(), list.size() >= size);
+  }
+
+}
@@ -0,0 +1,88 @@
+package test.me.kevinthorne.MQTTBlocks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import me.kevinthorne.MQTTBlocks.connection.TopicTrie;
+
+public class TopicTrieTest {
+
+  private static List<String> match(TopicTrie<String> trie, String topic) {
+    final List<String> matched = new ArrayList<>();
+    trie.match(topic, new TopicTrie.Visitor<String>() {
+      @Override
+      public void visit(String value) {
+        matched.add(value);
+      }
+    });
+    return matched;
+  }
+
+  @Test
+  public void testWildcards() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("sensors/+/temp", "plus");
+    trie.add("sensors/#", "hash");
+    trie.add("sensors/kitchen/temp", "exact");
+    trie.add("#", "all");
+
+    List<String> matched = match(trie, "sensors/kitchen/temp");
+    Assert.assertEquals(4, matched.size());
+
+    matched = match(trie, "sensors");
+    Assert.assertTrue("# should match its parent level", matched.contains("hash"));
+    Assert.assertFalse(matched.contains("plus"));
+
+    matched = match(trie, "sensors/kitchen/humidity");
+    Assert.assertTrue(matched.contains("hash"));
+    Assert.assertFalse(matched.contains("plus"));
+    Assert.assertFalse(matched.contains("exact"));
+  }
+
+  @Test
+  public void testDollarTopics() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("#", "all");
+    trie.add("+/broker/load", "plus");
+    trie.add("$SYS/#", "sys");
+
+    List<String> matched = match(trie, "$SYS/broker/load");
+    Assert.assertEquals(1, matched.size());
+    Assert.assertEquals("sys", matched.get(0));
+  }
+
+  @Test
+  public void testRemove() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a/b", "one");
+    trie.add("a/b", "two");
+    trie.add("a/+", "three");
+
+    Assert.assertTrue(trie.remove("a/b", "one"));
+    Assert.assertFalse(trie.remove("a/b", "one"));
+    Assert.assertEquals(2, match(trie, "a/b").size());
+
+    trie.remove("a/b", "two");
+    trie.remove("a/+", "three");
+    Assert.assertTrue(match(trie, "a/b").isEmpty());
+    Assert.assertEquals(0, trie.size());
+  }
+
+  @Test
+  public void testManyFilters() {
+    TopicTrie<String> trie = new TopicTrie<>();
+    for (int i = 0; i < 100000; i++) {
+      trie.add("devices/" + i + "/state", "device" + i);
+    }
+    for (int i = 0; i < 100000; i += 2) {
+      trie.remove("devices/" + i + "/state", "device" + i);
+    }
+    Assert.assertEquals(50000, trie.size());
+    Assert.assertTrue(match(trie, "devices/4242/state").isEmpty());
+    Assert.assertEquals("device4243", match(trie, "devices/4243/state").get(0));
+  }
+
+}